@@ -0,0 +1,314 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Expands batch inputs (files, directory trees and glob patterns) into pairs of
+ * input and output files, and masks many documents on a pool of worker
+ * threads.
+ *
+ * Documents are started largest first on a work-stealing pool, so a few large
+ * inputs are not left running alone once the small ones are done. While the
+ * workers mask, a background thread reads the inputs due to start next into
+ * the page cache.
+ */
+final class BatchScheduler {
+
+	static final Logger log = Logger.getLogger(BatchScheduler.class);
+
+	private static final String GLOB_CHARACTERS = "*?[{";
+
+	// larger inputs are not read ahead: their worker reads them sequentially
+	// anyway, and they would evict the inputs read ahead for other workers
+	private static final long PREFETCH_LIMIT = 16L << 20;
+	private static final int PREFETCH_BUFFER = 1 << 16;
+
+	private static class Job {
+		final SourceDocument<?> document;
+		final long size;
+		volatile boolean started;
+
+		Job(SourceDocument<?> document) {
+			this.document = document;
+			this.size = new File(document.getInputFile()).length();
+		}
+	}
+
+	private BatchScheduler() {
+	}
+
+	/**
+	 * Expands the input of a batch into pairs of input and output files. The
+	 * input is a file, a directory, whose files are all masked, or a glob
+	 * pattern such as data/**&#47;*.xml; several may be given separated by
+	 * ';'. Each output is written below the output directory at the path of
+	 * its input relative to the directory or to the fixed part of the pattern.
+	 * Files already below the output directory are not masked again.
+	 *
+	 * @return the input and output file of each document, sorted by input
+	 */
+	static List<String[]> expand(String input, String outputDirectory) {
+		Path out = Paths.get(outputDirectory);
+		Path outAbsolute = out.toAbsolutePath().normalize();
+		List<String[]> files = new ArrayList<>();
+		Set<Path> directories = new HashSet<>();
+		for (String pattern : input.split(";")) {
+			Path base = base(pattern);
+			PathMatcher matcher = containsGlob(pattern) ? FileSystems.getDefault().getPathMatcher("glob:" + pattern)
+					: null;
+			if (matcher == null && Files.isRegularFile(base)) {
+				files.add(new String[] { base.toString(), out.resolve(base.getFileName()).toString() });
+				continue;
+			}
+			if (!Files.isDirectory(base)) {
+				log.error("No such input file or directory: " + pattern);
+				throw new DatamaskException("No such input file or directory: " + pattern);
+			}
+			List<Path> found;
+			try (Stream<Path> walk = Files.walk(base)) {
+				found = walk.filter(Files::isRegularFile).filter(p -> matcher == null || matcher.matches(p))
+						.filter(p -> !p.toAbsolutePath().normalize().startsWith(outAbsolute))
+						.collect(Collectors.toList());
+			} catch (IOException e) {
+				log.error("Failed to list input files: " + pattern + "; " + e.toString());
+				throw new DatamaskException("Failed to list input files: " + pattern);
+			}
+			for (Path file : found) {
+				files.add(new String[] { file.toString(), out.resolve(base.relativize(file)).toString() });
+			}
+		}
+		files.sort(Comparator.comparing(f -> f[0]));
+
+		// the output directories are created up front, once each
+		for (String[] f : files) {
+			Path parent = Paths.get(f[1]).getParent();
+			if (parent != null && directories.add(parent)) {
+				try {
+					Files.createDirectories(parent);
+				} catch (IOException e) {
+					log.error("Failed to create output directory: " + parent + "; " + e.toString());
+					throw new DatamaskException("Failed to create output directory: " + parent);
+				}
+			}
+		}
+		log.debug("Expanded '" + input + "' to " + files.size() + " files");
+		return files;
+	}
+
+	// the leading part of the pattern without glob characters
+	private static Path base(String pattern) {
+		String[] segments = pattern.split("[/\\\\]", -1);
+		StringBuilder base = new StringBuilder();
+		for (int i = 0; i < segments.length; i++) {
+			if (containsGlob(segments[i])) {
+				break;
+			}
+			base.append(i == 0 ? "" : File.separator).append(segments[i]);
+		}
+		// an empty base is the working directory, and keeps listed paths relative to it
+		return Paths.get(base.toString());
+	}
+
+	private static boolean containsGlob(String segment) {
+		for (int i = 0; i < segment.length(); i++) {
+			if (GLOB_CHARACTERS.indexOf(segment.charAt(i)) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the documents of one shard of a run split across several
+	 * processes, in the order given. Documents are dealt largest input first
+	 * to the shard with the fewest bytes so far, so shards take about as long
+	 * as each other; every process given the same documents and input sizes
+	 * makes the same shards.
+	 *
+	 * @param index
+	 *            the shard, from 0 to count - 1
+	 */
+	static List<SourceDocument<?>> shard(List<SourceDocument<?>> documents, int index, int count) {
+		List<Job> jobs = new ArrayList<>(documents.size());
+		for (SourceDocument<?> doc : documents) {
+			jobs.add(new Job(doc));
+		}
+		jobs.sort((a, b) -> Long.compare(b.size, a.size));
+		long[] bytes = new long[count];
+		Set<SourceDocument<?>> mine = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Job job : jobs) {
+			int least = 0;
+			for (int i = 1; i < count; i++) {
+				if (bytes[i] < bytes[least]) {
+					least = i;
+				}
+			}
+			bytes[least] += job.size;
+			if (least == index) {
+				mine.add(job.document);
+			}
+		}
+		List<SourceDocument<?>> shard = documents.stream().filter(mine::contains).collect(Collectors.toList());
+		log.info("Shard " + index + " of " + count + ": " + shard.size() + " of " + documents.size() + " documents, "
+				+ bytes[index] + " bytes");
+		return shard;
+	}
+
+	/**
+	 * Masks the documents on a pool of worker threads, largest input first.
+	 * Documents share the masked value cache and the loaded plans and schemas.
+	 */
+	static void mask(List<SourceDocument<?>> documents, int threads, Boolean skipValidation) {
+		mask(documents, threads, skipValidation, doc -> {
+		});
+	}
+
+	/**
+	 * Masks the documents as {@link #mask(List, int, Boolean)} does, passing
+	 * each document masked without error to a listener, on its worker thread.
+	 */
+	static void mask(List<SourceDocument<?>> documents, int threads, Boolean skipValidation,
+			Consumer<SourceDocument<?>> completed) {
+		List<Job> jobs = new ArrayList<>(documents.size());
+		for (SourceDocument<?> doc : documents) {
+			jobs.add(new Job(doc));
+		}
+		// stable, so inputs of equal size start in the order given
+		jobs.sort((a, b) -> Long.compare(b.size, a.size));
+		log.debug("Masking " + jobs.size() + " documents on " + threads + " threads, largest first");
+
+		// workers take externally submitted tasks in submission order
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		Prefetcher prefetcher = new Prefetcher(jobs, threads);
+		List<Future<Boolean>> results = new ArrayList<>(jobs.size());
+		for (int i = 0; i < jobs.size(); i++) {
+			int index = i;
+			results.add(pool.submit(() -> {
+				Job job = jobs.get(index);
+				job.started = true;
+				prefetcher.started(index);
+				SourceDocument<?> doc = job.document;
+				log.debug("Processing: type=" + doc.type + ", config=" + doc.configFile + ", schema=" + doc.schemaFile
+						+ ", input=" + doc.inputFile + ", output=" + doc.outputFile + ", size=" + job.size);
+				if (!doc.mask(skipValidation)) {
+					return false;
+				}
+				completed.accept(doc);
+				return true;
+			}));
+		}
+		pool.shutdown();
+		int failed = 0;
+		try {
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					if (!results.get(i).get()) {
+						log.error("Failed to mask input file '" + jobs.get(i).document.inputFile + "'");
+						failed++;
+					}
+				} catch (ExecutionException e) {
+					log.error("Failed to mask input file '" + jobs.get(i).document.inputFile + "'; "
+							+ e.getCause().toString());
+					failed++;
+				}
+			}
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new DatamaskException("Interrupted while masking documents");
+		} finally {
+			prefetcher.close();
+		}
+		if (failed > 0) {
+			throw new DatamaskException(failed + " of " + results.size() + " documents failed to mask");
+		}
+	}
+
+	// reads the inputs of the jobs due to start next into the page cache, on a
+	// single background thread
+	private static final class Prefetcher {
+		private final List<Job> jobs;
+		private final int ahead;
+		private final ExecutorService reader = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "datamask-prefetch");
+			t.setDaemon(true);
+			return t;
+		});
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(PREFETCH_BUFFER); // used by the reader only
+		private int scheduled; // jobs below this index have been queued or skipped
+
+		Prefetcher(List<Job> jobs, int ahead) {
+			this.jobs = jobs;
+			this.ahead = ahead;
+		}
+
+		// queues the jobs that start once the running ones are done
+		synchronized void started(int index) {
+			int last = Math.min(jobs.size() - 1, index + ahead);
+			for (; scheduled <= last; scheduled++) {
+				Job job = jobs.get(scheduled);
+				if (!job.started && job.size <= PREFETCH_LIMIT) {
+					reader.execute(() -> read(job));
+				}
+			}
+		}
+
+		private void read(Job job) {
+			if (job.started) {
+				return;
+			}
+			try (FileChannel channel = FileChannel.open(Paths.get(job.document.getInputFile()),
+					StandardOpenOption.READ)) {
+				buffer.clear();
+				while (channel.read(buffer) > 0) {
+					buffer.clear();
+				}
+			} catch (IOException e) {
+				// the worker reports the error when it opens the file
+				log.debug("Failed to read ahead input file: " + job.document.getInputFile() + "; " + e.toString());
+			}
+		}
+
+		void close() {
+			reader.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Resolves xsd imports and includes, DTDs and external entities without
+ * network access.
+ *
+ * A reference is resolved, in order, to the local file it names, to the file
+ * of the same name in a catalog directory, or to the file of the same name
+ * bundled on the classpath under catalog/. Catalog directories are given by
+ * --catalog or by the datamask.catalog system property, separated by the path
+ * separator. A reference to a remote location found in none of these is
+ * refused. Resolved files are kept in memory, so each is read once.
+ */
+final class CatalogResolver implements EntityResolver, LSResourceResolver, XMLResolver {
+
+	static final Logger log = Logger.getLogger(CatalogResolver.class);
+
+	static final String CATALOG_PROPERTY = "datamask.catalog";
+	// value for the jaxp external access properties, refusing any network protocol
+	static final String LOCAL_ACCESS = "file,jar,jar:file";
+
+	private static final String CLASSPATH_CATALOG = "catalog/";
+
+	private static final CatalogResolver instance = new CatalogResolver();
+
+	private final List<File> directories = new CopyOnWriteArrayList<>();
+	// content of resolved files, keyed by their uri
+	private final ConcurrentMap<String, byte[]> resolved = new ConcurrentHashMap<>();
+
+	private CatalogResolver() {
+		String property = System.getProperty(CATALOG_PROPERTY);
+		if (property != null) {
+			for (String dir : property.split(File.pathSeparator)) {
+				if (!dir.isEmpty()) {
+					addDirectory(dir);
+				}
+			}
+		}
+	}
+
+	static CatalogResolver getInstance() {
+		return instance;
+	}
+
+	void addDirectory(String dir) {
+		File directory = new File(dir);
+		if (!directory.isDirectory()) {
+			log.error("Catalog directory not found: " + dir);
+			throw new DatamaskException("Catalog directory not found: " + dir);
+		}
+		log.debug("Catalog directory: " + directory);
+		directories.add(directory);
+	}
+
+	@Override
+	public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
+		String uri = resolve(systemId, null);
+		if (uri == null) {
+			return null;
+		}
+		InputSource source = new InputSource(new ByteArrayInputStream(resolved.get(uri)));
+		source.setPublicId(publicId);
+		source.setSystemId(uri);
+		return source;
+	}
+
+	@Override
+	public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId,
+			String baseURI) {
+		String uri;
+		try {
+			uri = resolve(systemId, baseURI);
+		} catch (SAXException | IOException e) {
+			// the schema factory refuses the remote location itself
+			log.error(e.getMessage());
+			return null;
+		}
+		return uri == null ? null : new Input(publicId, uri, baseURI, resolved.get(uri));
+	}
+
+	@Override
+	public Object resolveEntity(String publicID, String systemID, String baseURI, String namespace)
+			throws XMLStreamException {
+		try {
+			String uri = resolve(systemID, baseURI);
+			return uri == null ? null : new ByteArrayInputStream(resolved.get(uri));
+		} catch (SAXException | IOException e) {
+			throw new XMLStreamException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns the uri of the local copy of a reference, with its content loaded,
+	 * or null if there is no reference or it names a local file that does not
+	 * exist.
+	 */
+	String resolve(String systemId, String baseURI) throws SAXException, IOException {
+		if (systemId == null || systemId.isEmpty()) {
+			return null;
+		}
+		URI uri;
+		try {
+			uri = baseURI == null ? new URI(systemId) : new URI(baseURI).resolve(new URI(systemId));
+		} catch (URISyntaxException e) {
+			uri = new File(systemId).toURI();
+		}
+		if (uri.getScheme() == null) {
+			uri = new File(uri.getPath()).toURI();
+		}
+		String key = uri.toString();
+		if (resolved.containsKey(key)) {
+			return key;
+		}
+		boolean local = "file".equals(uri.getScheme()) || "jar".equals(uri.getScheme());
+		if (local && exists(uri)) {
+			return load(key, uri.toURL());
+		}
+
+		// look for a file of the same name in the catalog
+		String path = uri.getPath() != null ? uri.getPath() : uri.getSchemeSpecificPart();
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		if (!name.isEmpty()) {
+			for (File directory : directories) {
+				File file = new File(directory, name);
+				if (file.isFile()) {
+					log.debug("Resolved " + key + " to " + file);
+					return load(file.toURI().toString(), file.toURI().toURL());
+				}
+			}
+			URL resource = CatalogResolver.class.getClassLoader().getResource(CLASSPATH_CATALOG + name);
+			if (resource != null) {
+				log.debug("Resolved " + key + " to " + resource);
+				return load(resource.toString(), resource);
+			}
+		}
+		if (local) {
+			return null;
+		}
+		log.error("Refusing to fetch '" + key + "': not found in the catalog");
+		throw new SAXException("Refusing to fetch '" + key + "': not found in the catalog");
+	}
+
+	private static boolean exists(URI uri) {
+		if ("file".equals(uri.getScheme())) {
+			return new File(uri).isFile();
+		}
+		try (InputStream in = uri.toURL().openStream()) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private String load(String key, URL url) throws IOException {
+		if (!resolved.containsKey(key)) {
+			try (InputStream in = url.openStream()) {
+				ByteArrayOutputStream content = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					content.write(buffer, 0, n);
+				}
+				resolved.putIfAbsent(key, content.toByteArray());
+			}
+		}
+		return key;
+	}
+
+	private static class Input implements LSInput {
+		private String publicId;
+		private String systemId;
+		private String baseURI;
+		private byte[] content;
+
+		Input(String publicId, String systemId, String baseURI, byte[] content) {
+			this.publicId = publicId;
+			this.systemId = systemId;
+			this.baseURI = baseURI;
+			this.content = content;
+		}
+
+		@Override
+		public Reader getCharacterStream() {
+			return null;
+		}
+
+		@Override
+		public void setCharacterStream(Reader characterStream) {
+			// content is always given as bytes
+		}
+
+		@Override
+		public InputStream getByteStream() {
+			return new ByteArrayInputStream(content);
+		}
+
+		@Override
+		public void setByteStream(InputStream byteStream) {
+			// content is always given as bytes
+		}
+
+		@Override
+		public String getStringData() {
+			return null;
+		}
+
+		@Override
+		public void setStringData(String stringData) {
+			// content is always given as bytes
+		}
+
+		@Override
+		public String getSystemId() {
+			return systemId;
+		}
+
+		@Override
+		public void setSystemId(String systemId) {
+			this.systemId = systemId;
+		}
+
+		@Override
+		public String getPublicId() {
+			return publicId;
+		}
+
+		@Override
+		public void setPublicId(String publicId) {
+			this.publicId = publicId;
+		}
+
+		@Override
+		public String getBaseURI() {
+			return baseURI;
+		}
+
+		@Override
+		public void setBaseURI(String baseURI) {
+			this.baseURI = baseURI;
+		}
+
+		@Override
+		public String getEncoding() {
+			return null;
+		}
+
+		@Override
+		public void setEncoding(String encoding) {
+			// detected from the content
+		}
+
+		@Override
+		public boolean getCertifiedText() {
+			return false;
+		}
+
+		@Override
+		public void setCertifiedText(boolean certifiedText) {
+			// not used
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Journal of the documents a run has masked, so that a run that stopped part
+ * way can be resumed without masking them again.
+ *
+ * A document is recorded once its output has been written, as a line giving
+ * the size and modification time of its input, the input and the output.
+ * Lines are written at checkpoints, at most a second apart, after the
+ * surrogate dictionary has been forced to disk, so the dictionary saved with
+ * the journal always holds the surrogates of every document it lists. A line
+ * left incomplete by a crash is discarded when the journal is opened.
+ *
+ * A resumed run masks a document again when it is not in the journal, its
+ * input has changed since or its output is missing.
+ */
+final class CheckpointJournal {
+
+	static final Logger log = Logger.getLogger(CheckpointJournal.class);
+
+	// the dictionary file kept with a journal when no other is given
+	static final String DICTIONARY_SUFFIX = ".dict";
+
+	private static final String DONE = "done";
+	private static final long CHECKPOINT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private final String path;
+	private final FileChannel channel;
+	private final Set<String> finished;
+	private final StringBuilder pending = new StringBuilder();
+	private long end;
+	private long lastCheckpoint = System.nanoTime();
+
+	private CheckpointJournal(String path, FileChannel channel, Set<String> finished, long end) {
+		this.path = path;
+		this.channel = channel;
+		this.finished = finished;
+		this.end = end;
+	}
+
+	/**
+	 * Opens a journal for this process, creating it if it does not exist.
+	 */
+	static CheckpointJournal open(String path) {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			lock(channel);
+			ByteBuffer b = ByteBuffer.allocate((int) channel.size());
+			while (b.hasRemaining() && channel.read(b, b.position()) >= 0) {
+				// read the whole journal
+			}
+			String text = new String(b.array(), 0, b.position(), StandardCharsets.UTF_8);
+			Set<String> finished = new HashSet<>();
+			int start = 0;
+			for (int nl = text.indexOf('\n'); nl >= 0; nl = text.indexOf('\n', start)) {
+				String line = text.substring(start, nl);
+				if (line.startsWith(DONE + "\t")) {
+					finished.add(line.substring(DONE.length() + 1));
+				}
+				start = nl + 1;
+			}
+			long end = text.substring(0, start).getBytes(StandardCharsets.UTF_8).length;
+			if (end < channel.size()) {
+				log.warn("Discarding an incomplete line at the end of journal file '" + path + "'");
+				channel.truncate(end);
+			}
+			log.debug("Opened journal file '" + path + "' with " + finished.size() + " documents masked");
+			return new CheckpointJournal(path, channel, finished, end);
+		} catch (IOException | DatamaskException e) {
+			closeQuietly(channel);
+			log.error("Failed to open journal file '" + path + "'; " + e.getMessage());
+			throw new DatamaskException("Failed to open journal file '" + path + "'; " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the documents still to be masked, in the order given.
+	 */
+	List<SourceDocument<?>> pending(List<SourceDocument<?>> documents) {
+		List<SourceDocument<?>> left = new ArrayList<>(documents.size());
+		for (SourceDocument<?> doc : documents) {
+			if (!resumable(doc) || !finished.contains(key(doc)) || !new File(doc.outputFile).isFile()) {
+				left.add(doc);
+			}
+		}
+		if (left.size() < documents.size()) {
+			log.info("Resuming from journal file '" + path + "': " + (documents.size() - left.size()) + " of "
+					+ documents.size() + " documents already masked");
+		}
+		return left;
+	}
+
+	/**
+	 * Records a document masked successfully; an output file alone may be
+	 * left from an earlier run. Documents are saved to the journal at the next
+	 * checkpoint.
+	 */
+	void completed(SourceDocument<?> doc) {
+		if (!resumable(doc)) {
+			// standard streams cannot be resumed
+			return;
+		}
+		String line = DONE + "\t" + key(doc) + "\n";
+		synchronized (this) {
+			pending.append(line);
+			if (System.nanoTime() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+				checkpoint();
+			}
+		}
+	}
+
+	/**
+	 * Saves the documents completed since the last checkpoint, and closes the
+	 * journal.
+	 */
+	synchronized void close() {
+		try {
+			checkpoint();
+		} finally {
+			closeQuietly(channel);
+		}
+	}
+
+	// the dictionary is made durable first, so no document is listed without its surrogates; a
+	// surrogate is written to the dictionary file before any document can use it
+	private void checkpoint() {
+		lastCheckpoint = System.nanoTime();
+		if (pending.length() == 0) {
+			return;
+		}
+		SurrogateDictionary.getInstance().sync();
+		ByteBuffer b = ByteBuffer.wrap(pending.toString().getBytes(StandardCharsets.UTF_8));
+		try {
+			while (b.hasRemaining()) {
+				end += channel.write(b, end);
+			}
+			channel.force(false);
+		} catch (IOException e) {
+			log.error("Failed to write to journal file '" + path + "'; " + e.getMessage());
+			throw new DatamaskException("Failed to write to journal file '" + path + "'; " + e.getMessage());
+		}
+		pending.setLength(0);
+	}
+
+	private static boolean resumable(SourceDocument<?> doc) {
+		return !SourceDocument.STANDARD_STREAM.equals(doc.inputFile)
+				&& !SourceDocument.STANDARD_STREAM.equals(doc.outputFile);
+	}
+
+	// identifies a document and the version of its input
+	private static String key(SourceDocument<?> doc) {
+		File input = new File(doc.inputFile);
+		return input.length() + "\t" + input.lastModified() + "\t" + doc.inputFile + "\t" + doc.outputFile;
+	}
+
+	private static void lock(FileChannel channel) throws IOException {
+		FileLock lock;
+		try {
+			lock = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		}
+		if (lock == null) {
+			throw new DatamaskException("the file is in use");
+		}
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.debug("Failed to close journal file; " + e.getMessage());
+			}
+		}
+	}
+}
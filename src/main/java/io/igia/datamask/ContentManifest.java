@@ -0,0 +1,307 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Manifest of the inputs masked by earlier runs, so that a run masks only the
+ * inputs that are new or have changed since.
+ *
+ * Each entry holds the content hash of an input, the hash of the plan it was
+ * masked with, and its output. A document is skipped when its entry has the
+ * hash of its current content and plan and its output still exists. The plan
+ * hash covers the config (every file of a config directory), the schema, the
+ * kind of document and the masking key, so changing any of them masks every
+ * document using it again.
+ *
+ * Inputs are hashed in parallel, mapped into memory rather than copied, so
+ * checking a file costs a small part of masking it. The manifest is rewritten
+ * once the run is done, with the documents of this run only.
+ */
+final class ContentManifest {
+
+	static final Logger log = Logger.getLogger(ContentManifest.class);
+
+	// the dictionary file kept with a manifest when no other is given
+	static final String DICTIONARY_SUFFIX = ".dict";
+
+	private static final String HASH_ALGORITHM = "SHA-256";
+	// smaller inputs are read rather than mapped, which costs more than reading them
+	private static final long MAP_THRESHOLD = 1L << 16;
+	private static final long WINDOW_SIZE = 1L << 30;
+
+	private static final class Entry {
+		final String inputHash;
+		final String planHash;
+		final String output;
+
+		Entry(String inputHash, String planHash, String output) {
+			this.inputHash = inputHash;
+			this.planHash = planHash;
+			this.output = output;
+		}
+
+		boolean matches(Entry other) {
+			return inputHash.equals(other.inputHash) && planHash.equals(other.planHash) && output.equals(other.output);
+		}
+	}
+
+	private final String path;
+	// entries of the last run, by input
+	private final Map<String, Entry> previous;
+	// entries of this run, by input, for the documents skipped or masked
+	private final Map<String, Entry> current = new TreeMap<>();
+	// entries computed for the documents to mask, saved once they are masked
+	private final Map<SourceDocument<?>, Entry> pending = new IdentityHashMap<>();
+
+	private ContentManifest(String path, Map<String, Entry> previous) {
+		this.path = path;
+		this.previous = previous;
+	}
+
+	/**
+	 * Reads a manifest; a manifest that does not exist yet is empty.
+	 */
+	static ContentManifest open(String path) {
+		Map<String, Entry> entries = new HashMap<>();
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			lines = new ArrayList<>();
+		} catch (IOException e) {
+			log.error("Failed to read manifest file '" + path + "'; " + e.getMessage());
+			throw new DatamaskException("Failed to read manifest file '" + path + "'; " + e.getMessage());
+		}
+		for (String line : lines) {
+			String[] fields = line.split("\t", 4);
+			if (fields.length != 4) {
+				log.warn("Ignoring invalid line of manifest file '" + path + "': " + line);
+				continue;
+			}
+			entries.put(fields[2], new Entry(fields[0], fields[1], fields[3]));
+		}
+		log.debug("Read manifest file '" + path + "' with " + entries.size() + " entries");
+		return new ContentManifest(path, entries);
+	}
+
+	/**
+	 * Returns the documents whose input or plan has changed since the last
+	 * run, in the order given. Inputs are hashed in parallel.
+	 */
+	List<SourceDocument<?>> changed(List<SourceDocument<?>> documents) {
+		Map<String, String> planHashes = new HashMap<>();
+		List<String> plans = new ArrayList<>(documents.size());
+		for (SourceDocument<?> doc : documents) {
+			plans.add(planHashes.computeIfAbsent(planKey(doc), k -> planHash(doc)));
+		}
+		List<String> inputHashes = documents.parallelStream().map(ContentManifest::inputHash)
+				.collect(Collectors.toList());
+
+		List<SourceDocument<?>> changed = new ArrayList<>();
+		for (int i = 0; i < documents.size(); i++) {
+			SourceDocument<?> doc = documents.get(i);
+			if (inputHashes.get(i) == null || plans.get(i).isEmpty()) {
+				changed.add(doc);
+				continue;
+			}
+			Entry entry = new Entry(inputHashes.get(i), plans.get(i), doc.outputFile);
+			Entry last = previous.get(doc.inputFile);
+			if (last != null && last.matches(entry) && new File(doc.outputFile).isFile()) {
+				current.put(doc.inputFile, entry);
+			} else {
+				pending.put(doc, entry);
+				changed.add(doc);
+			}
+		}
+		log.info("Manifest file '" + path + "': " + (documents.size() - changed.size()) + " of " + documents.size()
+				+ " documents unchanged since the last run");
+		return changed;
+	}
+
+	/**
+	 * Records a document masked by this run. Only documents whose masking
+	 * succeeded are to be passed, since an output file alone may be left from
+	 * an earlier run.
+	 */
+	synchronized void completed(SourceDocument<?> doc) {
+		Entry entry = pending.remove(doc);
+		if (entry != null) {
+			current.put(doc.inputFile, entry);
+		}
+	}
+
+	/**
+	 * Rewrites the manifest with the documents skipped or masked by this run.
+	 * Documents that failed are left out, so the next run masks them again.
+	 */
+	synchronized void save() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Entry> e : current.entrySet()) {
+			Entry entry = e.getValue();
+			text.append(entry.inputHash).append('\t').append(entry.planHash).append('\t').append(e.getKey())
+					.append('\t').append(entry.output).append('\n');
+		}
+		Path file = Paths.get(path);
+		Path saved = Paths.get(path + ".new");
+		try {
+			Files.write(saved, text.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(saved, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.error("Failed to write manifest file '" + path + "'; " + e.getMessage());
+			throw new DatamaskException("Failed to write manifest file '" + path + "'; " + e.getMessage());
+		}
+		log.debug("Wrote manifest file '" + path + "' with " + current.size() + " entries");
+	}
+
+	/**
+	 * Returns the hex SHA-256 hash of the content of a file, read through a
+	 * memory mapping unless the file is small.
+	 */
+	static String hash(Path file) {
+		MessageDigest digest = newDigest();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < MAP_THRESHOLD) {
+				ByteBuffer buffer = ByteBuffer.allocate((int) size);
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+					// read the whole file
+				}
+				buffer.flip();
+				digest.update(buffer);
+			} else {
+				for (long start = 0; start < size; start += WINDOW_SIZE) {
+					MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start,
+							Math.min(WINDOW_SIZE, size - start));
+					digest.update(window);
+				}
+			}
+		} catch (IOException e) {
+			log.error("Failed to hash input file '" + file + "'; " + e.getMessage());
+			throw new DatamaskException("Failed to hash input file '" + file + "'; " + e.getMessage());
+		}
+		return toHex(digest.digest());
+	}
+
+	// null when the input is not a file or cannot be hashed: the document is masked, and its error reported then
+	private static String inputHash(SourceDocument<?> doc) {
+		if (!isFile(doc) || !Files.isRegularFile(Paths.get(doc.inputFile))) {
+			return null;
+		}
+		try {
+			return hash(Paths.get(doc.inputFile));
+		} catch (DatamaskException e) {
+			return null;
+		}
+	}
+
+	// the parameters of a document that decide how it is masked
+	private static String planKey(SourceDocument<?> doc) {
+		String key = doc.getClass().getName() + "\t" + doc.configFile + "\t" + doc.schemaFile;
+		if (doc instanceof XmlStreamSourceDocument) {
+			key += "\t" + ((XmlStreamSourceDocument) doc).getRecordElement();
+		}
+		return key;
+	}
+
+	// empty when the config or schema cannot be read
+	private static String planHash(SourceDocument<?> doc) {
+		MessageDigest digest = newDigest();
+		digest.update(planKey(doc).getBytes(StandardCharsets.UTF_8));
+		try {
+			List<Path> files = new ArrayList<>();
+			files.addAll(configFiles(doc.configFile));
+			if (doc.schemaFile != null) {
+				files.add(Paths.get(doc.schemaFile));
+			}
+			for (Path file : files) {
+				if (!Files.isRegularFile(file)) {
+					return "";
+				}
+				digest.update((byte) 0);
+				digest.update(file.toString().getBytes(StandardCharsets.UTF_8));
+				digest.update(hash(file).getBytes(StandardCharsets.UTF_8));
+			}
+		} catch (DatamaskException e) {
+			return "";
+		}
+		// values derived from the key differ with it, but the key itself is not written down
+		MaskingKey key = MaskingKey.getInstance();
+		if (key != null) {
+			digest.update((byte) 0);
+			digest.update(key.prf("MANIFEST", "plan"));
+		}
+		return toHex(digest.digest());
+	}
+
+	// the config file, or the files of a config directory in name order
+	private static List<Path> configFiles(String configFile) {
+		Path config = Paths.get(configFile);
+		if (!Files.isDirectory(config)) {
+			List<Path> files = new ArrayList<>();
+			files.add(config);
+			return files;
+		}
+		try (Stream<Path> list = Files.list(config)) {
+			return list.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		} catch (IOException e) {
+			log.error("Failed to list config directory '" + configFile + "'; " + e.getMessage());
+			throw new DatamaskException("Failed to list config directory '" + configFile + "'; " + e.getMessage());
+		}
+	}
+
+	private static boolean isFile(SourceDocument<?> doc) {
+		return !SourceDocument.STANDARD_STREAM.equals(doc.inputFile)
+				&& !SourceDocument.STANDARD_STREAM.equals(doc.outputFile);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new DatamaskException(HASH_ALGORITHM + " is not available; " + e.getMessage());
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
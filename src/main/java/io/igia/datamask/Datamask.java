@@ -15,8 +15,18 @@
  */
 package io.igia.datamask;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -24,6 +34,7 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Logger;
 
 /**
@@ -39,21 +50,57 @@ class OptionGroup {
 		schemaFile = null;
 		inputFile = null;
 		outputFile = null;
+		engine = null;
+		recordElement = null;
 	}
 	String inputType;
 	String configFile;
 	String schemaFile;
 	String inputFile;
 	String outputFile;
+	String engine;
+	String recordElement;
 }
 
 class Config {
 	
 	Config() {
 		skipValidation = false;
+		threads = 1;
+		pipeline = false;
+		resume = null;
+		incremental = null;
+		coordinatorAddress = null;
+		coordinatorPort = -1;
+		workers = 0;
+		workerTimeout = 600;
+		worker = null;
+		serveAddress = null;
+		servePort = -1;
+		serveThreads = Runtime.getRuntime().availableProcessors();
+		profilesFile = null;
+		shard = 0;
+		shards = 1;
+		dictionary = null;
 		documents = new ArrayList<>();
 	}
 	Boolean skipValidation;
+	int threads;
+	boolean pipeline;
+	String resume; // journal file
+	String incremental; // content manifest file
+	String coordinatorAddress; // local address of the dictionary service, or null for loopback
+	int coordinatorPort;
+	int workers; // workers the coordinator waits for
+	int workerTimeout; // seconds the coordinator waits while no unfinished worker is connected
+	String worker; // host:port of the coordinator
+	String serveAddress; // local address of the masking service, or null for loopback
+	int servePort;
+	int serveThreads;
+	String profilesFile; // profiles of the masking service, or null when not serving
+	int shard;
+	int shards;
+	String dictionary;
 	List<SourceDocument<?>> documents;
 }
 
@@ -75,29 +122,262 @@ public class Datamask {
 			System.exit(-1);
 		}
 		processCommandLine(config, cmd);
-
-		//
-		// Mask each requested file
-		//
 		for (SourceDocument<?> doc : config.documents) {
-			log.debug("Processing: type=" + doc.type+ ", config=" + doc.configFile + ", schema=" + doc.schemaFile + ", input=" + doc.inputFile + ", output="
-					+ doc.outputFile);
-			doc.mask(config.skipValidation);
+			if (SourceDocument.STANDARD_STREAM.equals(doc.outputFile)) {
+				logToStandardError();
+				break;
+			}
+		}
+
+		// a masking service runs until the process is stopped
+		if (config.profilesFile != null) {
+			serve();
+			return;
+		}
+
+		// a coordinator serves its dictionary to the workers of a sharded run
+		DictionaryService service = null;
+		if (config.workers > 0) {
+			try {
+				service = DictionaryService.start(config.coordinatorAddress, config.coordinatorPort,
+						SurrogateDictionary.getInstance());
+			} catch (DatamaskException e) {
+				System.exit(-1);
+			}
+		}
+		// the coordinator waits for its workers, and a worker tells the coordinator it has finished, even
+		// when masking fails
+		boolean failed = false;
+		try {
+			if (config.shards > 1) {
+				config.documents = BatchScheduler.shard(config.documents, config.shard, config.shards);
+			}
+
+			// an incremental run skips the documents unchanged since the last one
+			ContentManifest manifest = null;
+			if (config.incremental != null) {
+				try {
+					manifest = ContentManifest.open(config.incremental);
+					config.documents = manifest.changed(config.documents);
+				} catch (DatamaskException e) {
+					System.exit(-1);
+				}
+			}
+			// a resumed run skips the documents its journal lists
+			CheckpointJournal journal = null;
+			if (config.resume != null) {
+				try {
+					journal = CheckpointJournal.open(config.resume);
+				} catch (DatamaskException e) {
+					System.exit(-1);
+				}
+				List<SourceDocument<?>> pending = journal.pending(config.documents);
+				if (manifest != null) {
+					// documents masked before the run stopped are kept in the manifest
+					Set<SourceDocument<?>> left = Collections.newSetFromMap(new IdentityHashMap<>());
+					left.addAll(pending);
+					for (SourceDocument<?> doc : config.documents) {
+						if (!left.contains(doc)) {
+							manifest.completed(doc);
+						}
+					}
+				}
+				config.documents = pending;
+			}
+			Consumer<SourceDocument<?>> completed = journal == null ? doc -> {
+			} : journal::completed;
+			if (manifest != null) {
+				completed = completed.andThen(manifest::completed);
+			}
+
+			//
+			// Mask each requested file; every document is tried, and the
+			// execution fails if any of them failed
+			//
+			try {
+				if (config.pipeline) {
+					DocumentPipeline.mask(config.documents, config.threads, config.skipValidation, completed);
+				} else if (config.threads > 1) {
+					BatchScheduler.mask(config.documents, config.threads, config.skipValidation, completed);
+				} else {
+					mask(config.documents, config.skipValidation, completed);
+				}
+			} catch (DatamaskException e) {
+				log.error(e.getMessage());
+				failed = true;
+			} finally {
+				if (journal != null) {
+					journal.close();
+				}
+				if (manifest != null) {
+					manifest.save();
+				}
+			}
+		} finally {
+			if (service != null && !awaitWorkers(service)) {
+				failed = true;
+			}
+			SurrogateDictionary.getInstance().logStats();
+			SurrogateDictionary.getInstance().close();
 		}
 		log.debug("igia-datamask ending");
+		if (failed) {
+			System.exit(-1);
+		}
 	}
-	
+
+	// waits for the workers of the coordinator, and stops serving them; false if they did not all finish
+	private static boolean awaitWorkers(DictionaryService service) {
+		log.info("Waiting for " + config.workers + " workers to finish");
+		try {
+			service.awaitWorkers(config.workers, TimeUnit.SECONDS.toMillis(config.workerTimeout));
+			return true;
+		} catch (DatamaskException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			service.close();
+		}
+	}
+
+	// masks the documents one at a time, counting failures as BatchScheduler does
+	private static void mask(List<SourceDocument<?>> documents, Boolean skipValidation,
+			Consumer<SourceDocument<?>> completed) {
+		int failed = 0;
+		for (SourceDocument<?> doc : documents) {
+			try {
+				if (mask(doc, skipValidation)) {
+					completed.accept(doc);
+					continue;
+				}
+				log.error("Failed to mask input file '" + doc.inputFile + "'");
+			} catch (RuntimeException e) {
+				log.error("Failed to mask input file '" + doc.inputFile + "'; " + e.toString());
+			}
+			failed++;
+		}
+		if (failed > 0) {
+			throw new DatamaskException(failed + " of " + documents.size() + " documents failed to mask");
+		}
+	}
+
+	private static void serve() {
+		if (!config.documents.isEmpty()) {
+			log.error("--serve masks the bodies of requests, and cannot be given documents to mask");
+			System.exit(-1);
+		}
+		MaskingServer server = null;
+		try {
+			server = MaskingServer.start(config.serveAddress, config.servePort, config.serveThreads,
+					MaskingProfile.loadAll(config.profilesFile));
+		} catch (DatamaskException e) {
+			log.error("Failed to start the masking service; " + e.getMessage());
+			System.exit(-1);
+		}
+		MaskingServer running = server;
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			running.stop();
+			SurrogateDictionary.getInstance().logStats();
+			SurrogateDictionary.getInstance().close();
+			log.debug("igia-datamask ending");
+		}, "datamask-shutdown"));
+	}
+
+	private static boolean mask(SourceDocument<?> doc, Boolean skipValidation) {
+		log.debug("Processing: type=" + doc.type+ ", config=" + doc.configFile + ", schema=" + doc.schemaFile + ", input=" + doc.inputFile + ", output="
+				+ doc.outputFile);
+		return doc.mask(skipValidation);
+	}
+
+	// masked output written to standard output must not be mixed with log messages
+	private static void logToStandardError() {
+		for (Enumeration<?> e = Logger.getRootLogger().getAllAppenders(); e.hasMoreElements();) {
+			Object appender = e.nextElement();
+			if (appender instanceof ConsoleAppender) {
+				ConsoleAppender console = (ConsoleAppender) appender;
+				console.setTarget(ConsoleAppender.SYSTEM_ERR);
+				console.activateOptions();
+			}
+		}
+	}
+
 	private static CommandLine parseCommandLine(String[] args) 
 	{
 		// Usage:
 		// <command> -m type:xml,config:example.xml,schema:example.xsd,in:example.xml,out:example-masked.xml
 		// <command> --mask=type:xml,config:example.xml,schema:example.xsd,in:example.xml,out:example-masked.xml
 		// <command> --skip-schema-validation --mask=type:xml,config:example.xml,schema:example.xsd,in:example.xml,out:example-masked.xml
+		// <command> --mask=type:xml,engine:stream,config:example.xml,schema:example.xsd,in:example.xml,out:example-masked.xml
+		// <command> --skip-schema-validation --mask=type:ndjson,config:configs,in:Patient.ndjson,out:Patient-masked.ndjson
+		// <command> --skip-schema-validation --mask=type:ndjson,config:example.xml,in:-,out:-
+		// <command> --mask=type:xml,engine:stream,root:Patient,config:example.xml,schema:example.xsd,in:-,out:-
+		// <command> --compile=config:example.xml,out:example.plan
+		// <command> --threads=8 --mask=type:xml,config:example.xml,schema:example.xsd,in:example1.xml,out:example1-masked.xml --mask=...
+		// <command> --threads=8 --batch=type:xml,config:example.xml,schema:example.xsd,in:data/**/*.xml,out:masked
+		// <command> --threads=8 --manifest=batch.manifest
+		// <command> --pipeline --threads=4 --batch=type:json,config:example.xml,schema:example.json,in:data,out:masked
+		// <command> --dictionary=offheap --mask=type:xml,config:example.xml,schema:example.xsd,in:example.xml,out:example-masked.xml
+		// <command> --dictionary=file:surrogates.dict --mask=type:xml,config:example.xml,schema:example.xsd,in:example.xml,out:example-masked.xml
+		// <command> --compact-dictionary=surrogates.dict
+		// <command> --incremental=nightly.manifest --threads=8 --batch=type:json,config:example.xml,schema:example.json,in:data,out:masked
+		// <command> --coordinator=port:7070,workers:2,address:10.0.0.1 --shard=0/3 --dictionary=file:surrogates.dict --batch=...
+		// <command> --worker=10.0.0.1:7070 --shard=1/3 --batch=type:xml,config:example.xml,schema:example.xsd,in:data,out:masked
+		// <command> --serve=port:8080,profiles:profiles.txt[,threads:8][,address:0.0.0.0]
+		// <command> --resume=run.journal --threads=8 --batch=type:xml,config:example.xml,schema:example.xsd,in:data,out:masked
+		// <command> --key-file=datamask.key --mask=type:xml,config:example.xml,schema:example.xsd,in:example.xml,out:example-masked.xml
+		// <command> --catalog=schemas --mask=type:xml,config:example.xml,schema:example.xsd,in:example.xml,out:example-masked.xml
 		Option mOption = Option.builder("m").longOpt("mask").hasArg()
 				.desc("Mask xml/json file using config and validate with schema.").build();
+		Option cOption = Option.builder("c").longOpt("compile").hasArg()
+				.desc("Validate config and write it to a plan file that can be used as the config of --mask.").build();
+		Option kOption = Option.builder("k").longOpt("catalog").hasArg()
+				.desc("Directory of local copies of imported schemas and DTDs.").build();
+		Option tOption = Option.builder("t").longOpt("threads").hasArg()
+				.desc("Number of documents masked in parallel.").build();
+		Option dOption = Option.builder("d").longOpt("dictionary").hasArg()
+				.desc("Where surrogates are kept: heap (default), offheap, or file:<dictionary file>.").build();
+		Option pOption = Option.builder("p").longOpt("compact-dictionary").hasArg()
+				.desc("Fold the records appended to a dictionary file into its table.").build();
+		Option sOption = Option.builder("s").longOpt("key-file").hasArg()
+				.desc("File holding a secret key from which identifiers, names, emails, numbers and date offsets are derived.").build();
+		Option bOption = Option.builder("b").longOpt("batch").hasArg()
+				.desc("Mask every file of a directory tree or matching glob patterns into an output directory.").build();
+		Option fOption = Option.builder("f").longOpt("manifest").hasArg()
+				.desc("File listing one --mask or --batch parameter set per line.").build();
+		Option lOption = Option.builder("l").longOpt("pipeline")
+				.desc("Read, mask and write documents in overlapping stages, writing outputs in order.").build();
+		Option rOption = Option.builder("r").longOpt("resume").hasArg()
+				.desc("Journal of the documents masked, so that a run that stopped can be resumed.").build();
+		Option iOption = Option.builder("i").longOpt("incremental").hasArg()
+				.desc("Manifest of input and plan hashes; mask only inputs new or changed since the last run.").build();
+		Option oOption = Option.builder("o").longOpt("coordinator").hasArg()
+				.desc("Serve the surrogate dictionary to the workers of a sharded run, and wait for them to finish.").build();
+		Option wOption = Option.builder("w").longOpt("worker").hasArg()
+				.desc("Mask with the surrogate dictionary of the coordinator at host:port.").build();
+		Option nOption = Option.builder("n").longOpt("shard").hasArg()
+				.desc("Mask only shard <index>/<count> of the documents.").build();
+		Option eOption = Option.builder("e").longOpt("serve").hasArg()
+				.desc("Serve POST /mask/<profile> over http, masking request bodies with preloaded profiles.").build();
 		Option xOption = Option.builder("x").longOpt("skip-schema-validation").desc("Skip validation with xsd/json schema.").build();
 		Options options = new Options();
 		options.addOption(mOption);
+		options.addOption(bOption);
+		options.addOption(fOption);
+		options.addOption(cOption);
+		options.addOption(kOption);
+		options.addOption(tOption);
+		options.addOption(lOption);
+		options.addOption(rOption);
+		options.addOption(iOption);
+		options.addOption(oOption);
+		options.addOption(wOption);
+		options.addOption(nOption);
+		options.addOption(eOption);
+		options.addOption(dOption);
+		options.addOption(pOption);
+		options.addOption(sOption);
 		options.addOption(xOption);
 		CommandLineParser parser = new DefaultParser();
 		try {
@@ -105,7 +385,18 @@ public class Datamask {
 		} catch (ParseException e) {
 			log.error("Invalid command line option.");
 			log.error(
-					"Option must be in format: --mask=type:<xml|json>,config:example.xml,schema:example.xsd,in:example.xml,out:example-masked.xml [ --skip-schema-validation ]");
+					"Option must be in format: --mask=type:<xml|json|ndjson>[,engine:<dom|stream>],config:example.xml,schema:example.xsd,in:example.xml,out:example-masked.xml [ --skip-schema-validation ]");
+			log.error("Use in:- and out:- to read standard input and write standard output with type:ndjson or engine:stream, and root:<element> to mask a stream of xml documents.");
+			log.error("or: --batch=type:<xml|json|ndjson>[,engine:<dom|stream>],config:example.xml,schema:example.xsd,in:<dir|glob>[;<dir|glob>...],out:<dir>");
+			log.error("or: --manifest=<file with one --mask or --batch parameter set per line>");
+			log.error("or: --compile=config:example.xml,out:example.plan");
+			log.error("or: --serve=port:<port>,profiles:<file with one name=type:<xml|json>,config:<file>[,schema:<file>] per line>[,threads:<n>][,address:<address>]");
+			log.error("or: --compact-dictionary=surrogates.dict");
+			log.error("Use --incremental=<manifest file> to mask only the inputs that changed since the last run with that manifest.");
+			log.error("Use --shard=<index>/<count> to mask a part of the documents, with --coordinator=port:<port>,workers:<n>[,address:<address>][,timeout:<seconds>] on one process and --worker=<host>:<port> on the others to share its dictionary.");
+			log.error("Use --resume=<journal file> to record the documents masked, and skip them when the run is started again.");
+			log.error("Use --key-file=<file> to derive masked values from a secret key instead of a dictionary.");
+			log.error("Use --catalog=<dir> to resolve imported schemas from a local directory, --threads=<n> to mask documents in parallel, --pipeline to overlap reading and writing with masking, and --dictionary=<offheap|file:surrogates.dict> to keep surrogates off the heap or in a file.");
 			return null;
 		}
 	}
@@ -117,32 +408,303 @@ public class Datamask {
 				config.skipValidation = true;
 			} else if (o.getLongOpt().equalsIgnoreCase("mask")) {
 				processDatamaskOptionSet(o);
+			} else if (o.getLongOpt().equalsIgnoreCase("batch")) {
+				processBatchOptionSet(o.getValue());
+			} else if (o.getLongOpt().equalsIgnoreCase("manifest")) {
+				processManifest(o.getValue());
+			} else if (o.getLongOpt().equalsIgnoreCase("pipeline")) {
+				config.pipeline = true;
+			} else if (o.getLongOpt().equalsIgnoreCase("threads")) {
+				try {
+					config.threads = Integer.parseInt(o.getValue());
+				} catch (NumberFormatException e) {
+					config.threads = 0;
+				}
+				if (config.threads < 1) {
+					log.error("Invalid number of threads '" + o.getValue() + "'");
+					System.exit(-1);
+				}
+			} else if (o.getLongOpt().equalsIgnoreCase("resume")) {
+				config.resume = o.getValue();
+			} else if (o.getLongOpt().equalsIgnoreCase("incremental")) {
+				config.incremental = o.getValue();
+			} else if (o.getLongOpt().equalsIgnoreCase("coordinator")) {
+				processCoordinatorOptionSet(o.getValue());
+			} else if (o.getLongOpt().equalsIgnoreCase("serve")) {
+				processServeOptionSet(o.getValue());
+			} else if (o.getLongOpt().equalsIgnoreCase("worker")) {
+				config.worker = o.getValue();
+			} else if (o.getLongOpt().equalsIgnoreCase("shard")) {
+				String[] shard = o.getValue().split("/");
+				try {
+					config.shard = Integer.parseInt(shard[0]);
+					config.shards = shard.length == 2 ? Integer.parseInt(shard[1]) : 0;
+				} catch (NumberFormatException e) {
+					config.shards = 0;
+				}
+				if (config.shards < 1 || config.shard < 0 || config.shard >= config.shards) {
+					log.error("Invalid shard '" + o.getValue() + "'; must be <index>/<count>, from 0/<count>");
+					System.exit(-1);
+				}
+			} else if (o.getLongOpt().equalsIgnoreCase("dictionary")) {
+				config.dictionary = o.getValue();
+				if ("offheap".equalsIgnoreCase(o.getValue())) {
+					SurrogateDictionary.setInstance(new OffHeapSurrogateDictionary());
+				} else if (o.getValue().toLowerCase().startsWith("file:")) {
+					try {
+						SurrogateDictionary.setInstance(PersistentSurrogateDictionary.open(o.getValue().substring(5)));
+					} catch (DatamaskException e) {
+						System.exit(-1);
+					}
+				} else if (!"heap".equalsIgnoreCase(o.getValue())) {
+					log.error("Invalid dictionary '" + o.getValue() + "'; must be heap, offheap or file:<dictionary file>");
+					System.exit(-1);
+				}
+			} else if (o.getLongOpt().equalsIgnoreCase("key-file")) {
+				try {
+					MaskingKey.load(o.getValue());
+				} catch (DatamaskException e) {
+					System.exit(-1);
+				}
+			} else if (o.getLongOpt().equalsIgnoreCase("compact-dictionary")) {
+				try {
+					PersistentSurrogateDictionary.compact(o.getValue());
+				} catch (DatamaskException e) {
+					System.exit(-1);
+				}
+			} else if (o.getLongOpt().equalsIgnoreCase("catalog")) {
+				try {
+					CatalogResolver.getInstance().addDirectory(o.getValue());
+				} catch (DatamaskException e) {
+					System.exit(-1);
+				}
+			} else if (o.getLongOpt().equalsIgnoreCase("compile")) {
+				processCompileOptionSet(o);
 			} else {
 				log.error("Invalid masking option '" + o.getLongOpt() + "'");
 				System.exit(-1);
 			}
 		}
+		// a worker masks with the dictionary of its coordinator, which must outlive the run in its place
+		if (config.worker != null) {
+			if (config.dictionary != null || config.workers > 0) {
+				log.error("--worker uses the dictionary of the coordinator, and cannot be given --dictionary or --coordinator");
+				System.exit(-1);
+			}
+			int colon = config.worker.lastIndexOf(':');
+			try {
+				SurrogateDictionary.setInstance(new RemoteSurrogateDictionary(config.worker.substring(0, colon),
+						Integer.parseInt(config.worker.substring(colon + 1))));
+			} catch (IndexOutOfBoundsException | NumberFormatException e) {
+				log.error("Invalid worker '" + config.worker + "'; must be <host>:<port> of the coordinator");
+				System.exit(-1);
+			} catch (DatamaskException e) {
+				System.exit(-1);
+			}
+			return;
+		}
+		// surrogates must outlive the run to mask the remaining or changed documents the same way
+		if (config.resume != null) {
+			requireDictionaryFile("resume", config.resume + CheckpointJournal.DICTIONARY_SUFFIX);
+		}
+		if (config.incremental != null) {
+			requireDictionaryFile("incremental", config.incremental + ContentManifest.DICTIONARY_SUFFIX);
+		}
+	}
+
+	private static void processServeOptionSet(String value) {
+		for (String property : value.split(",")) {
+			String[] p = property.split(":", 2);
+			if (p.length != 2) {
+				log.error("Invalid command line option");
+				System.exit(-1);
+			}
+			try {
+				if (p[0].equalsIgnoreCase("port")) {
+					config.servePort = Integer.parseInt(p[1]);
+				} else if (p[0].equalsIgnoreCase("threads")) {
+					config.serveThreads = Integer.parseInt(p[1]);
+				} else if (p[0].equalsIgnoreCase("address")) {
+					config.serveAddress = p[1];
+				} else if (p[0].equalsIgnoreCase("profiles")) {
+					config.profilesFile = p[1];
+				} else {
+					log.error("Invalid serve parameter key '" + p[0] + "'");
+					System.exit(-1);
+				}
+			} catch (NumberFormatException e) {
+				log.error("Invalid serve parameter '" + property + "'");
+				System.exit(-1);
+			}
+		}
+		if (config.servePort < 0 || config.profilesFile == null || config.serveThreads < 1) {
+			log.error("Insufficient serve parameter keys specified; requires: port, profiles");
+			System.exit(-1);
+		}
+	}
+
+	private static void processCoordinatorOptionSet(String value) {
+		for (String property : value.split(",")) {
+			String[] p = property.split(":", 2);
+			if (p.length != 2) {
+				log.error("Invalid command line option");
+				System.exit(-1);
+			}
+			try {
+				if (p[0].equalsIgnoreCase("port")) {
+					config.coordinatorPort = Integer.parseInt(p[1]);
+				} else if (p[0].equalsIgnoreCase("workers")) {
+					config.workers = Integer.parseInt(p[1]);
+				} else if (p[0].equalsIgnoreCase("address")) {
+					config.coordinatorAddress = p[1];
+				} else if (p[0].equalsIgnoreCase("timeout")) {
+					config.workerTimeout = Integer.parseInt(p[1]);
+				} else {
+					log.error("Invalid coordinator parameter key '" + p[0] + "'");
+					System.exit(-1);
+				}
+			} catch (NumberFormatException e) {
+				log.error("Invalid coordinator parameter '" + property + "'");
+				System.exit(-1);
+			}
+		}
+		if (config.coordinatorPort < 0 || config.workers < 1) {
+			log.error("Insufficient coordinator parameter keys specified; requires: port, workers");
+			System.exit(-1);
+		}
+		if (config.workerTimeout < 1) {
+			log.error("Invalid coordinator timeout " + config.workerTimeout + "; must be at least 1 second");
+			System.exit(-1);
+		}
+	}
+
+	// opens the given dictionary file unless one was chosen with --dictionary
+	private static void requireDictionaryFile(String option, String defaultFile) {
+		if (config.dictionary == null) {
+			try {
+				SurrogateDictionary.setInstance(PersistentSurrogateDictionary.open(defaultFile));
+			} catch (DatamaskException e) {
+				System.exit(-1);
+			}
+			config.dictionary = "file:" + defaultFile;
+		} else if (!config.dictionary.toLowerCase().startsWith("file:")) {
+			log.error("--" + option + " requires a dictionary file; use --dictionary=file:<dictionary file> or no --dictionary");
+			System.exit(-1);
+		}
 	}
 
 	private static void processDatamaskOptionSet(Option o) {
-		
+		OptionGroup opts = parseDatamaskOptionSet(o.getValue());
+		config.documents.add(newDocument(opts, opts.inputFile, opts.outputFile));
+	}
+
+	// a batch has the parameters of --mask, with a directory or glob patterns as input and a directory as output
+	private static void processBatchOptionSet(String value) {
+		OptionGroup opts = parseDatamaskOptionSet(value);
+		try {
+			for (String[] file : BatchScheduler.expand(opts.inputFile, opts.outputFile)) {
+				config.documents.add(newDocument(opts, file[0], file[1]));
+			}
+		} catch (DatamaskException e) {
+			System.exit(-1);
+		}
+	}
+
+	// each line of a manifest is the parameter set of a --mask option, or of a --batch option when
+	// the input is a directory or glob pattern; blank lines and lines starting with # are ignored
+	private static void processManifest(String manifestFile) {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(Paths.get(manifestFile), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			log.error("Failed to read manifest file '" + manifestFile + "'; " + e.toString());
+			System.exit(-1);
+			return;
+		}
+		for (String line : lines) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			log.debug("Manifest entry: " + line);
+			OptionGroup opts = parseDatamaskOptionSet(line);
+			if (Files.isRegularFile(Paths.get(opts.inputFile))) {
+				config.documents.add(newDocument(opts, opts.inputFile, opts.outputFile));
+			} else {
+				processBatchOptionSet(line);
+			}
+		}
+	}
+
+	private static OptionGroup parseDatamaskOptionSet(String value) {
 		OptionGroup opts = new OptionGroup();
 
-		String[] properties = o.getValue().split(",");
+		String[] properties = value.split(",");
 		for (String property : properties) {
 			processDatamaskOptionProperty(opts, property);
 		}
-		// store away the option
 		if (opts.inputType==null || opts.configFile==null || (config.skipValidation==false && opts.schemaFile==null) || opts.inputFile==null || opts.outputFile==null) {
 			log.error("Insufficient data masking parameter keys specified; requires: config, schema, in, out, type");
 			System.exit(-1);
+		}
+		boolean streamed = "ndjson".equals(opts.inputType) || "stream".equals(opts.engine);
+		if (!streamed && (SourceDocument.STANDARD_STREAM.equals(opts.inputFile)
+				|| SourceDocument.STANDARD_STREAM.equals(opts.outputFile))) {
+			log.error("Standard input and output (-) require type:ndjson or engine:stream");
+			System.exit(-1);
+		}
+		if (opts.recordElement != null && !("xml".equals(opts.inputType) && "stream".equals(opts.engine))) {
+			log.error("Parameter key 'root' requires type:xml and engine:stream");
+			System.exit(-1);
+		}
+		return opts;
+	}
+
+	private static SourceDocument<?> newDocument(OptionGroup opts, String inputFile, String outputFile) {
+		if ("ndjson".equalsIgnoreCase(opts.inputType)) {
+			return new NdjsonSourceDocument(opts.inputType, opts.configFile, opts.schemaFile, inputFile, outputFile);
+		} else if ("xml".equalsIgnoreCase(opts.inputType) && "stream".equalsIgnoreCase(opts.engine)) {
+			XmlStreamSourceDocument doc = new XmlStreamSourceDocument(opts.inputType, opts.configFile, opts.schemaFile,
+					inputFile, outputFile);
+			doc.setRecordElement(opts.recordElement);
+			return doc;
+		} else if ("xml".equalsIgnoreCase(opts.inputType)) {
+			return new XmlSourceDocument(opts.inputType, opts.configFile, opts.schemaFile, inputFile, outputFile);
+		} else if ("json".equalsIgnoreCase(opts.inputType) && "stream".equalsIgnoreCase(opts.engine)) {
+			return new JsonStreamSourceDocument(opts.inputType, opts.configFile, opts.schemaFile, inputFile, outputFile);
 		} else {
-			if ("xml".equalsIgnoreCase(opts.inputType)) {
-				config.documents.add(new XmlSourceDocument(opts.inputType, opts.configFile, opts.schemaFile, opts.inputFile, opts.outputFile));
-			} else if ("json".equalsIgnoreCase(opts.inputType)) {
-				config.documents.add(new JsonSourceDocument(opts.inputType, opts.configFile, opts.schemaFile, opts.inputFile, opts.outputFile));
+			return new JsonSourceDocument(opts.inputType, opts.configFile, opts.schemaFile, inputFile, outputFile);
+		}
+	}
+
+	private static void processCompileOptionSet(Option o) {
+		String configFile = null;
+		String planFile = null;
+		for (String property : o.getValue().split(",")) {
+			String[] p = property.split(":");
+			if (p.length != 2) {
+				log.error("Invalid command line option");
+				System.exit(-1);
+			}
+			if (p[0].equalsIgnoreCase("config")) {
+				configFile = p[1];
+			} else if (p[0].equalsIgnoreCase("out")) {
+				planFile = p[1];
+			} else {
+				log.error("Invalid compile parameter key '" + p[0] + "'");
+				System.exit(-1);
 			}
 		}
+		if (configFile == null || planFile == null) {
+			log.error("Insufficient compile parameter keys specified; requires: config, out");
+			System.exit(-1);
+		}
+		try {
+			MaskingPlan.compile(configFile, planFile);
+		} catch (DatamaskException e) {
+			log.error("Failed to compile config '" + configFile + "'; " + e.getMessage());
+			System.exit(-1);
+		}
 	}
 
 	private static void processDatamaskOptionProperty(OptionGroup opts, String property) {
@@ -161,10 +723,19 @@ public class Datamask {
 			opts.outputFile = p[1];
 		} else if (p[0].equalsIgnoreCase("type")) {
 			opts.inputType = p[1]!=null?p[1].toLowerCase():null;
-			if (!"json".equalsIgnoreCase(opts.inputType) && !"xml".equalsIgnoreCase(opts.inputType)) {
+			if (!"json".equalsIgnoreCase(opts.inputType) && !"xml".equalsIgnoreCase(opts.inputType)
+					&& !"ndjson".equalsIgnoreCase(opts.inputType)) {
 				log.error("Invalid input file format type '" + opts.inputType + "'");
 				System.exit(-1);
 			}
+		} else if (p[0].equalsIgnoreCase("root")) {
+			opts.recordElement = p[1];
+		} else if (p[0].equalsIgnoreCase("engine")) {
+			opts.engine = p[1].toLowerCase();
+			if (!"dom".equals(opts.engine) && !"stream".equals(opts.engine)) {
+				log.error("Invalid masking engine '" + opts.engine + "'");
+				System.exit(-1);
+			}
 		} else {
 			log.error("Invalid data mask parameter key '" + p[0] + "'");
 			System.exit(-1);
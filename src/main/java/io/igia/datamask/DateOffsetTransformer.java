@@ -73,6 +73,8 @@ public class DateOffsetTransformer extends Transformer {
 	protected static final int RANDOM_RANGE_HIGH = 365 * SECONDS_PER_DAY;
 	protected static final int RANDOM = new SecureRandom().nextInt(RANDOM_RANGE_HIGH - RANDOM_RANGE_LOW) + RANDOM_RANGE_LOW;
 	protected int secondsOffset; // number of seconds to offset
+	// dictionary namespace of the state shared by every value of a run, apart from the rule namespaces
+	static final String RUN_NAMESPACE = "RUN";
 
 	public DateOffsetTransformer() {
 		super();
@@ -120,7 +122,7 @@ public class DateOffsetTransformer extends Transformer {
 			//https://stackoverflow.com/questions/22588051/is-java-time-failing-to-parse-fraction-of-second
 			DateTimeFormatter dtf = DateTimeFormat.forPattern(dtm.formatString);
 			DateTime dateTime = dtf.parseDateTime(value);
-			dateTime = offset(dateTime, secondsOffset);
+			dateTime = offset(dateTime, getSecondsOffset());
 			return dateTime.toString(dtf);
 		} else {
 			// no match found, so remove the PHI
@@ -129,6 +131,20 @@ public class DateOffsetTransformer extends Transformer {
 		}
 	}
 
+	// the offset is kept in the dictionary like a surrogate, so every run and shard sharing the dictionary
+	// shifts dates by the same offset and intervals between dates are kept; with a masking key every
+	// process derives the same offset
+	protected int getSecondsOffset() {
+		String offset = SurrogateDictionary.current().getSurrogate(RUN_NAMESPACE, "DATE_OFFSET", false, v -> {
+			MaskingKey key = MaskingKey.getInstance();
+			if (key == null) {
+				return Integer.toString(secondsOffset);
+			}
+			return Integer.toString(key.random("DATE_OFFSET", "").nextInt(RANDOM_RANGE_HIGH - RANDOM_RANGE_LOW) + RANDOM_RANGE_LOW);
+		});
+		return Integer.parseInt(offset);
+	}
+
 	protected DateTime offset(DateTime dateTime, int secondsOffset) {
 		return dateTime.minusSeconds(secondsOffset);
 	}
@@ -0,0 +1,278 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Serves the surrogate dictionary of a coordinator to the workers of a
+ * sharded run, over TCP, so that every worker masks a value the way the first
+ * one to mask it did.
+ *
+ * A worker asks for the surrogate of a value with a candidate it made itself;
+ * the coordinator keeps the first candidate it receives for a value and
+ * returns it to every later request. The dictionary of the coordinator thus
+ * ends the run holding the surrogates of every worker, and is saved as usual
+ * when it is a dictionary file. State a run draws once, such as the date
+ * offset, is kept in the dictionary too, so every worker uses the first
+ * worker's.
+ *
+ * Each connection is served by its own thread, and answers its requests in
+ * order. A connection starts with {@link #HELLO} and the id of its worker,
+ * which may open several. A worker sends {@link #DONE} once when it has
+ * finished; a worker whose connections all close before then has failed.
+ */
+final class DictionaryService {
+
+	static final Logger log = Logger.getLogger(DictionaryService.class);
+
+	// requests: the operation byte, then its arguments
+	static final byte SURROGATE = 'S'; // namespace, value, indexed, candidate -> surrogate
+	static final byte LOOKUP = 'L'; // value -> surrogate
+	static final byte DONE = 'D'; // -> acknowledged
+	static final byte HELLO = 'H'; // worker id, first on each connection -> nothing
+
+	private static final int MAX_STRING = 64 << 20;
+
+	private final ServerSocket server;
+	private final SurrogateDictionary dictionary;
+	private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "datamask-dictionary-service");
+		t.setDaemon(true);
+		return t;
+	});
+	private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+	// guarded by this
+	private final Map<String, Integer> connected = new HashMap<>(); // open connections by worker id
+	private final Set<String> finished = new HashSet<>(); // workers that sent DONE
+	private final Set<String> dropped = new HashSet<>(); // workers disconnected without DONE
+
+	private DictionaryService(ServerSocket server, SurrogateDictionary dictionary) {
+		this.server = server;
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * Starts serving a dictionary on a port of a local address. Requests are
+	 * neither authenticated nor encrypted, and the dictionary tells whether a
+	 * value was masked, so the address must only be reachable from the
+	 * workers.
+	 *
+	 * @param address
+	 *            the local address, or null for the loopback address
+	 */
+	static DictionaryService start(String address, int port, SurrogateDictionary dictionary) {
+		ServerSocket server;
+		try {
+			server = new ServerSocket();
+			server.setReuseAddress(true);
+			server.bind(address == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+					: new InetSocketAddress(address, port));
+		} catch (IOException e) {
+			log.error("Failed to listen on port " + port + "; " + e.getMessage());
+			throw new DatamaskException("Failed to listen on port " + port + "; " + e.getMessage());
+		}
+		DictionaryService service = new DictionaryService(server, dictionary);
+		Thread acceptor = new Thread(service::accept, "datamask-dictionary-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		log.info("Serving the surrogate dictionary on " + server.getLocalSocketAddress());
+		return service;
+	}
+
+	int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Waits until the given number of workers have finished or disconnected.
+	 * Waiting is bounded only while no unfinished worker is connected, so that
+	 * workers that never connect, or have failed, do not hold up the
+	 * coordinator, while those still masking are waited for.
+	 *
+	 * @param timeout
+	 *            how long to wait, in milliseconds, while no unfinished worker
+	 *            is connected
+	 * @throws DatamaskException
+	 *             if a worker disconnected before it finished, or the timeout
+	 *             expired
+	 */
+	synchronized void awaitWorkers(int workers, long timeout) throws InterruptedException {
+		long idleSince = System.nanoTime();
+		while (finished.size() + dropped.size() < workers) {
+			if (!finished.containsAll(connected.keySet())) {
+				// an unfinished worker is connected
+				idleSince = System.nanoTime();
+				wait(timeout);
+				continue;
+			}
+			long left = timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - idleSince);
+			if (left <= 0) {
+				String message = (workers - finished.size() - dropped.size()) + " of " + workers
+						+ " workers did not connect within " + timeout / 1000 + " seconds";
+				log.error(message);
+				throw new DatamaskException(message);
+			}
+			wait(left);
+		}
+		if (!dropped.isEmpty()) {
+			String message = dropped.size() + " of " + workers + " workers disconnected before they finished";
+			log.error(message);
+			throw new DatamaskException(message);
+		}
+	}
+
+	void close() {
+		try {
+			server.close();
+		} catch (IOException e) {
+			log.debug("Failed to close dictionary service; " + e.getMessage());
+		}
+		for (Socket socket : open) {
+			closeQuietly(socket);
+		}
+		connections.shutdownNow();
+	}
+
+	private void accept() {
+		while (!server.isClosed()) {
+			try {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				open.add(socket);
+				connections.execute(() -> serve(socket));
+			} catch (IOException e) {
+				if (!server.isClosed()) {
+					log.error("Failed to accept a worker connection; " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		String worker = null;
+		try (Socket s = socket) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			if (in.read() != HELLO) {
+				log.error("Invalid connection from " + s.getRemoteSocketAddress() + "; not a datamask worker");
+				return;
+			}
+			worker = readString(in);
+			synchronized (this) {
+				connected.merge(worker, 1, Integer::sum);
+			}
+			while (true) {
+				int op = in.read();
+				if (op < 0) {
+					return;
+				}
+				if (op == SURROGATE) {
+					String namespace = readString(in);
+					String value = readString(in);
+					boolean indexed = in.readBoolean();
+					String candidate = readString(in);
+					writeString(out, dictionary.getSurrogate(namespace, value, indexed, v -> candidate));
+				} else if (op == LOOKUP) {
+					writeString(out, dictionary.lookup(readString(in)));
+				} else if (op == DONE) {
+					synchronized (this) {
+						finished.add(worker);
+						notifyAll();
+					}
+					out.writeBoolean(true);
+					log.info("Worker " + s.getRemoteSocketAddress() + " has finished");
+				} else {
+					log.error("Invalid request " + op + " from " + s.getRemoteSocketAddress());
+					return;
+				}
+				if (in.available() == 0) {
+					out.flush();
+				}
+			}
+		} catch (EOFException | SocketException e) {
+			// the worker closed the connection
+		} catch (IOException e) {
+			log.error("Failed to serve a worker connection; " + e.getMessage());
+		} finally {
+			open.remove(socket);
+			if (worker != null) {
+				disconnected(worker, socket);
+			}
+		}
+	}
+
+	private synchronized void disconnected(String worker, Socket socket) {
+		if (connected.merge(worker, -1, Integer::sum) > 0) {
+			return;
+		}
+		connected.remove(worker);
+		if (!finished.contains(worker) && !server.isClosed()) {
+			log.error("Worker " + socket.getRemoteSocketAddress() + " disconnected before it finished");
+			dropped.add(worker);
+		}
+		notifyAll();
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > MAX_STRING) {
+			throw new IOException("String of " + length + " bytes is too long");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.debug("Failed to close worker connection; " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Masks many documents in three overlapping stages: a reader thread parses and
+ * validates the documents due next, a pool of workers masks them, and the
+ * calling thread writes them out in the order given, so runs give the same
+ * output files in the same order whatever the number of workers.
+ *
+ * The stages are joined by bounded queues. The reader stops when the workers
+ * fall behind, and both stop when a slow document holds up the writer, so no
+ * more than a few documents per worker are held in memory at once.
+ */
+final class DocumentPipeline {
+
+	static final Logger log = Logger.getLogger(DocumentPipeline.class);
+
+	// a document passing through the stages
+	private static final class Slot {
+		final int index;
+		final SourceDocument<?> document;
+		boolean read;
+		Throwable error;
+
+		Slot(int index, SourceDocument<?> document) {
+			this.index = index;
+			this.document = document;
+		}
+	}
+
+	// tells a worker that no documents are left
+	private static final Slot END = new Slot(-1, null);
+
+	private final List<SourceDocument<?>> documents;
+	private final int threads;
+	private final Boolean skipValidation;
+	private final Consumer<SourceDocument<?>> completed;
+
+	// documents read and not yet written; bounds the documents held in memory
+	private final Semaphore inFlight;
+	private final BlockingQueue<Slot> parsed;
+
+	// masked documents waiting for the documents before them to be written
+	private final Map<Integer, Slot> masked = new HashMap<>();
+
+	private DocumentPipeline(List<SourceDocument<?>> documents, int threads, Boolean skipValidation,
+			Consumer<SourceDocument<?>> completed) {
+		this.documents = documents;
+		this.threads = threads;
+		this.skipValidation = skipValidation;
+		this.completed = completed;
+		this.inFlight = new Semaphore(2 * threads + 1);
+		this.parsed = new ArrayBlockingQueue<>(threads);
+	}
+
+	/**
+	 * Reads, masks and writes the documents in pipelined stages, with the
+	 * given number of masking workers. Outputs are written in the order of the
+	 * documents.
+	 */
+	static void mask(List<SourceDocument<?>> documents, int threads, Boolean skipValidation) {
+		mask(documents, threads, skipValidation, doc -> {
+		});
+	}
+
+	/**
+	 * Masks the documents as {@link #mask(List, int, Boolean)} does, passing
+	 * each document written without error to a listener, in order.
+	 */
+	static void mask(List<SourceDocument<?>> documents, int threads, Boolean skipValidation,
+			Consumer<SourceDocument<?>> completed) {
+		new DocumentPipeline(documents, threads, skipValidation, completed).run();
+	}
+
+	private void run() {
+		log.debug("Masking " + documents.size() + " documents in a pipeline of 1 reader, " + threads
+				+ " workers and 1 writer");
+		Thread reader = new Thread(this::read, "datamask-reader");
+		reader.setDaemon(true);
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(this::transform, "datamask-worker-" + i);
+			workers[i].setDaemon(true);
+		}
+		reader.start();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		int failed = 0;
+		try {
+			failed = write();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DatamaskException("Interrupted while masking documents");
+		} finally {
+			reader.interrupt();
+			for (Thread worker : workers) {
+				worker.interrupt();
+			}
+		}
+		if (failed > 0) {
+			throw new DatamaskException(failed + " of " + documents.size() + " documents failed to mask");
+		}
+	}
+
+	// reader stage
+	private void read() {
+		try {
+			for (int i = 0; i < documents.size(); i++) {
+				inFlight.acquire();
+				Slot slot = new Slot(i, documents.get(i));
+				SourceDocument<?> doc = slot.document;
+				log.debug("Reading: type=" + doc.type + ", config=" + doc.configFile + ", schema=" + doc.schemaFile
+						+ ", input=" + doc.inputFile + ", output=" + doc.outputFile);
+				try {
+					doc.prepare();
+					doc.configure();
+					slot.read = doc.isMasked() && doc.readDocument(skipValidation);
+				} catch (Exception | Error e) {
+					slot.error = e;
+				}
+				parsed.put(slot);
+			}
+			for (int i = 0; i < threads; i++) {
+				parsed.put(END);
+			}
+		} catch (InterruptedException e) {
+			// the writer has stopped
+		}
+	}
+
+	// masking stage, run by each worker
+	private void transform() {
+		try {
+			for (Slot slot = parsed.take(); slot != END; slot = parsed.take()) {
+				if (slot.read && slot.error == null) {
+					try {
+						slot.document.transformDocument(skipValidation);
+					} catch (Exception | Error e) {
+						slot.error = e;
+					}
+				}
+				synchronized (masked) {
+					masked.put(slot.index, slot);
+					masked.notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			// the writer has stopped
+		}
+	}
+
+	// writer stage, run by the calling thread; returns the number of failures
+	private int write() throws InterruptedException {
+		int failed = 0;
+		for (int i = 0; i < documents.size(); i++) {
+			Slot slot;
+			synchronized (masked) {
+				while ((slot = masked.remove(i)) == null) {
+					masked.wait();
+				}
+			}
+			if (slot.read && slot.error == null) {
+				try {
+					slot.document.writeDocument();
+					if (slot.document.isMasked()) {
+						completed.accept(slot.document);
+					}
+				} catch (Exception | Error e) {
+					slot.error = e;
+				}
+			}
+			if (slot.error != null) {
+				log.error("Failed to mask input file '" + slot.document.inputFile + "'; " + slot.error.toString());
+				slot.document.clearOutput();
+				failed++;
+			} else if (!slot.read || !slot.document.isMasked()) {
+				log.error("Failed to mask input file '" + slot.document.inputFile + "'");
+				slot.document.clearOutput();
+				failed++;
+			}
+			inFlight.release();
+		}
+		return failed;
+	}
+}
@@ -22,20 +22,24 @@ import com.mifmif.common.regex.Generex;
  */
 public class EmailTransformer extends Transformer {
 	private static final String REGEX_STR = "[a-z]{2,6}[0-9-_]{1,3}[a-z]{3,7}[@]{1}[a-zA-Z0-9]{3,10}[.]{1}(com|net|org|edu|gov|uk|ca|mil|co|biz|info|name|tech|io|cn|au|in|fr)";
-	private Generex generex; 
+	// a generator is not thread safe, so each thread has its own
+	private final ThreadLocal<Generex> generex = ThreadLocal.withInitial(() -> new Generex(REGEX_STR));
 
 	EmailTransformer() {
 		super();
-		generex = new Generex(REGEX_STR);
 	}
 	
 	EmailTransformer(String xpath, String xpathTypeString, String rule, Map<String, String> params) {
 		super(xpath, xpathTypeString, rule, params);
-		generex = new Generex(REGEX_STR);
 	}
 
 	@Override
 	public String mask(String value) {
-		return generex.random();
+		Generex g = generex.get();
+		MaskingKey key = MaskingKey.getInstance();
+		if (key != null) {
+			g.setSeed(key.random(getNamespace(), value).nextLong());
+		}
+		return g.random();
 	}
 }
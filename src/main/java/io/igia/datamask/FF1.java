@@ -0,0 +1,292 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * FF1 format-preserving encryption, as specified in NIST SP 800-38G, with AES.
+ * A numeral string of a given radix is encrypted to a numeral string of the
+ * same radix and length. The domain, radix^length, must hold at least
+ * {@link #MIN_DOMAIN} values.
+ */
+final class FF1 {
+
+	static final int MIN_DOMAIN = 100;
+
+	private static final int ROUNDS = 10;
+	private static final int BLOCK = 16;
+
+	// ECB over single blocks, to build the CBC-MAC and the output blocks of the round function
+	private final ThreadLocal<Cipher> aes;
+
+	FF1(byte[] key) {
+		SecretKeySpec spec = new SecretKeySpec(key, "AES");
+		aes = ThreadLocal.withInitial(() -> {
+			try {
+				Cipher c = Cipher.getInstance("AES/ECB/NoPadding");
+				c.init(Cipher.ENCRYPT_MODE, spec);
+				return c;
+			} catch (GeneralSecurityException e) {
+				throw new DatamaskException("AES is not available; " + e.getMessage());
+			}
+		});
+	}
+
+	int[] encrypt(int[] numerals, int radix, byte[] tweak) {
+		return cipher(numerals, radix, tweak, true);
+	}
+
+	int[] decrypt(int[] numerals, int radix, byte[] tweak) {
+		return cipher(numerals, radix, tweak, false);
+	}
+
+	private int[] cipher(int[] x, int radix, byte[] tweak, boolean encrypt) {
+		int n = x.length;
+		if (n < 2 || radix < 2 || radix > 1 << 16) {
+			throw new DatamaskException("FF1 needs at least 2 numerals of a radix from 2 to 65536");
+		}
+		long domain = pow(radix, n);
+		if (domain != 0 && domain < MIN_DOMAIN) {
+			throw new DatamaskException("FF1 needs a domain of at least " + MIN_DOMAIN + " values; " + n
+					+ " numerals of radix " + radix + " have " + domain);
+		}
+		int u = n / 2;
+		int v = n - u;
+		long modU = pow(radix, u);
+		long modV = pow(radix, v);
+		// bytes of a number below radix^v, and of the round function output
+		int bLen = modV > 0 ? (64 - Long.numberOfLeadingZeros(modV - 1) + 7) / 8
+				: (BigInteger.valueOf(radix).pow(v).subtract(BigInteger.ONE).bitLength() + 7) / 8;
+		int d = 4 * ((bLen + 3) / 4) + 4;
+
+		int t = tweak.length;
+		byte[] p = new byte[BLOCK];
+		p[0] = 1;
+		p[1] = 2;
+		p[2] = 1;
+		p[3] = (byte) (radix >> 16);
+		p[4] = (byte) (radix >> 8);
+		p[5] = (byte) radix;
+		p[6] = ROUNDS;
+		p[7] = (byte) u;
+		putInt(p, 8, n);
+		putInt(p, 12, t);
+		byte[] q = new byte[t + Math.floorMod(-t - bLen - 1, BLOCK) + 1 + bLen];
+		System.arraycopy(tweak, 0, q, 0, t);
+
+		// the blocks of P || Q before the round number and NUM(B) are the same in every round
+		Cipher c = aes.get();
+		int fixed = (q.length - bLen - 1) / BLOCK * BLOCK;
+		byte[] mac = new byte[BLOCK];
+		encrypt(c, p, mac);
+		for (int offset = 0; offset < fixed; offset += BLOCK) {
+			xor(mac, q, offset);
+			encrypt(c, mac, mac);
+		}
+		Round round = new Round(c, mac, q, fixed, bLen, d);
+
+		if (modV > 0) {
+			return cipher(x, radix, u, modU, modV, round, encrypt);
+		}
+		BigInteger bigRadix = BigInteger.valueOf(radix);
+		return cipher(x, bigRadix, u, bigRadix.pow(u), bigRadix.pow(v), round, encrypt);
+	}
+
+	// radix^m, or 0 when it is not below 2^55 and the rounds need big integers
+	private static long pow(int radix, int m) {
+		long x = 1;
+		for (int i = 0; i < m; i++) {
+			x *= radix;
+			if (x >= 1L << 55) {
+				return 0;
+			}
+		}
+		return x;
+	}
+
+	// the Feistel rounds with numbers below 2^55, so they can be shifted, added and reduced as longs
+	private static int[] cipher(int[] x, int radix, int u, long modU, long modV, Round round, boolean encrypt) {
+		int n = x.length;
+		int v = n - u;
+		long a = num(x, 0, u, radix);
+		long b = num(x, u, n, radix);
+		for (int r = 0; r < ROUNDS; r++) {
+			int i = encrypt ? r : ROUNDS - 1 - r;
+			long mod = i % 2 == 0 ? modU : modV;
+			byte[] s = round.output(i, encrypt ? b : a);
+			long y = 0;
+			for (byte sb : s) {
+				y = ((y << 8) | (sb & 0xff)) % mod;
+			}
+			if (encrypt) {
+				long c = (a + y) % mod;
+				a = b;
+				b = c;
+			} else {
+				long c = Math.floorMod(b - y, mod);
+				b = a;
+				a = c;
+			}
+		}
+		int[] result = new int[n];
+		str(a, radix, result, 0, u);
+		str(b, radix, result, u, v);
+		return result;
+	}
+
+	private static int[] cipher(int[] x, BigInteger radix, int u, BigInteger modU, BigInteger modV, Round round,
+			boolean encrypt) {
+		int n = x.length;
+		int v = n - u;
+		BigInteger a = num(Arrays.copyOfRange(x, 0, u), radix);
+		BigInteger b = num(Arrays.copyOfRange(x, u, n), radix);
+		for (int r = 0; r < ROUNDS; r++) {
+			int i = encrypt ? r : ROUNDS - 1 - r;
+			BigInteger mod = i % 2 == 0 ? modU : modV;
+			BigInteger y = new BigInteger(1, round.output(i, encrypt ? b : a));
+			if (encrypt) {
+				BigInteger c = a.add(y).mod(mod);
+				a = b;
+				b = c;
+			} else {
+				BigInteger c = b.subtract(y).mod(mod);
+				b = a;
+				a = c;
+			}
+		}
+		int[] result = Arrays.copyOf(str(a, radix.intValue(), u), n);
+		System.arraycopy(str(b, radix.intValue(), v), 0, result, u, v);
+		return result;
+	}
+
+	// the round function: S, the CBC-MAC of P || Q extended with encryptions of itself xor a counter to d bytes
+	private static final class Round {
+		final Cipher c;
+		final byte[] mac;
+		final byte[] q;
+		final int fixed;
+		final int bLen;
+		final byte[] s;
+		final byte[] r = new byte[BLOCK];
+		final byte[] block = new byte[BLOCK];
+
+		Round(Cipher c, byte[] mac, byte[] q, int fixed, int bLen, int d) {
+			this.c = c;
+			this.mac = mac;
+			this.q = q;
+			this.fixed = fixed;
+			this.bLen = bLen;
+			this.s = new byte[d];
+		}
+
+		byte[] output(int i, long numB) {
+			for (int k = 0; k < bLen; k++) {
+				q[q.length - 1 - k] = (byte) (numB >>> (8 * k));
+			}
+			return output(i);
+		}
+
+		byte[] output(int i, BigInteger numB) {
+			putBytes(numB, q, q.length - bLen, bLen);
+			return output(i);
+		}
+
+		private byte[] output(int i) {
+			q[q.length - bLen - 1] = (byte) i;
+			System.arraycopy(mac, 0, r, 0, BLOCK);
+			for (int offset = fixed; offset < q.length; offset += BLOCK) {
+				xor(r, q, offset);
+				encrypt(c, r, r);
+			}
+			System.arraycopy(r, 0, s, 0, Math.min(BLOCK, s.length));
+			for (int j = 1; j * BLOCK < s.length; j++) {
+				System.arraycopy(r, 0, block, 0, BLOCK);
+				for (int k = 0; k < 4; k++) {
+					block[BLOCK - 1 - k] ^= (byte) (j >>> (8 * k));
+				}
+				encrypt(c, block, block);
+				System.arraycopy(block, 0, s, j * BLOCK, Math.min(BLOCK, s.length - j * BLOCK));
+			}
+			return s;
+		}
+	}
+
+	private static void encrypt(Cipher c, byte[] in, byte[] out) {
+		try {
+			// ECB without padding encrypts each whole block as it is given
+			c.update(in, 0, BLOCK, out, 0);
+		} catch (GeneralSecurityException e) {
+			throw new DatamaskException("Failed to encrypt with AES; " + e.getMessage());
+		}
+	}
+
+	private static void xor(byte[] block, byte[] src, int offset) {
+		for (int j = 0; j < BLOCK; j++) {
+			block[j] ^= src[offset + j];
+		}
+	}
+
+	private static long num(int[] numerals, int from, int to, int radix) {
+		long x = 0;
+		for (int i = from; i < to; i++) {
+			x = x * radix + numerals[i];
+		}
+		return x;
+	}
+
+	private static void str(long x, int radix, int[] numerals, int from, int m) {
+		for (int i = from + m - 1; i >= from; i--) {
+			numerals[i] = (int) (x % radix);
+			x /= radix;
+		}
+	}
+
+	private static BigInteger num(int[] numerals, BigInteger radix) {
+		BigInteger x = BigInteger.ZERO;
+		for (int numeral : numerals) {
+			x = x.multiply(radix).add(BigInteger.valueOf(numeral));
+		}
+		return x;
+	}
+
+	private static int[] str(BigInteger x, int radix, int m) {
+		int[] numerals = new int[m];
+		BigInteger bigRadix = BigInteger.valueOf(radix);
+		for (int i = m - 1; i >= 0; i--) {
+			BigInteger[] qr = x.divideAndRemainder(bigRadix);
+			numerals[i] = qr[1].intValue();
+			x = qr[0];
+		}
+		return numerals;
+	}
+
+	private static void putInt(byte[] dst, int offset, int value) {
+		for (int k = 0; k < 4; k++) {
+			dst[offset + k] = (byte) (value >>> (24 - 8 * k));
+		}
+	}
+
+	// writes a non-negative number as len big-endian bytes
+	private static void putBytes(BigInteger x, byte[] dst, int offset, int len) {
+		byte[] bytes = x.toByteArray();
+		int skip = Math.max(0, bytes.length - len);
+		Arrays.fill(dst, offset, offset + len, (byte) 0);
+		System.arraycopy(bytes, skip, dst, offset + len - (bytes.length - skip), bytes.length - skip);
+	}
+}
@@ -0,0 +1,214 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Encrypts identifiers with FF1 so that a masked value keeps the length and
+ * the character class of every position: digits stay digits, letters stay
+ * letters of the same case, and other characters, such as the dashes of an
+ * SSN, are kept as they are. A masked value is decrypted with the same key by
+ * {@link #unmask(String)}.
+ *
+ * The digits and letters of a value are encrypted together, as one number in
+ * which each position has the radix of its class, by FF1 over the bits of the
+ * number, with the positions of the classes and the other characters as the
+ * tweak. A value of one digit or letter, whose domain is too small for FF1, is
+ * permuted with a keyed shuffle of its domain instead, so every alphanumeric
+ * character is masked; short values are still permuted within a small domain.
+ *
+ * The AES key is derived from the {@link MaskingKey} when one is loaded, and is
+ * otherwise drawn at random for the process, so that without a key a value is
+ * masked the same way only by runs sharing the surrogate dictionary.
+ */
+public class FormatPreservingTransformer extends Transformer {
+
+	private static final FF1 RANDOM_CIPHER = new FF1(randomKey());
+
+	private static final BigInteger SMALL_DOMAIN = BigInteger.valueOf(FF1.MIN_DOMAIN);
+	// numerals of the domain in which the values of a small domain are encrypted to be sorted
+	private static final int PERMUTATION_DIGITS = 6;
+
+	// cipher of the last masking key seen
+	private static volatile Keyed keyed;
+
+	private static final class Keyed {
+		final MaskingKey key;
+		final FF1 cipher;
+
+		Keyed(MaskingKey key) {
+			this.key = key;
+			this.cipher = new FF1(Arrays.copyOf(key.prf("FPE", ""), 16));
+		}
+	}
+
+	FormatPreservingTransformer() {
+		super();
+	}
+
+	FormatPreservingTransformer(String xpath, String xpathTypeString, String rule, Map<String, String> params) {
+		super(xpath, xpathTypeString, rule, params);
+	}
+
+	@Override
+	public String mask(String value) {
+		return transform(value, true);
+	}
+
+	/**
+	 * Returns the original of a value masked with the same key.
+	 */
+	String unmask(String value) {
+		return transform(value, false);
+	}
+
+	private static String transform(String value, boolean encrypt) {
+		if (value == null || value.isEmpty()) {
+			return "";
+		}
+		FF1 cipher = cipher();
+		char[] chars = value.toCharArray();
+		byte[] tweak = layout(chars);
+
+		// the alphanumerics, read as one number whose positions have radix 10 or 26
+		BigInteger domain = BigInteger.ONE;
+		BigInteger x = BigInteger.ZERO;
+		for (char c : chars) {
+			int radix = radix(c);
+			if (radix > 0) {
+				domain = domain.multiply(BigInteger.valueOf(radix));
+				x = x.multiply(BigInteger.valueOf(radix)).add(BigInteger.valueOf(numeral(c)));
+			}
+		}
+		if (domain.equals(BigInteger.ONE)) {
+			return value;
+		}
+		x = domain.compareTo(SMALL_DOMAIN) < 0 ? permute(cipher, x, domain.intValue(), tweak, encrypt)
+				: cycleWalk(cipher, x, domain, tweak, encrypt);
+
+		for (int i = chars.length - 1; i >= 0; i--) {
+			int radix = radix(chars[i]);
+			if (radix > 0) {
+				BigInteger[] qr = x.divideAndRemainder(BigInteger.valueOf(radix));
+				chars[i] = (char) (base(chars[i]) + qr[1].intValue());
+				x = qr[0];
+			}
+		}
+		return new String(chars);
+	}
+
+	// encrypts the number as bits, again until it is back in the domain, which is under twice as large
+	private static BigInteger cycleWalk(FF1 cipher, BigInteger x, BigInteger domain, byte[] tweak, boolean encrypt) {
+		int n = domain.subtract(BigInteger.ONE).bitLength();
+		do {
+			int[] bits = new int[n];
+			for (int i = 0; i < n; i++) {
+				bits[i] = x.testBit(n - 1 - i) ? 1 : 0;
+			}
+			bits = encrypt ? cipher.encrypt(bits, 2, tweak) : cipher.decrypt(bits, 2, tweak);
+			x = BigInteger.ZERO;
+			for (int bit : bits) {
+				x = x.shiftLeft(1).or(BigInteger.valueOf(bit));
+			}
+		} while (x.compareTo(domain) >= 0);
+		return x;
+	}
+
+	/*
+	 * A domain too small for FF1, such as a value of one digit or letter, is
+	 * permuted by sorting its values by their encryption in a larger domain,
+	 * so that none is left as it is for want of a cipher.
+	 */
+	private static BigInteger permute(FF1 cipher, BigInteger x, int domain, byte[] tweak, boolean encrypt) {
+		long[] order = new long[domain];
+		for (int i = 0; i < domain; i++) {
+			int[] numerals = new int[PERMUTATION_DIGITS];
+			for (int j = PERMUTATION_DIGITS - 1, v = i; j >= 0; j--, v /= 10) {
+				numerals[j] = v % 10;
+			}
+			long image = 0;
+			for (int numeral : cipher.encrypt(numerals, 10, tweak)) {
+				image = image * 10 + numeral;
+			}
+			// the images are distinct, so each sorts with its value below it
+			order[i] = image * domain + i;
+		}
+		Arrays.sort(order);
+		int value = x.intValue();
+		for (int i = 0; i < domain; i++) {
+			int sorted = (int) (order[i] % domain);
+			if (encrypt && i == value) {
+				return BigInteger.valueOf(sorted);
+			} else if (!encrypt && sorted == value) {
+				return BigInteger.valueOf(i);
+			}
+		}
+		throw new IllegalStateException("Value " + value + " is not in a domain of " + domain);
+	}
+
+	private static int radix(char c) {
+		if (c >= '0' && c <= '9') {
+			return 10;
+		}
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ? 26 : 0;
+	}
+
+	private static char base(char c) {
+		return c >= '0' && c <= '9' ? '0' : c >= 'a' && c <= 'z' ? 'a' : 'A';
+	}
+
+	private static int numeral(char c) {
+		return c - base(c);
+	}
+
+	// what encryption leaves unchanged: the class and case of each position, and the other characters
+	private static byte[] layout(char[] chars) {
+		StringBuilder layout = new StringBuilder(chars.length);
+		for (char c : chars) {
+			if (c >= '0' && c <= '9') {
+				layout.append('0');
+			} else if (c >= 'a' && c <= 'z') {
+				layout.append('a');
+			} else if (c >= 'A' && c <= 'Z') {
+				layout.append('A');
+			} else {
+				layout.append(c);
+			}
+		}
+		return layout.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static FF1 cipher() {
+		MaskingKey key = MaskingKey.getInstance();
+		if (key == null) {
+			return RANDOM_CIPHER;
+		}
+		Keyed k = keyed;
+		if (k == null || k.key != key) {
+			k = new Keyed(key);
+			keyed = k;
+		}
+		return k.cipher;
+	}
+
+	private static byte[] randomKey() {
+		byte[] key = new byte[16];
+		new SecureRandom().nextBytes(key);
+		return key;
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Surrogate dictionary holding original values and their surrogates in
+ * concurrent hash maps, one for each namespace.
+ */
+final class HeapSurrogateDictionary extends SurrogateDictionary {
+
+	private final ConcurrentMap<String, ConcurrentMap<String, String>> namespaces = new ConcurrentHashMap<>();
+	// first surrogate made for each value in any namespace, for tokenizing rules
+	private final ConcurrentMap<String, String> anyNamespace = new ConcurrentHashMap<>();
+
+	@Override
+	String getSurrogate(String namespace, String value, boolean indexed, Function<String, String> mask) {
+		Stats stats = stats(namespace);
+		ConcurrentMap<String, String> surrogates = namespaces.get(namespace);
+		if (surrogates == null) {
+			surrogates = namespaces.computeIfAbsent(namespace, n -> new ConcurrentHashMap<>());
+		}
+		String surrogate = surrogates.get(value);
+		if (surrogate != null) {
+			stats.hits.increment();
+			return surrogate;
+		}
+		// the mask function runs at most once per value; concurrent requests wait for it
+		boolean[] computed = new boolean[1];
+		surrogate = surrogates.computeIfAbsent(value, v -> {
+			computed[0] = true;
+			return mask.apply(v);
+		});
+		if (computed[0]) {
+			stats.misses.increment();
+			if (surrogate != null) {
+				stats.size.increment();
+				if (indexed) {
+					anyNamespace.putIfAbsent(value, surrogate);
+				}
+			}
+		} else {
+			stats.hits.increment();
+		}
+		return surrogate;
+	}
+
+	@Override
+	String lookup(String value) {
+		return anyNamespace.get(value);
+	}
+}
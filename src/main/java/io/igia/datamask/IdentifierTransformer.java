@@ -38,6 +38,11 @@ public class IdentifierTransformer extends Transformer {
 
 	@Override
 	public String mask(String value) {
+		MaskingKey key = MaskingKey.getInstance();
+		if (key != null) {
+			// 128 bits of the keyed hash, the length of an md5 hash
+			return new BigInteger(1, Arrays.copyOf(key.prf(getNamespace(), value), 16)).toString(16);
+		}
 		return md5Hash(value);
 	}
 
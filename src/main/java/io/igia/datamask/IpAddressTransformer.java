@@ -12,10 +12,48 @@
  */
 package io.igia.datamask;
 
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Map;
 
+/**
+ * Anonymizes IPv4 and IPv6 addresses with a {@link PrefixPreservingCipher}, so
+ * that addresses in the same subnet are masked to addresses in the same
+ * subnet. Values that are not an address are replaced with a non-routable
+ * address.
+ *
+ * The keys are derived from the {@link MaskingKey} when one is loaded, and are
+ * otherwise drawn at random for the process, so that without a key an address
+ * is masked the same way only by runs sharing the surrogate dictionary.
+ */
 public class IpAddressTransformer extends Transformer {
-	
+
+	private static final String NOT_AN_ADDRESS = "127.0.0.1"; //NOSONAR
+
+	private static volatile Ciphers ciphers;
+
+	// one cipher for each address family, with the masking key they were derived from
+	private static final class Ciphers {
+		final MaskingKey key;
+		final PrefixPreservingCipher v4;
+		final PrefixPreservingCipher v6;
+
+		Ciphers(MaskingKey key) {
+			this.key = key;
+			this.v4 = new PrefixPreservingCipher(keyFor(key, "IPADDRESS4"));
+			this.v6 = new PrefixPreservingCipher(keyFor(key, "IPADDRESS6"));
+		}
+
+		private static byte[] keyFor(MaskingKey key, String family) {
+			if (key == null) {
+				byte[] random = new byte[16];
+				new SecureRandom().nextBytes(random);
+				return random;
+			}
+			return Arrays.copyOf(key.prf(family, ""), 16);
+		}
+	}
+
 	IpAddressTransformer() {
 		super();
 	}
@@ -26,8 +64,173 @@ public class IpAddressTransformer extends Transformer {
 
 	@Override
 	public String mask(String value) {
+		long v4 = parseIpv4(value, 0, value.length());
+		if (v4 >= 0) {
+			return formatIpv4(ciphers().v4.anonymize((int) v4));
+		}
+		long[] v6 = new long[2];
+		if (parseIpv6(value, v6)) {
+			ciphers().v6.anonymize(v6);
+			return formatIpv6(v6);
+		}
 		// return a non-routable address
-		return "127.0.0.1"; //NOSONAR
+		return NOT_AN_ADDRESS;
 	}
 
+	private static Ciphers ciphers() {
+		MaskingKey key = MaskingKey.getInstance();
+		Ciphers c = ciphers;
+		if (c == null || c.key != key) {
+			synchronized (IpAddressTransformer.class) {
+				c = ciphers;
+				if (c == null || c.key != key) {
+					c = new Ciphers(key);
+					ciphers = c;
+				}
+			}
+		}
+		return c;
+	}
+
+	// parses a dotted-quad address into the low 32 bits of the result, or returns -1
+	static long parseIpv4(String s, int from, int to) {
+		long address = 0;
+		int parts = 0;
+		int i = from;
+		while (i < to && parts < 4) {
+			int start = i;
+			int part = 0;
+			while (i < to && i - start < 3 && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+				part = part * 10 + s.charAt(i) - '0';
+				i++;
+			}
+			if (i == start || part > 255) {
+				return -1;
+			}
+			address = address << 8 | part;
+			parts++;
+			if (i < to && parts < 4) {
+				if (s.charAt(i) != '.') {
+					return -1;
+				}
+				i++;
+			}
+		}
+		return parts == 4 && i == to ? address : -1;
+	}
+
+	// parses a colon-hex address, possibly with a :: gap and a dotted-quad tail, into two longs
+	static boolean parseIpv6(String s, long[] address) {
+		int n = s.length();
+		int[] groups = new int[8];
+		int count = 0;
+		int gap = -1;
+		int i = 0;
+		if (s.startsWith("::")) {
+			gap = 0;
+			i = 2;
+		} else if (n == 0 || s.charAt(0) == ':') {
+			return false;
+		}
+		while (i < n) {
+			if (count == 8) {
+				return false;
+			}
+			int start = i;
+			int group = 0;
+			int digit;
+			while (i < n && i - start < 4 && (digit = Character.digit(s.charAt(i), 16)) >= 0) {
+				group = group << 4 | digit;
+				i++;
+			}
+			if (i < n && s.charAt(i) == '.') {
+				long v4 = count <= 6 ? parseIpv4(s, start, n) : -1;
+				if (v4 < 0) {
+					return false;
+				}
+				groups[count++] = (int) (v4 >>> 16);
+				groups[count++] = (int) (v4 & 0xffff);
+				break;
+			}
+			if (i == start) {
+				return false;
+			}
+			groups[count++] = group;
+			if (i == n) {
+				break;
+			}
+			if (s.charAt(i++) != ':' || i == n) {
+				return false;
+			}
+			if (s.charAt(i) == ':') {
+				if (gap >= 0) {
+					return false;
+				}
+				gap = count;
+				i++;
+			}
+		}
+		if (gap < 0 ? count != 8 : count > 7) {
+			return false;
+		}
+		long hi = 0;
+		long lo = 0;
+		int zeros = 8 - count;
+		for (int g = 0, k = 0; g < 8; g++) {
+			int value = gap >= 0 && g >= gap && g < gap + zeros ? 0 : groups[k++];
+			if (g < 4) {
+				hi = hi << 16 | value;
+			} else {
+				lo = lo << 16 | value;
+			}
+		}
+		address[0] = hi;
+		address[1] = lo;
+		return true;
+	}
+
+	static String formatIpv4(int address) {
+		StringBuilder sb = new StringBuilder(15);
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			sb.append(address >>> shift & 0xff);
+			if (shift > 0) {
+				sb.append('.');
+			}
+		}
+		return sb.toString();
+	}
+
+	// the RFC 5952 form: lower case, no leading zeros, the first longest run of two or more zero groups as ::
+	static String formatIpv6(long[] address) {
+		int[] groups = new int[8];
+		for (int g = 0; g < 8; g++) {
+			groups[g] = (int) ((g < 4 ? address[0] : address[1]) >>> (48 - 16 * (g % 4))) & 0xffff;
+		}
+		int bestStart = -1;
+		int bestLength = 1;
+		for (int g = 0; g < 8;) {
+			int end = g;
+			while (end < 8 && groups[end] == 0) {
+				end++;
+			}
+			if (end - g > bestLength) {
+				bestStart = g;
+				bestLength = end - g;
+			}
+			g = end == g ? g + 1 : end;
+		}
+		StringBuilder sb = new StringBuilder(39);
+		for (int g = 0; g < 8; g++) {
+			if (g == bestStart) {
+				sb.append("::");
+				g += bestLength - 1;
+				continue;
+			}
+			if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ':') {
+				sb.append(':');
+			}
+			sb.append(Integer.toHexString(groups[g]));
+		}
+		return sb.toString();
+	}
 }
@@ -0,0 +1,147 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.PrettyPrinter;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.CharacterEscapes;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Pretty prints json the way the Gson printer used for json output before did:
+ * two spaces of indentation, every member and array element on its own line,
+ * "name": value, empty containers as {} and [], and the characters Gson
+ * escapes for html (such as &lt;) escaped as lowercase unicode escapes.
+ *
+ * A printer keeps the depth of the document being written, so each generator
+ * needs its own, set with {@link #configure(JsonGenerator)}.
+ */
+final class JsonOutputPrinter implements PrettyPrinter {
+
+	private static final CharacterEscapes ESCAPES = new GsonEscapes();
+
+	private int depth;
+
+	/**
+	 * Sets a new printer and the Gson escapes on a generator.
+	 */
+	static JsonGenerator configure(JsonGenerator generator) {
+		generator.setPrettyPrinter(new JsonOutputPrinter());
+		generator.setCharacterEscapes(ESCAPES);
+		return generator;
+	}
+
+	@Override
+	public void writeRootValueSeparator(JsonGenerator g) throws IOException {
+		g.writeRaw('\n');
+	}
+
+	@Override
+	public void writeStartObject(JsonGenerator g) throws IOException {
+		g.writeRaw('{');
+		depth++;
+	}
+
+	@Override
+	public void beforeObjectEntries(JsonGenerator g) throws IOException {
+		newLine(g);
+	}
+
+	@Override
+	public void writeObjectFieldValueSeparator(JsonGenerator g) throws IOException {
+		g.writeRaw(": ");
+	}
+
+	@Override
+	public void writeObjectEntrySeparator(JsonGenerator g) throws IOException {
+		g.writeRaw(',');
+		newLine(g);
+	}
+
+	@Override
+	public void writeEndObject(JsonGenerator g, int nrOfEntries) throws IOException {
+		depth--;
+		if (nrOfEntries > 0) {
+			newLine(g);
+		}
+		g.writeRaw('}');
+	}
+
+	@Override
+	public void writeStartArray(JsonGenerator g) throws IOException {
+		g.writeRaw('[');
+		depth++;
+	}
+
+	@Override
+	public void beforeArrayValues(JsonGenerator g) throws IOException {
+		newLine(g);
+	}
+
+	@Override
+	public void writeArrayValueSeparator(JsonGenerator g) throws IOException {
+		g.writeRaw(',');
+		newLine(g);
+	}
+
+	@Override
+	public void writeEndArray(JsonGenerator g, int nrOfValues) throws IOException {
+		depth--;
+		if (nrOfValues > 0) {
+			newLine(g);
+		}
+		g.writeRaw(']');
+	}
+
+	private void newLine(JsonGenerator g) throws IOException {
+		g.writeRaw('\n');
+		for (int i = 0; i < depth; i++) {
+			g.writeRaw("  ");
+		}
+	}
+
+	// the escapes of a Gson writer with html escaping, its default
+	private static final class GsonEscapes extends CharacterEscapes {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[] ascii = standardAsciiEscapesForJSON();
+
+		GsonEscapes() {
+			for (int c = 0; c < 0x20; c++) {
+				if (c != '\b' && c != '\t' && c != '\n' && c != '\f' && c != '\r') {
+					ascii[c] = ESCAPE_CUSTOM;
+				}
+			}
+			for (char c : "<>&='".toCharArray()) {
+				ascii[c] = ESCAPE_CUSTOM;
+			}
+		}
+
+		@Override
+		public int[] getEscapeCodesForAscii() {
+			return ascii;
+		}
+
+		@Override
+		public SerializableString getEscapeSequence(int ch) {
+			if (ch < ascii.length ? ascii[ch] == ESCAPE_CUSTOM : ch == '\u2028' || ch == '\u2029') {
+				return new SerializedString(String.format("\\u%04x", ch));
+			}
+			return null;
+		}
+	}
+}
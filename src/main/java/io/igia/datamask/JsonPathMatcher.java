@@ -0,0 +1,250 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compiles the json path of every configured rule into a single automaton over
+ * member names and array indexes, so a document can be masked in one pass over
+ * its values, including as a stream of parser tokens.
+ *
+ * The supported subset is paths starting at the root ($) made of member
+ * (.name or ['name']), wildcard (.* or [*]) and index ([n]) steps, each of
+ * which may be a deep scan (..name, ..*, ..[n]). Rules with any other
+ * expression, such as filters or slices, are returned by
+ * {@link #getUnsupported()}.
+ */
+class JsonPathMatcher {
+
+	static final Logger log = Logger.getLogger(JsonPathMatcher.class);
+
+	private static final int ANY_INDEX = -1;
+	private static final int NO_INDEX = -2;
+
+	// one step of one rule, i.e. one automaton state
+	static class State {
+		int rule;
+		boolean descendant;
+		String name; // member name, or null
+		int index = NO_INDEX; // array index, ANY_INDEX for a wildcard, or NO_INDEX for a member
+		int next = -1; // state for the following step, or -1 when this is the last step
+
+		boolean matches(String member, int position) {
+			if (index == ANY_INDEX) {
+				return true;
+			}
+			if (member != null) {
+				return name != null && name.equals(member);
+			}
+			return index == position;
+		}
+	}
+
+	private final List<Transformer> rules = new ArrayList<>();
+	private final List<Transformer> unsupported = new ArrayList<>();
+	private final List<State> states = new ArrayList<>();
+
+	private final BitSet initial = new BitSet();
+	private final BitSet descendant = new BitSet();
+	private final BitSet anyMember = new BitSet();
+	private final BitSet indexed = new BitSet();
+	private final Map<String, BitSet> byName = new HashMap<>();
+
+	private JsonPathMatcher() {
+	}
+
+	static JsonPathMatcher compile(List<Transformer> transformers) {
+		JsonPathMatcher matcher = new JsonPathMatcher();
+		for (Transformer t : transformers) {
+			if (!matcher.add(t)) {
+				log.debug("Path is not supported by the json path matcher: " + t.getPath());
+				matcher.unsupported.add(t);
+			}
+		}
+		log.debug("Compiled " + matcher.rules.size() + " rules into " + matcher.states.size() + " states; "
+				+ matcher.unsupported.size() + " rules not supported");
+		return matcher;
+	}
+
+	/**
+	 * Rules that were compiled, indexed by the rule numbers reported by
+	 * {@link #advance(BitSet, String, int, BitSet)}.
+	 */
+	List<Transformer> getRules() {
+		return rules;
+	}
+
+	/**
+	 * Rules with an expression that could not be compiled.
+	 */
+	List<Transformer> getUnsupported() {
+		return unsupported;
+	}
+
+	/**
+	 * States active for the members or elements of the root value.
+	 */
+	BitSet getInitialStates() {
+		return initial;
+	}
+
+	/**
+	 * Moves the automaton into a member or array element.
+	 *
+	 * @param active
+	 *            states active for the enclosing object or array
+	 * @param member
+	 *            the member name, or null for an array element
+	 * @param position
+	 *            the array index of an element
+	 * @param matched
+	 *            receives the number of each rule whose last step matches
+	 * @return the states active for the members or elements of the value
+	 */
+	BitSet advance(BitSet active, String member, int position, BitSet matched) {
+		BitSet candidates = (BitSet) anyMember.clone();
+		if (member != null) {
+			BitSet named = byName.get(member);
+			if (named != null) {
+				candidates.or(named);
+			}
+		} else {
+			candidates.or(indexed);
+		}
+		candidates.and(active);
+
+		// deep scan steps remain active below the value whether or not it matches
+		BitSet next = (BitSet) active.clone();
+		next.and(descendant);
+		for (int s = candidates.nextSetBit(0); s >= 0; s = candidates.nextSetBit(s + 1)) {
+			State state = states.get(s);
+			if (state.matches(member, position)) {
+				if (state.next < 0) {
+					matched.set(state.rule);
+				} else {
+					next.set(state.next);
+				}
+			}
+		}
+		return next;
+	}
+
+	private boolean add(Transformer t) {
+		String path = t.getPath() == null ? "" : t.getPath().trim();
+		if (!path.startsWith("$")) {
+			return false;
+		}
+		List<State> compiled = new ArrayList<>();
+		int i = 1;
+		int n = path.length();
+		while (i < n) {
+			State state = new State();
+			if (path.startsWith("..", i)) {
+				state.descendant = true;
+				i += 2;
+			} else if (path.charAt(i) == '.') {
+				i++;
+			} else if (path.charAt(i) != '[') {
+				return false;
+			}
+			if (i < n && path.charAt(i) == '[') {
+				int end = path.indexOf(']', i);
+				if (end < 0 || !parseBracket(path.substring(i + 1, end).trim(), state)) {
+					return false;
+				}
+				i = end + 1;
+			} else {
+				int end = i;
+				while (end < n && path.charAt(end) != '.' && path.charAt(end) != '[') {
+					end++;
+				}
+				String name = path.substring(i, end);
+				if (name.isEmpty()) {
+					return false;
+				}
+				if ("*".equals(name)) {
+					state.index = ANY_INDEX;
+				} else {
+					state.name = name;
+				}
+				i = end;
+			}
+			compiled.add(state);
+		}
+		if (compiled.isEmpty()) {
+			return false;
+		}
+
+		int rule = rules.size();
+		int first = states.size();
+		for (int s = 0; s < compiled.size(); s++) {
+			State state = compiled.get(s);
+			int id = first + s;
+			state.rule = rule;
+			state.next = s + 1 < compiled.size() ? id + 1 : -1;
+			states.add(state);
+			if (state.descendant) {
+				descendant.set(id);
+			}
+			if (state.index == ANY_INDEX) {
+				anyMember.set(id);
+			} else if (state.name != null) {
+				BitSet named = byName.get(state.name);
+				if (named == null) {
+					named = new BitSet();
+					byName.put(state.name, named);
+				}
+				named.set(id);
+			} else {
+				indexed.set(id);
+			}
+		}
+		initial.set(first);
+		rules.add(t);
+		return true;
+	}
+
+	// parses the content of [...], being '*', an index, or a quoted member name
+	private static boolean parseBracket(String content, State state) {
+		if ("*".equals(content)) {
+			state.index = ANY_INDEX;
+			return true;
+		}
+		if (content.length() >= 2 && (content.charAt(0) == '\'' || content.charAt(0) == '"')
+				&& content.charAt(content.length() - 1) == content.charAt(0)) {
+			String name = content.substring(1, content.length() - 1);
+			if (name.isEmpty() || name.indexOf(content.charAt(0)) >= 0) {
+				return false;
+			}
+			state.name = name;
+			return true;
+		}
+		if (content.isEmpty() || content.length() > 9) {
+			return false;
+		}
+		for (int i = 0; i < content.length(); i++) {
+			if (!Character.isDigit(content.charAt(i))) {
+				return false;
+			}
+		}
+		state.index = Integer.parseInt(content);
+		return true;
+	}
+}
@@ -12,42 +12,50 @@
  */
 package io.igia.datamask;
 
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
 import com.github.fge.jackson.JsonLoader;
 import com.github.fge.jsonschema.core.exceptions.ProcessingException;
 import com.github.fge.jsonschema.core.report.ProcessingReport;
 import com.github.fge.jsonschema.main.JsonSchema;
-import com.github.fge.jsonschema.main.JsonSchemaFactory;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
 import com.jayway.jsonpath.Configuration;
-import com.jayway.jsonpath.DocumentContext;
 import com.jayway.jsonpath.JsonPath;
 import com.jayway.jsonpath.Option;
+import com.jayway.jsonpath.spi.json.JacksonJsonNodeJsonProvider;
 
-public class JsonSourceDocument extends SourceDocument<DocumentContext> {
+/**
+ * Masks a json file held as a single Jackson tree: the file is parsed once, and
+ * schema validation, path resolution, masking and output all work on that tree.
+ */
+public class JsonSourceDocument extends SourceDocument<JsonNode> {
 
 	static final Logger log = Logger.getLogger(JsonSourceDocument.class);
 
-	private String jsonText;
+	private static final ObjectMapper mapper = new ObjectMapper();
+	// json path over the jackson tree itself, returning the matching paths
+	private static final Configuration pathConfiguration = Configuration.builder()
+			.jsonProvider(new JacksonJsonNodeJsonProvider()).options(Option.AS_PATH_LIST).build();
 
-	private static final String JSON_V4_SCHEMA_IDENTIFIER = "http://json-schema.org/draft-04/schema#";
-	private static final String JSON_SCHEMA_IDENTIFIER_ELEMENT = "$schema";
-	
-	private DocumentContext documentWithPathOption;
+	private JsonPathMatcher matcher;
+	// rules applied one json path at a time after the single pass over the document
+	private List<Transformer> deferred = new ArrayList<>();
 
 	JsonSourceDocument(String type, String config, String schema, String input, String output) {
 		super(type, config, schema, input, output);
@@ -55,14 +63,23 @@ public class JsonSourceDocument extends SourceDocument<DocumentContext> {
 
 	@Override
 	public void maskDocument(Boolean skipValidation) {
-		// open input file
-		jsonText = readFileAsString(inputFile);
+		if (!readDocument(skipValidation)) {
+			failed = true;
+			return;
+		}
+		transformDocument(skipValidation);
+		writeDocument();
+	}
 
-		// parse as json document
-		Configuration pathConfiguration = Configuration.builder().options(Option.AS_PATH_LIST).build();
-		document = JsonPath.parse(jsonText);
-		// also open with read returning path lists option for searching
-		documentWithPathOption = JsonPath.using(pathConfiguration).parse(jsonText);
+	@Override
+	protected boolean readDocument(Boolean skipValidation) {
+		// parse the input file once
+		try {
+			document = JsonLoader.fromFile(new File(inputFile));
+		} catch (IOException e) {
+			log.error("ERROR: failed to open file '" + inputFile + "'; " + e.toString());
+			return false;
+		}
 
 		// validate against json schema if requested
 		if (skipValidation) {
@@ -77,9 +94,17 @@ public class JsonSourceDocument extends SourceDocument<DocumentContext> {
 						"Input file '" + inputFile + "' is not valid for the specified schema '" + schemaFile + "'");
 			}
 		}
+		return true;
+	}
 
-		// apply requested masking transforms
-		for (Transformer t : config) {
+	@Override
+	protected void transformDocument(Boolean skipValidation) {
+		// apply every compiled rule in a single pass over the document
+		log.debug("Transforming " + matcher.getRules().size() + " rules in a single pass");
+		transform(document, matcher.getInitialStates(), null);
+
+		// apply each remaining masking transform
+		for (Transformer t : deferred) {
 			log.debug("Transforming path:" + t.getPath() + ", nodeType:" + t.getNodeType() + ", rule:" + t.getRule());
 			try {
 				transform(t);
@@ -89,29 +114,79 @@ public class JsonSourceDocument extends SourceDocument<DocumentContext> {
 			}
 		}
 
+	}
+
+	@Override
+	protected void writeDocument() {
 		// print output
-		log.debug("About to read document for output streaming");
-		String newJson = document.jsonString();
-
-		// make it pretty
-		Gson gson = new GsonBuilder().setPrettyPrinting().create();
-		JsonParser jp = new JsonParser();
-		JsonElement je = jp.parse(newJson);
-		String prettyJsonString = gson.toJson(je);
-
-		log.debug("Read document to string for output streaming");
-		log.info(prettyJsonString);
-		try (PrintStream ps = new PrintStream(outputFile)) {
-			ps.println(prettyJsonString);
-		} catch (FileNotFoundException e) {
+		log.debug("Writing document to output file");
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(outputFile), StandardCharsets.UTF_8);
+				JsonGenerator generator = JsonOutputPrinter.configure(mapper.getFactory().createGenerator(out))) {
+			mapper.writeTree(generator, document);
+			generator.writeRaw(System.lineSeparator());
+		} catch (IOException e) {
 			log.error("ERROR: failed to create output file '" + outputFile + "'; " + e.toString());
+			failed = true;
+		}
+		document = null;
+	}
+
+	// visits the members or elements of the container once, applying every rule that matches
+	private void transform(JsonNode container, BitSet active, BitSet elementRules) {
+		if (container.isObject()) {
+			ObjectNode object = (ObjectNode) container;
+			List<String> names = new ArrayList<>();
+			for (Iterator<String> it = object.fieldNames(); it.hasNext();) {
+				names.add(it.next());
+			}
+			for (String name : names) {
+				BitSet matched = new BitSet();
+				BitSet next = matcher.advance(active, name, 0, matched);
+				JsonNode value = object.get(name);
+				if (value.isContainerNode()) {
+					transform(value, next, matched);
+				} else if (!matched.isEmpty() && !value.isNull()) {
+					object.put(name, mask(value.asText(), matched));
+				}
+			}
+		} else if (container.isArray()) {
+			ArrayNode array = (ArrayNode) container;
+			for (int i = 0; i < array.size(); i++) {
+				BitSet matched = new BitSet();
+				BitSet next = matcher.advance(active, null, i, matched);
+				JsonNode value = array.get(i);
+				if (value.isContainerNode()) {
+					transform(value, next, matched);
+				} else if (!value.isNull()) {
+					// a rule selecting the array applies to its scalar elements
+					if (elementRules != null) {
+						matched.or(elementRules);
+					}
+					if (!matched.isEmpty()) {
+						array.set(i, TextNode.valueOf(mask(value.asText(), matched)));
+					}
+				}
+			}
+		}
+	}
+
+	private String mask(String value, BitSet rules) {
+		for (int r = rules.nextSetBit(0); r >= 0; r = rules.nextSetBit(r + 1)) {
+			Transformer t = matcher.getRules().get(r);
+			try {
+				value = t.getMaskedValue(value);
+			} catch (Exception e) {
+				log.error("Failed to apply transformation :: rule: " + t.getRule() + ", path: " + t.getPath()
+						+ ", type:" + t.getNodeType() + "; " + e.getMessage() + "; " + e.toString());
+			}
 		}
+		return value;
 	}
 
 	private void transform(Transformer t) 
 	{
 		int c;
-		log.debug("XmlSourceDocument.transform(path: " + t.getPath() + ", nodeType: " + t.getNodeType() + ", rule: "
+		log.debug("JsonSourceDocument.transform(path: " + t.getPath() + ", nodeType: " + t.getNodeType() + ", rule: "
 				+ t.getRule() + ") constructor");
 		// see if class has been correctly instantiated
 		if (t.getRule() == null) {
@@ -122,12 +197,11 @@ public class JsonSourceDocument extends SourceDocument<DocumentContext> {
 		c = 0;
 		if (t.getNodeType() == io.igia.datamask.Transformer.NodeType.JSON) {
 			log.debug("transform(): JSON");
-			List<String> pathMatches = documentWithPathOption.read(t.getPath());
-			for (String pathMatch : pathMatches) {
-				log.debug("Process path:" + pathMatch);
-				String value = document.read(pathMatch);
-				// mask the element text
-				document.set(pathMatch, t.getMaskedValue(value));
+			Object pathMatches = JsonPath.using(pathConfiguration).parse(document).read(t.getPath());
+			for (Object pathMatch : (Iterable<?>) pathMatches) {
+				String path = pathMatch instanceof JsonNode ? ((JsonNode) pathMatch).asText() : pathMatch.toString();
+				log.debug("Process path:" + path);
+				transform(path, t);
 				c++;
 			}
 		} else {
@@ -137,6 +211,48 @@ public class JsonSourceDocument extends SourceDocument<DocumentContext> {
 		log.debug("transform(): end; " + c + "items");
 	}
 
+	// masks the value at a normalized path, made of ['member'] and [index] steps
+	private void transform(String path, Transformer t) {
+		JsonNode parent = null;
+		JsonNode node = document;
+		String member = null;
+		int index = -1;
+		int i = 1;
+		while (node != null && i < path.length()) {
+			parent = node;
+			if (path.startsWith("['", i)) {
+				int end = path.indexOf("']", i + 2);
+				member = path.substring(i + 2, end);
+				node = node.get(member);
+				i = end + 2;
+			} else {
+				int end = path.indexOf(']', i);
+				member = null;
+				index = Integer.parseInt(path.substring(i + 1, end));
+				node = node.get(index);
+				i = end + 1;
+			}
+		}
+		if (node == null || node.isNull() || parent == null) {
+			return;
+		}
+		if (node.isArray()) {
+			ArrayNode array = (ArrayNode) node;
+			for (int e = 0; e < array.size(); e++) {
+				if (array.get(e).isValueNode() && !array.get(e).isNull()) {
+					array.set(e, TextNode.valueOf(t.getMaskedValue(array.get(e).asText())));
+				}
+			}
+		} else if (node.isValueNode()) {
+			String masked = t.getMaskedValue(node.asText());
+			if (member != null) {
+				((ObjectNode) parent).put(member, masked);
+			} else {
+				((ArrayNode) parent).set(index, TextNode.valueOf(masked));
+			}
+		}
+	}
+
 	@Override
 	protected void preConfigure() { 
 		// not yet implemented for JSON but could be used in the future
@@ -145,31 +261,32 @@ public class JsonSourceDocument extends SourceDocument<DocumentContext> {
 
 	@Override
 	protected void postConfigure() { 
-		// not yet implemented for JSON but could be used in the future
-		// the method is used by the XML source document class, and is helpful in the base class, so creating dummy here
+		// tokenizing rules only replace values already masked by other rules, so
+		// they keep running after the single pass, in configured order
+		log.debug("Compiling paths");
+		List<Transformer> compiled = new ArrayList<>();
+		for (Transformer t : config) {
+			if (!(t instanceof TokenizeTransformer)) {
+				compiled.add(t);
+			}
+		}
+		matcher = plan.getCompiled("json", () -> JsonPathMatcher.compile(compiled));
+		deferred = new ArrayList<>();
+		for (Transformer t : config) {
+			if (t instanceof TokenizeTransformer || matcher.getUnsupported().contains(t)) {
+				deferred.add(t);
+			}
+		}
+		log.debug("Compiled");
 	}
 
 	private Boolean isValidJson() {
-		
-
-		String schemaText = readFileAsString(schemaFile);
 		try {
-			// Prepare JSON Schema
-			JsonNode node = JsonLoader.fromString(schemaText);
-			JsonNode schemaIdentifier = node.get(JSON_SCHEMA_IDENTIFIER_ELEMENT);
-			if (null == schemaIdentifier)
-			{
-				((ObjectNode) node).put(JSON_SCHEMA_IDENTIFIER_ELEMENT, JSON_V4_SCHEMA_IDENTIFIER);
-			}
+			// Prepare JSON Schema, compiled once for all documents using it
+			JsonSchema jsonSchemaNode = SchemaCache.getJsonSchema(schemaFile);
 
-			JsonSchemaFactory factory = JsonSchemaFactory.byDefault();
-			JsonSchema jsonSchemaNode = factory.getJsonSchema(node);
-
-			// Prepare JSON text
-			JsonNode jsonNode = JsonLoader.fromString(jsonText);
-
-			// Validate JSON text versus JSON schema
-			ProcessingReport report = jsonSchemaNode.validate(jsonNode);
+			// Validate the parsed document versus JSON schema
+			ProcessingReport report = jsonSchemaNode.validate(document);
 			return report.isSuccess();
 
 		} catch (ProcessingException e) {
@@ -180,15 +297,4 @@ public class JsonSourceDocument extends SourceDocument<DocumentContext> {
 			return false;
 		}
 	}
-
-	private String readFileAsString(String fileName) {
-		byte[] encoded = null;
-		try {
-			encoded = Files.readAllBytes(Paths.get(fileName));
-		} catch (IOException e) {
-			log.error("ERROR: failed to open file '" + fileName + "'; " + e.toString());
-			return null;
-		}
-		return new String(encoded, StandardCharsets.UTF_8);
-	}
 }
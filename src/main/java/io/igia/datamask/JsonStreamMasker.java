@@ -0,0 +1,138 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Copies the tokens of a json parser to a generator, masking the scalar values
+ * selected by the rules compiled in a {@link JsonPathMatcher}. Only the
+ * automaton state of each open object or array is held, so memory use does
+ * not depend on the size of the document.
+ *
+ * A rule that selects an array masks the scalar elements of the array. Masked
+ * values are always written as strings.
+ */
+class JsonStreamMasker {
+
+	static final Logger log = Logger.getLogger(JsonStreamMasker.class);
+
+	// an open object or array
+	private static class Container {
+		final boolean array;
+		final BitSet active; // states active for the members or elements
+		final BitSet elementRules; // rules selecting the array, applied to its scalar elements
+		int position;
+
+		Container(boolean array, BitSet active, BitSet elementRules) {
+			this.array = array;
+			this.active = active;
+			this.elementRules = elementRules;
+		}
+	}
+
+	private final JsonPathMatcher matcher;
+
+	JsonStreamMasker(JsonPathMatcher matcher) {
+		this.matcher = matcher;
+	}
+
+	/**
+	 * Copies the next value of the parser, with all of its content, to the
+	 * generator.
+	 *
+	 * @return false when the parser has no more values
+	 */
+	boolean mask(JsonParser parser, JsonGenerator generator) throws IOException {
+		JsonToken token = parser.nextToken();
+		if (token == null) {
+			return false;
+		}
+		Deque<Container> open = new ArrayDeque<>();
+		do {
+			switch (token) {
+			case START_OBJECT:
+			case START_ARRAY:
+				boolean array = token == JsonToken.START_ARRAY;
+				if (open.isEmpty()) {
+					open.push(new Container(array, matcher.getInitialStates(), null));
+				} else {
+					BitSet matched = new BitSet();
+					BitSet active = advance(open.peek(), parser, matched);
+					open.push(new Container(array, active, array && !matched.isEmpty() ? matched : null));
+				}
+				generator.copyCurrentEvent(parser);
+				break;
+			case END_OBJECT:
+			case END_ARRAY:
+				open.pop();
+				generator.copyCurrentEvent(parser);
+				break;
+			case FIELD_NAME:
+				generator.copyCurrentEvent(parser);
+				break;
+			default:
+				if (open.isEmpty()) {
+					generator.copyCurrentEvent(parser);
+				} else {
+					scalar(open.peek(), parser, generator);
+				}
+				break;
+			}
+			if (open.isEmpty()) {
+				return true;
+			}
+			token = parser.nextToken();
+		} while (token != null);
+		throw new IOException("Unexpected end of json input");
+	}
+
+	private BitSet advance(Container parent, JsonParser parser, BitSet matched) throws IOException {
+		if (parent.array) {
+			return matcher.advance(parent.active, null, parent.position++, matched);
+		}
+		return matcher.advance(parent.active, parser.getCurrentName(), 0, matched);
+	}
+
+	private void scalar(Container parent, JsonParser parser, JsonGenerator generator) throws IOException {
+		BitSet matched = new BitSet();
+		advance(parent, parser, matched);
+		if (parent.elementRules != null) {
+			matched.or(parent.elementRules);
+		}
+		if (matched.isEmpty() || parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+			generator.copyCurrentEvent(parser);
+			return;
+		}
+		String value = parser.getText();
+		for (int r = matched.nextSetBit(0); r >= 0; r = matched.nextSetBit(r + 1)) {
+			Transformer t = matcher.getRules().get(r);
+			try {
+				value = t.getMaskedValue(value);
+			} catch (Exception e) {
+				log.error("Failed to apply transformation :: rule: " + t.getRule() + ", path: " + t.getPath()
+						+ ", type:" + t.getNodeType() + "; " + e.getMessage() + "; " + e.toString());
+			}
+		}
+		generator.writeString(value);
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * Masks a json file as a stream of parser tokens, so memory use does not grow
+ * with the size of the file.
+ *
+ * Every rule must have a path supported by {@link JsonPathMatcher}. Schema
+ * validation needs the whole document and is not available with this engine.
+ */
+public class JsonStreamSourceDocument extends SourceDocument<Void> {
+
+	static final Logger log = Logger.getLogger(JsonStreamSourceDocument.class);
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private JsonPathMatcher matcher;
+
+	JsonStreamSourceDocument(String type, String config, String schema, String input, String output) {
+		super(type, config, schema, input, output);
+	}
+
+	@Override
+	public void maskDocument(Boolean skipValidation) {
+		if (!skipValidation) {
+			log.error("ERROR: json schema validation is not supported by the stream engine; input file '" + inputFile
+					+ "'");
+			throw new DatamaskException("Json schema validation is not supported by the stream engine; input file '"
+					+ inputFile + "'");
+		}
+		log.warn("WARNING: Not validating the input file against a json schema.");
+		log.debug("Streaming json file '" + inputFile + "'");
+
+		boolean masked = false;
+		try (InputStream in = new BufferedInputStream(openInput()); OutputStream os = openOutput()) {
+			mask(in, os);
+			masked = true;
+		} catch (IOException e) {
+			log.error("Failed to mask json document: " + inputFile + "; " + e.getMessage());
+		}
+		if (!masked) {
+			// do not leave a partially masked file behind
+			failed = true;
+			removeOutput();
+		}
+	}
+
+	private void mask(InputStream in, OutputStream os) throws IOException {
+		JsonStreamMasker masker = new JsonStreamMasker(matcher);
+		try (JsonParser parser = jsonFactory.createParser(in);
+				JsonGenerator generator = jsonFactory.createGenerator(os, JsonEncoding.UTF8)) {
+			generator.useDefaultPrettyPrinter();
+			if (!masker.mask(parser, generator)) {
+				throw new IOException("No json value in input file");
+			}
+			if (parser.nextToken() != null) {
+				throw new IOException("Unexpected content after the json value");
+			}
+		}
+	}
+
+	@Override
+	protected void postConfigure() {
+		log.debug("Compiling paths");
+		matcher = plan.getCompiled("json-stream", () -> JsonPathMatcher.compile(config));
+		if (!matcher.getUnsupported().isEmpty()) {
+			String paths = Transformer.describePaths(matcher.getUnsupported());
+			log.error("ERROR: paths not supported by the stream engine: " + paths);
+			throw new DatamaskException("Paths not supported by the stream engine: " + paths);
+		}
+		log.debug("Compiled");
+	}
+
+	@Override
+	protected void preConfigure() {
+		// not necessary for the stream engine
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+/**
+ * The interfaces of reactive streams with demand-based backpressure, as
+ * declared by java.util.concurrent.Flow, for {@link MaskingProcessor} on Java
+ * 8. They have the same methods as the Flow interfaces, so an adapter either
+ * way is one delegating method per call.
+ */
+public final class MaskingFlow {
+
+	private MaskingFlow() {
+	}
+
+	/**
+	 * Produces items for subscribers, no more than each has requested.
+	 */
+	@FunctionalInterface
+	public interface Publisher<T> {
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * Receives the items it requests, then at most one of onComplete or
+	 * onError. The signals to a subscriber are never concurrent.
+	 */
+	public interface Subscriber<T> {
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T item);
+
+		void onError(Throwable throwable);
+
+		void onComplete();
+	}
+
+	/**
+	 * Links a publisher to one subscriber.
+	 */
+	public interface Subscription {
+		/**
+		 * Adds n, which must be positive, to the number of items the subscriber
+		 * accepts.
+		 */
+		void request(long n);
+
+		void cancel();
+	}
+
+	/**
+	 * A subscriber of items that publishes the items it makes of them.
+	 */
+	public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+	}
+}
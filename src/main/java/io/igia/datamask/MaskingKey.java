@@ -0,0 +1,105 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Secret key from which keyed transformers derive their masked values, so that
+ * any number of processes given the same key file mask a value the same way
+ * without sharing a dictionary. The masked values are still kept in the
+ * dictionary of each process, so that tokenizing rules find them.
+ *
+ * The pseudo-random function is HMAC-SHA256 of the rule and the value. When no
+ * key is loaded, {@link #getInstance()} returns null and every transformer
+ * masks at random through the surrogate dictionary.
+ */
+final class MaskingKey {
+
+	static final Logger log = Logger.getLogger(MaskingKey.class);
+
+	static final int MIN_KEY_SIZE = 16;
+
+	private static volatile MaskingKey instance;
+
+	private final ThreadLocal<Mac> mac;
+
+	MaskingKey(byte[] key) {
+		SecretKeySpec spec = new SecretKeySpec(key, "HmacSHA256");
+		mac = ThreadLocal.withInitial(() -> {
+			try {
+				Mac m = Mac.getInstance("HmacSHA256");
+				m.init(spec);
+				return m;
+			} catch (GeneralSecurityException e) {
+				throw new DatamaskException("HmacSHA256 is not available; " + e.getMessage());
+			}
+		});
+	}
+
+	static MaskingKey getInstance() {
+		return instance;
+	}
+
+	static void setInstance(MaskingKey key) {
+		instance = key;
+	}
+
+	/**
+	 * Loads the key from a file, whose whole content is the key.
+	 */
+	static void load(String keyFile) {
+		byte[] key;
+		try {
+			key = Files.readAllBytes(Paths.get(keyFile));
+		} catch (IOException e) {
+			log.error("Failed to read key file '" + keyFile + "'; " + e.getMessage());
+			throw new DatamaskException("Failed to read key file '" + keyFile + "'; " + e.getMessage());
+		}
+		if (key.length < MIN_KEY_SIZE) {
+			log.error("Key file '" + keyFile + "' must hold at least " + MIN_KEY_SIZE + " bytes");
+			throw new DatamaskException("Key file '" + keyFile + "' must hold at least " + MIN_KEY_SIZE + " bytes");
+		}
+		instance = new MaskingKey(key);
+	}
+
+	/**
+	 * Returns the 32 bytes of the pseudo-random function of a rule and value.
+	 */
+	byte[] prf(String rule, String value) {
+		Mac m = mac.get();
+		m.update(rule.getBytes(StandardCharsets.UTF_8));
+		m.update((byte) 0);
+		return m.doFinal(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Returns a generator seeded from the pseudo-random function of a rule and
+	 * value. java.util.Random is used because its sequence is the same on
+	 * every JVM.
+	 */
+	Random random(String rule, String value) {
+		return new Random(ByteBuffer.wrap(prf(rule, value)).getLong());
+	}
+}
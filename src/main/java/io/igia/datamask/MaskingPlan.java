@@ -0,0 +1,279 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+import org.jdom2.Namespace;
+
+import com.jayway.jsonpath.JsonPath;
+
+import io.igia.datamask.model.Config;
+import io.igia.datamask.model.Field;
+
+/**
+ * A loaded masking configuration: the config model and the transformers
+ * resolved from its fields.
+ *
+ * Plans are loaded once per JVM for each config file, and reloaded only when
+ * the file changes. A config may be the xml config file or a binary plan file
+ * written by {@link #compile(String, String)}, which loads without JAXB.
+ */
+final class MaskingPlan {
+
+	static final Logger log = Logger.getLogger(MaskingPlan.class);
+
+	private static final int PLAN_MAGIC = 0x444d504c; // "DMPL"
+	private static final int PLAN_VERSION = 1;
+
+	// plans loaded in this JVM, keyed by canonical config file path
+	private static final ConcurrentMap<String, MaskingPlan> plans = new ConcurrentHashMap<>();
+
+	private final Config config;
+	private final List<Transformer> transformers;
+	private final int errors; // fields that could not be resolved
+	private final long lastModified;
+	// path matchers compiled from the transformers, shared by the documents using the plan
+	private final ConcurrentMap<String, Object> compiled = new ConcurrentHashMap<>();
+
+	private MaskingPlan(Config config, List<Transformer> transformers, int errors, long lastModified) {
+		this.config = config;
+		this.transformers = Collections.unmodifiableList(transformers);
+		this.errors = errors;
+		this.lastModified = lastModified;
+	}
+
+	Config getConfig() {
+		return config;
+	}
+
+	List<Transformer> getTransformers() {
+		return transformers;
+	}
+
+	/**
+	 * Returns a structure compiled from the plan, such as a path matcher,
+	 * compiling it on first use. The structure is shared by every document
+	 * masked with the plan, so it must not change once compiled.
+	 *
+	 * @param name
+	 *            names the structure, with the engine that uses it
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T getCompiled(String name, Supplier<T> compiler) {
+		return (T) compiled.computeIfAbsent(name, k -> compiler.get());
+	}
+
+	/**
+	 * Returns the plan for a config or plan file, loading it on first use.
+	 *
+	 * @return the plan, or null if the file could not be loaded
+	 */
+	static MaskingPlan forConfig(String configFile) {
+		File file = new File(configFile);
+		String key;
+		try {
+			key = file.getCanonicalPath();
+		} catch (IOException e) {
+			key = file.getAbsolutePath();
+		}
+		MaskingPlan plan = plans.get(key);
+		if (plan != null && plan.lastModified == file.lastModified()) {
+			log.debug("Using loaded configuration: " + configFile);
+			return plan;
+		}
+		plan = load(configFile);
+		if (plan != null) {
+			plans.put(key, plan);
+		}
+		return plan;
+	}
+
+	/**
+	 * Loads an xml config, checks that every field resolves to a transformer and
+	 * has a valid path, and writes the result to a binary plan file.
+	 */
+	static void compile(String configFile, String planFile) {
+		MaskingPlan plan = load(configFile);
+		if (plan == null) {
+			throw new DatamaskException("Failed to load configuration: " + configFile);
+		}
+		if (plan.errors > 0) {
+			throw new DatamaskException(plan.errors + " fields could not be resolved in configuration: " + configFile);
+		}
+		plan.validatePaths();
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(planFile)))) {
+			plan.write(out);
+		} catch (IOException e) {
+			log.error("Failed to write plan file: " + planFile + "; " + e.toString());
+			throw new DatamaskException("Failed to write plan file: " + planFile);
+		}
+		log.info("Compiled " + plan.transformers.size() + " fields from '" + configFile + "' to '" + planFile + "'");
+	}
+
+	private static MaskingPlan load(String configFile) {
+		File file = new File(configFile);
+		long lastModified = file.lastModified();
+		Config config = isPlanFile(file) ? readPlan(file) : new XmlDatamaskUtil().unmarshallConfig(configFile);
+		if (config == null) {
+			return null;
+		}
+
+		// Setup transformation configuration
+		log.debug("Create TransformerFactory");
+		TransformerFactory transFac = new TransformerFactory();
+		List<Transformer> transformers = new ArrayList<>();
+		int errors = 0;
+
+		// read config file with path and rule values
+		for (Field field : config.getField()) {
+			String path = field.getPath();
+			String fieldType = field.getType();
+			String transform = field.getTransform();
+			Map<String, String> params = field.getParams();
+			log.debug("Config:: path: " + path + ", type: " + fieldType + ", transform: " + transform);
+			try {
+				transformers.add(transFac.create(transform, path, fieldType, params));
+			} catch (Exception e) {
+				log.error("Failed to create Transformer class instance as configured; path: " + path + ", type: "
+						+ fieldType + ", transform: " + transform + "; " + e.getMessage());
+				errors++;
+			}
+		}
+		return new MaskingPlan(config, transformers, errors, lastModified);
+	}
+
+	private void validatePaths() {
+		XmlDatamaskUtil util = new XmlDatamaskUtil();
+		List<Namespace> namespaceList = util.getNamespaceList(config);
+		for (Transformer t : transformers) {
+			try {
+				switch (t.getNodeType()) {
+				case ATTRIBUTE:
+					util.getAttributeXpath(namespaceList, t.getPath());
+					break;
+				case TEXT:
+					util.getElementXpath(namespaceList, t.getPath());
+					break;
+				default:
+					JsonPath.compile(t.getPath());
+					break;
+				}
+			} catch (Exception e) {
+				log.error("Invalid path: " + t.getPath() + "; " + e.toString());
+				throw new DatamaskException("Invalid path: " + t.getPath());
+			}
+		}
+	}
+
+	private static boolean isPlanFile(File file) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == PLAN_MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void write(DataOutputStream out) throws IOException {
+		out.writeInt(PLAN_MAGIC);
+		out.writeInt(PLAN_VERSION);
+		writeString(out, config.getSourceType());
+		writeString(out, config.getSchemaLocation());
+		out.writeInt(config.getNamespaces().size());
+		for (io.igia.datamask.model.Namespace ns : config.getNamespaces()) {
+			writeString(out, ns.getPrefix());
+			writeString(out, ns.getUrl());
+		}
+		out.writeInt(transformers.size());
+		for (Transformer t : transformers) {
+			writeString(out, t.getPath());
+			writeString(out, t.getNodeType().name());
+			writeString(out, t.getRule());
+			Map<String, String> params = t.getParams() == null ? Collections.<String, String>emptyMap() : t.getParams();
+			out.writeInt(params.size());
+			for (Map.Entry<String, String> param : params.entrySet()) {
+				writeString(out, param.getKey());
+				writeString(out, param.getValue());
+			}
+		}
+	}
+
+	private static Config readPlan(File file) {
+		log.debug("Loading plan file: " + file);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			in.readInt();
+			int version = in.readInt();
+			if (version != PLAN_VERSION) {
+				log.error("Unsupported plan file version " + version + ": " + file);
+				return null;
+			}
+			Config config = new Config();
+			config.setSourceType(readString(in));
+			config.setSchemaLocation(readString(in));
+			List<io.igia.datamask.model.Namespace> namespaces = new ArrayList<>();
+			for (int n = in.readInt(); n > 0; n--) {
+				io.igia.datamask.model.Namespace ns = new io.igia.datamask.model.Namespace();
+				ns.setPrefix(readString(in));
+				ns.setUrl(readString(in));
+				namespaces.add(ns);
+			}
+			config.setNamespace(namespaces);
+			List<Field> fields = new ArrayList<>();
+			for (int n = in.readInt(); n > 0; n--) {
+				Field field = new Field();
+				field.setPath(readString(in));
+				field.setType(readString(in));
+				field.setTransform(readString(in));
+				Map<String, String> params = new HashMap<>();
+				for (int p = in.readInt(); p > 0; p--) {
+					params.put(readString(in), readString(in));
+				}
+				field.setParams(params);
+				fields.add(field);
+			}
+			config.setFields(fields);
+			return config;
+		} catch (IOException e) {
+			log.error("Failed to load plan file: " + file + "; " + e.toString());
+			return null;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,343 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+import io.igia.datamask.MaskingFlow.Processor;
+import io.igia.datamask.MaskingFlow.Subscriber;
+import io.igia.datamask.MaskingFlow.Subscription;
+
+/**
+ * Masks a stream of records, each one xml or json document, and publishes the
+ * masked records, for services consuming records from a message stream. The
+ * records are masked by a {@link MaskingSession}, so they share its compiled
+ * profile and dictionary, on up to the given number of executor tasks at
+ * once.
+ *
+ * Records are requested from upstream only while fewer than twice the
+ * parallelism are held, being masked or waiting for downstream demand, so
+ * memory stays bounded whatever the speed of either side. Masked records are
+ * published in the order they were received, or, if the order need not be
+ * kept, as soon as they are masked, so that a slow record does not hold up the
+ * others.
+ *
+ * A record that cannot be masked ends the stream: upstream is cancelled and
+ * the downstream subscriber gets the IOException through onError, as it does
+ * an upstream error, without the records masked but not yet published. The
+ * processor has one downstream subscriber, and does not close the session.
+ */
+public final class MaskingProcessor implements Processor<byte[], byte[]> {
+
+	static final Logger log = Logger.getLogger(MaskingProcessor.class);
+
+	// a record from its arrival until it is published
+	private static final class Record {
+		byte[] input;
+		byte[] masked;
+
+		Record(byte[] input) {
+			this.input = input;
+		}
+	}
+
+	private final MaskingSession session;
+	private final int parallelism;
+	private final boolean ordered;
+	private final Executor executor;
+	private final int capacity;
+
+	// guarded by this
+	private Subscription upstream;
+	private Subscriber<? super byte[]> downstream;
+	private long demand; // records requested by downstream and not yet published
+	private long requested; // records requested from upstream and not yet received
+	private int held; // records received and not yet published
+	private int running; // records being masked
+	private final Deque<Record> waiting = new ArrayDeque<>(); // received, not yet being masked
+	private final Deque<Record> outputs = new ArrayDeque<>(); // published from the head once masked
+	private boolean upstreamDone;
+	private Throwable failure;
+	private boolean terminated;
+	private boolean cancelled;
+	private boolean emitting; // a thread is in the drain loop
+	private boolean missed; // the state changed while a thread was in the drain loop
+
+	/**
+	 * Creates a processor masking on the common fork/join pool.
+	 *
+	 * @see #MaskingProcessor(MaskingSession, int, boolean, Executor)
+	 */
+	public MaskingProcessor(MaskingSession session, int parallelism, boolean ordered) {
+		this(session, parallelism, ordered, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param parallelism
+	 *            the most records masked at once
+	 * @param ordered
+	 *            true to publish the records in the order received
+	 * @param executor
+	 *            runs one task for each record
+	 */
+	public MaskingProcessor(MaskingSession session, int parallelism, boolean ordered, Executor executor) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("The parallelism must be at least 1");
+		}
+		this.session = session;
+		this.parallelism = parallelism;
+		this.ordered = ordered;
+		this.executor = executor;
+		this.capacity = 2 * parallelism;
+	}
+
+	@Override
+	public void onSubscribe(Subscription subscription) {
+		boolean accepted;
+		synchronized (this) {
+			accepted = upstream == null && !cancelled && failure == null;
+			if (accepted) {
+				upstream = subscription;
+			}
+		}
+		if (!accepted) {
+			subscription.cancel();
+			return;
+		}
+		drain();
+	}
+
+	@Override
+	public void onNext(byte[] item) {
+		if (item == null) {
+			throw new NullPointerException("A record is null");
+		}
+		synchronized (this) {
+			if (upstreamDone || failure != null || cancelled) {
+				return;
+			}
+			requested--;
+			held++;
+			Record record = new Record(item);
+			waiting.add(record);
+			if (ordered) {
+				outputs.add(record);
+			}
+		}
+		drain();
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		synchronized (this) {
+			upstreamDone = true;
+			if (failure == null) {
+				failure = throwable;
+			}
+		}
+		drain();
+	}
+
+	@Override
+	public void onComplete() {
+		synchronized (this) {
+			upstreamDone = true;
+		}
+		drain();
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super byte[]> subscriber) {
+		boolean accepted;
+		synchronized (this) {
+			accepted = downstream == null && !cancelled;
+		}
+		if (!accepted) {
+			subscriber.onSubscribe(new Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("A masking processor has one subscriber"));
+			return;
+		}
+		// signals start once onSubscribe has returned
+		subscriber.onSubscribe(new Downstream());
+		synchronized (this) {
+			downstream = subscriber;
+		}
+		drain();
+	}
+
+	private final class Downstream implements Subscription {
+		@Override
+		public void request(long n) {
+			synchronized (MaskingProcessor.this) {
+				if (n <= 0) {
+					if (failure == null) {
+						failure = new IllegalArgumentException("Requested " + n + " records; requests must be positive");
+					}
+				} else {
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				}
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			Subscription subscription;
+			synchronized (MaskingProcessor.this) {
+				cancelled = true;
+				waiting.clear();
+				outputs.clear();
+				subscription = upstream;
+			}
+			if (subscription != null) {
+				subscription.cancel();
+			}
+		}
+	}
+
+	private void mask(Record record) {
+		byte[] masked;
+		try {
+			masked = session.mask(record.input);
+		} catch (Exception | Error e) {
+			log.error("Failed to mask a record: " + e.getMessage());
+			synchronized (this) {
+				running--;
+				if (failure == null) {
+					failure = e;
+				}
+			}
+			drain();
+			return;
+		}
+		synchronized (this) {
+			running--;
+			record.input = null;
+			record.masked = masked;
+			if (!ordered) {
+				outputs.add(record);
+			}
+		}
+		drain();
+	}
+
+	/*
+	 * Publishes the records masked and requested, starts masking the records
+	 * received, and requests records from upstream while there is room for
+	 * them. One thread at a time runs the loop, and signals subscribers outside
+	 * the lock; a thread finding it taken leaves the work to that thread.
+	 */
+	private void drain() {
+		synchronized (this) {
+			if (emitting) {
+				missed = true;
+				return;
+			}
+			emitting = true;
+		}
+		while (true) {
+			Subscriber<? super byte[]> subscriber;
+			byte[] next = null;
+			Throwable error = null;
+			boolean complete = false;
+			Subscription cancel = null;
+			Subscription source;
+			long more = 0;
+			List<Record> start = new ArrayList<>();
+			synchronized (this) {
+				missed = false;
+				subscriber = downstream;
+				source = upstream;
+				if (cancelled || terminated) {
+					emitting = false;
+					return;
+				}
+				if (failure != null) {
+					if (subscriber != null) {
+						error = failure;
+						terminated = true;
+						waiting.clear();
+						outputs.clear();
+					}
+					if (!upstreamDone) {
+						upstreamDone = true;
+						cancel = upstream;
+					}
+				} else {
+					if (subscriber != null && demand > 0 && !outputs.isEmpty() && outputs.peek().masked != null) {
+						next = outputs.poll().masked;
+						demand--;
+						held--;
+					} else if (subscriber != null && upstreamDone && held == 0) {
+						complete = true;
+						terminated = true;
+					}
+					while (running < parallelism && !waiting.isEmpty()) {
+						start.add(waiting.poll());
+						running++;
+					}
+					if (upstream != null && !upstreamDone && held + requested < capacity) {
+						more = capacity - held - requested;
+						requested += more;
+					}
+				}
+				if (next == null && error == null && !complete && cancel == null && start.isEmpty() && more == 0
+						&& !missed) {
+					emitting = false;
+					return;
+				}
+			}
+			if (cancel != null) {
+				cancel.cancel();
+			}
+			for (Record record : start) {
+				try {
+					executor.execute(() -> mask(record));
+				} catch (RejectedExecutionException e) {
+					synchronized (this) {
+						running--;
+						if (failure == null) {
+							failure = e;
+						}
+					}
+				}
+			}
+			if (more > 0) {
+				source.request(more);
+			}
+			if (next != null) {
+				subscriber.onNext(next);
+			} else if (error != null) {
+				subscriber.onError(error);
+			} else if (complete) {
+				subscriber.onComplete();
+			}
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.validation.Schema;
+
+import org.apache.log4j.Logger;
+import org.jdom2.Namespace;
+import org.xml.sax.SAXException;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.fge.jsonschema.core.exceptions.ProcessingException;
+import com.github.fge.jsonschema.main.JsonSchema;
+
+/**
+ * A masking config loaded and compiled once, that masks xml or json documents
+ * held in memory or read from a stream rather than files, as many at a time
+ * as there are threads calling it. Open a {@link MaskingSession} to mask
+ * documents with a dictionary of their own.
+ *
+ * Documents are masked by the stream engines, so every rule of the config must
+ * have a path they support. The schema, when given, is loaded with the profile
+ * and every document is validated against it; a json document is then read
+ * as a tree first.
+ */
+public final class MaskingProfile {
+
+	static final Logger log = Logger.getLogger(MaskingProfile.class);
+
+	// the streams belong to the caller
+	private static final JsonFactory jsonFactory = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE)
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+	private static final ObjectMapper mapper = new ObjectMapper(jsonFactory);
+
+	// StAX factories are not documented as safe to share between threads
+	private static final ThreadLocal<XMLInputFactory> inputFactory = ThreadLocal.withInitial(() -> {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setXMLResolver(CatalogResolver.getInstance());
+		return factory;
+	});
+	private static final ThreadLocal<XMLOutputFactory> outputFactory = ThreadLocal
+			.withInitial(XMLOutputFactory::newInstance);
+
+	/**
+	 * Thrown when a document is not valid for the schema of the profile, or
+	 * cannot be validated against it.
+	 */
+	static final class InvalidDocumentException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		InvalidDocumentException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	private final String name;
+	private final String type;
+	private final String schemaFile;
+	private XmlPathMatcher xmlMatcher;
+	private Schema xmlSchema;
+	private JsonPathMatcher jsonMatcher;
+	private JsonSchema jsonSchema;
+
+	private MaskingProfile(String name, String type, String schemaFile) {
+		this.name = name;
+		this.type = type;
+		this.schemaFile = schemaFile;
+	}
+
+	/**
+	 * Compiles a config, or loads a plan file written by --compile, for
+	 * masking xml or json documents.
+	 *
+	 * @param type
+	 *            xml or json
+	 * @param schemaFile
+	 *            the xsd or json schema, or null not to validate
+	 * @throws DatamaskException
+	 *             if the config or schema cannot be loaded, or has a path the
+	 *             stream engine does not support
+	 */
+	public static MaskingProfile compile(String type, String configFile, String schemaFile) {
+		return load(configFile, type == null ? null : type.toLowerCase(), configFile, schemaFile);
+	}
+
+	/**
+	 * Loads a profile: its config, compiled for the stream engine, and its
+	 * schema.
+	 *
+	 * @param type
+	 *            xml or json
+	 * @param schemaFile
+	 *            the xsd or json schema, or null not to validate
+	 */
+	static MaskingProfile load(String name, String type, String configFile, String schemaFile) {
+		MaskingPlan plan = MaskingPlan.forConfig(configFile);
+		if (plan == null) {
+			throw new DatamaskException("Failed to load config '" + configFile + "' of profile '" + name + "'");
+		}
+		List<Transformer> config = new ArrayList<>(plan.getTransformers());
+		MaskingProfile profile = new MaskingProfile(name, type, schemaFile);
+		List<Transformer> unsupported;
+		try {
+			if ("xml".equals(type)) {
+				List<Namespace> namespaces = new XmlDatamaskUtil().getNamespaceList(plan.getConfig());
+				profile.xmlMatcher = plan.getCompiled("xml-stream", () -> XmlPathMatcher.compile(config, namespaces));
+				profile.xmlSchema = schemaFile == null ? null : SchemaCache.getXmlSchema(schemaFile);
+				unsupported = profile.xmlMatcher.getFallback();
+			} else if ("json".equals(type)) {
+				profile.jsonMatcher = plan.getCompiled("json-stream", () -> JsonPathMatcher.compile(config));
+				profile.jsonSchema = schemaFile == null ? null : SchemaCache.getJsonSchema(schemaFile);
+				unsupported = profile.jsonMatcher.getUnsupported();
+			} else {
+				throw new DatamaskException("Invalid type '" + type + "' of profile '" + name + "'");
+			}
+		} catch (SAXException | IOException | ProcessingException e) {
+			throw new DatamaskException(
+					"Failed to load schema '" + schemaFile + "' of profile '" + name + "'; " + e.getMessage());
+		}
+		if (!unsupported.isEmpty()) {
+			throw new DatamaskException("Paths of profile '" + name + "' not supported by the stream engine: "
+					+ Transformer.describePaths(unsupported));
+		}
+		log.info("Loaded profile '" + name + "': type=" + type + ", config=" + configFile + ", schema=" + schemaFile);
+		return profile;
+	}
+
+	/**
+	 * Loads the profiles listed in a file, one per line as
+	 * name=type:&lt;xml|json&gt;,config:&lt;file&gt;[,schema:&lt;file&gt;]. Blank lines and
+	 * lines starting with # are ignored.
+	 */
+	static Map<String, MaskingProfile> loadAll(String profilesFile) {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(Paths.get(profilesFile), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new DatamaskException("Failed to read profiles file '" + profilesFile + "'; " + e.getMessage());
+		}
+		Map<String, MaskingProfile> profiles = new LinkedHashMap<>();
+		for (String line : lines) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			int eq = line.indexOf('=');
+			if (eq <= 0) {
+				throw new DatamaskException("Invalid line of profiles file '" + profilesFile + "': " + line);
+			}
+			String name = line.substring(0, eq).trim();
+			String type = null;
+			String config = null;
+			String schema = null;
+			for (String property : line.substring(eq + 1).split(",")) {
+				String[] p = property.split(":", 2);
+				if (p.length == 2 && p[0].trim().equalsIgnoreCase("type")) {
+					type = p[1].trim().toLowerCase();
+				} else if (p.length == 2 && p[0].trim().equalsIgnoreCase("config")) {
+					config = p[1].trim();
+				} else if (p.length == 2 && p[0].trim().equalsIgnoreCase("schema")) {
+					schema = p[1].trim();
+				} else {
+					throw new DatamaskException("Invalid parameter '" + property + "' of profile '" + name + "'");
+				}
+			}
+			if (type == null || config == null) {
+				throw new DatamaskException("Profile '" + name + "' requires: type, config");
+			}
+			profiles.put(name, load(name, type, config, schema));
+		}
+		if (profiles.isEmpty()) {
+			throw new DatamaskException("No profiles in profiles file '" + profilesFile + "'");
+		}
+		return profiles;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	String getType() {
+		return type;
+	}
+
+	/**
+	 * Masks one document, written to the output as utf-8. The streams are not
+	 * closed.
+	 *
+	 * @throws IOException
+	 *             if the input is not a well-formed document, or an
+	 *             {@link InvalidDocumentException} if it is not valid for the
+	 *             schema
+	 */
+	void mask(InputStream in, OutputStream out) throws IOException {
+		if (xmlMatcher != null) {
+			maskXml(in, out);
+		} else {
+			maskJson(in, out);
+		}
+	}
+
+	/**
+	 * Masks one document held in memory.
+	 */
+	byte[] mask(byte[] document) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(document.length + 256);
+		mask(new ByteArrayInputStream(document), out);
+		return out.toByteArray();
+	}
+
+	private void maskXml(InputStream in, OutputStream out) throws IOException {
+		XmlStreamValidator validator = xmlSchema == null ? null : new XmlStreamValidator(xmlSchema);
+		try {
+			XMLEventReader reader = inputFactory.get().createXMLEventReader(in);
+			XMLEventWriter writer = outputFactory.get().createXMLEventWriter(out, StandardCharsets.UTF_8.name());
+			XmlStreamMasker.mask(reader, writer, xmlMatcher, validator);
+		} catch (XMLStreamException e) {
+			throw new IOException("Not a well-formed xml document; " + e.getMessage(), e);
+		} catch (SAXException e) {
+			throw new InvalidDocumentException("Not valid for the schema '" + schemaFile + "'; " + e.getMessage(), e);
+		}
+	}
+
+	private void maskJson(InputStream in, OutputStream out) throws IOException {
+		JsonNode node = null;
+		if (jsonSchema != null) {
+			node = mapper.readTree(in);
+			if (node == null) {
+				throw new IOException("No json value");
+			}
+			try {
+				if (!jsonSchema.validate(node).isSuccess()) {
+					throw new InvalidDocumentException("Not valid for the schema '" + schemaFile + "'", null);
+				}
+			} catch (ProcessingException e) {
+				throw new InvalidDocumentException(
+						"Failed to validate with the schema '" + schemaFile + "'; " + e.getMessage(), e);
+			}
+		}
+		try (JsonParser parser = node != null ? node.traverse() : jsonFactory.createParser(in);
+				JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+			if (!new JsonStreamMasker(jsonMatcher).mask(parser, generator)) {
+				throw new IOException("No json value");
+			}
+			if (parser.nextToken() != null) {
+				throw new IOException("Unexpected content after the json value");
+			}
+		}
+	}
+}
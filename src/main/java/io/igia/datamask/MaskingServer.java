@@ -0,0 +1,217 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-running http service masking the bodies of requests, so that masking a
+ * small document costs neither the start of a JVM nor the loading of a
+ * config.
+ *
+ * POST /mask/{profile} masks the body with a {@link MaskingProfile} loaded
+ * when the service starts, and returns the masked document; GET /health
+ * answers once the service is ready. Requests share the surrogate
+ * dictionary, so a value is masked the same way in every response.
+ *
+ * Requests are masked on a fixed pool of threads. When the pool and its queue
+ * are full, the thread accepting connections masks the request itself, and
+ * accepts no more until it is done.
+ */
+final class MaskingServer {
+
+	static final Logger log = Logger.getLogger(MaskingServer.class);
+
+	static final String MASK_PATH = "/mask/";
+	static final String HEALTH_PATH = "/health";
+	static final int MAX_BODY = 16 << 20;
+
+	private static final int QUEUE_PER_THREAD = 16;
+
+	private final HttpServer server;
+	private final ThreadPoolExecutor executor;
+	private final Map<String, MaskingProfile> profiles;
+
+	private MaskingServer(HttpServer server, ThreadPoolExecutor executor, Map<String, MaskingProfile> profiles) {
+		this.server = server;
+		this.executor = executor;
+		this.profiles = profiles;
+	}
+
+	/**
+	 * Starts serving the profiles.
+	 *
+	 * @param address
+	 *            the local address, or null for the loopback address
+	 * @param port
+	 *            the port, or 0 for any free port
+	 */
+	static MaskingServer start(String address, int port, int threads, Map<String, MaskingProfile> profiles) {
+		// the body of a response is written after its headers; without this, small responses wait for
+		// the delayed acknowledgement of the headers
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD), r -> {
+					Thread t = new Thread(r, "datamask-server-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		HttpServer server;
+		try {
+			server = HttpServer.create(address == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+					: new InetSocketAddress(address, port), 0);
+		} catch (IOException e) {
+			executor.shutdown();
+			log.error("Failed to listen on port " + port + "; " + e.getMessage());
+			throw new DatamaskException("Failed to listen on port " + port + "; " + e.getMessage());
+		}
+		MaskingServer service = new MaskingServer(server, executor, profiles);
+		server.createContext(MASK_PATH, service::mask);
+		server.createContext(HEALTH_PATH, service::health);
+		server.setExecutor(executor);
+		server.start();
+		log.info("Serving " + profiles.keySet() + " on " + server.getAddress() + " with " + threads + " threads");
+		return service;
+	}
+
+	int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stops accepting requests, and waits up to a few seconds for those being
+	 * masked.
+	 */
+	void stop() {
+		server.stop(2);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(2, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.info("Stopped serving on " + server.getAddress());
+	}
+
+	private void mask(HttpExchange exchange) throws IOException {
+		try {
+			String name = exchange.getRequestURI().getPath().substring(MASK_PATH.length());
+			MaskingProfile profile = profiles.get(name);
+			if (profile == null) {
+				send(exchange, 404, "No profile '" + name + "'");
+				return;
+			}
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Allow", "POST");
+				send(exchange, 405, "Use POST to mask a document");
+				return;
+			}
+			byte[] body = readBody(exchange);
+			if (body == null) {
+				send(exchange, 413, "Documents are limited to " + MAX_BODY + " bytes");
+				return;
+			}
+			byte[] masked;
+			try {
+				masked = profile.mask(body);
+			} catch (IOException e) {
+				// the message can quote values of the document, so it is not sent back
+				log.debug("Rejected request " + exchange.getRequestURI() + "; " + e.getMessage());
+				send(exchange, 400, e instanceof MaskingProfile.InvalidDocumentException
+						? "Not valid for the schema of profile '" + name + "'"
+						: "Not a well-formed " + profile.getType() + " document");
+				return;
+			}
+			// the media type of the request, but the masked document is always written in UTF-8
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			String mediaType = contentType == null ? "" : contentType.split(";", 2)[0].trim();
+			if (mediaType.isEmpty()) {
+				mediaType = "xml".equals(profile.getType()) ? "application/xml" : "application/json";
+			}
+			exchange.getResponseHeaders().set("Content-Type", mediaType + "; charset=utf-8");
+			exchange.sendResponseHeaders(200, masked.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(masked);
+			}
+		} catch (RuntimeException e) {
+			log.error("Failed to mask request " + exchange.getRequestURI() + "; " + e.toString());
+			send(exchange, 500, "Failed to mask the document");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void health(HttpExchange exchange) throws IOException {
+		try {
+			send(exchange, 200, "ok");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	// the whole body, or null if it is too long
+	private static byte[] readBody(HttpExchange exchange) throws IOException {
+		String length = exchange.getRequestHeaders().getFirst("Content-Length");
+		int expected = 8192;
+		if (length != null) {
+			try {
+				long n = Long.parseLong(length.trim());
+				if (n > MAX_BODY) {
+					return null;
+				}
+				expected = (int) Math.max(0, n);
+			} catch (NumberFormatException e) {
+				// read until the end of the body
+			}
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream(expected);
+		byte[] buffer = new byte[8192];
+		try (InputStream in = exchange.getRequestBody()) {
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+				if (body.size() + n > MAX_BODY) {
+					return null;
+				}
+				body.write(buffer, 0, n);
+			}
+		}
+		return body.toByteArray();
+	}
+
+	private static void send(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Masks documents with a compiled {@link MaskingProfile} and a surrogate
+ * dictionary of the session's own, for embedding masking in a service
+ * without files. A value is masked the same way in every document of a
+ * session, and independently of other sessions and of
+ * {@link Datamask#main(String[])}; closing the session releases its
+ * dictionary.
+ *
+ * Sessions are safe to use from many threads at once. Values masked with a
+ * --key-file key are the same in every session given the same key.
+ *
+ * <pre>
+ * MaskingProfile profile = MaskingProfile.compile("json", "config-json.xml", null);
+ * try (MaskingSession session = MaskingSession.open(profile)) {
+ * 	byte[] masked = session.mask(document);
+ * }
+ * </pre>
+ */
+public final class MaskingSession implements AutoCloseable {
+
+	private final MaskingProfile profile;
+	private volatile SurrogateDictionary dictionary; // null once closed
+
+	private MaskingSession(MaskingProfile profile, SurrogateDictionary dictionary) {
+		this.profile = profile;
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * Opens a session keeping its surrogates on the heap.
+	 */
+	public static MaskingSession open(MaskingProfile profile) {
+		return new MaskingSession(profile, new HeapSurrogateDictionary());
+	}
+
+	/**
+	 * Opens a session keeping its surrogates in direct memory, by fingerprint,
+	 * as --dictionary=offheap does.
+	 */
+	public static MaskingSession openOffHeap(MaskingProfile profile) {
+		return new MaskingSession(profile, new OffHeapSurrogateDictionary());
+	}
+
+	/**
+	 * Masks one document, written to the output as utf-8. The streams are not
+	 * closed.
+	 *
+	 * @throws IOException
+	 *             if the input is not a well-formed document, or is not valid
+	 *             for the schema of the profile
+	 * @throws IllegalStateException
+	 *             if the session is closed
+	 */
+	public void mask(InputStream in, OutputStream out) throws IOException {
+		SurrogateDictionary previous = SurrogateDictionary.bind(dictionary());
+		try {
+			profile.mask(in, out);
+		} finally {
+			SurrogateDictionary.bind(previous);
+		}
+	}
+
+	/**
+	 * Masks one document held in memory.
+	 *
+	 * @see #mask(InputStream, OutputStream)
+	 */
+	public byte[] mask(byte[] document) throws IOException {
+		SurrogateDictionary previous = SurrogateDictionary.bind(dictionary());
+		try {
+			return profile.mask(document);
+		} finally {
+			SurrogateDictionary.bind(previous);
+		}
+	}
+
+	/**
+	 * Returns the number of values masked by the session so far.
+	 */
+	public long size() {
+		SurrogateDictionary d = dictionary();
+		long size = 0;
+		for (String namespace : d.getNamespaces()) {
+			size += d.getStats(namespace).getSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Releases the dictionary of the session. Documents being masked by other
+	 * threads at the time are finished.
+	 */
+	@Override
+	public void close() {
+		SurrogateDictionary d = dictionary;
+		dictionary = null;
+		if (d != null) {
+			d.close();
+		}
+	}
+
+	private SurrogateDictionary dictionary() {
+		SurrogateDictionary d = dictionary;
+		if (d == null) {
+			throw new IllegalStateException("The masking session is closed");
+		}
+		return d;
+	}
+}
@@ -21,6 +21,7 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.apache.log4j.Logger;
 
@@ -33,7 +34,10 @@ public class NameTransformer extends Transformer {
 	private static final int MIN_NAME_LENGTH = 5;
 	private static final int MAX_NAME_LENGTH = 10;
 
-	private MarkovNameGenerator nameGenerator;
+	// a generator is not thread safe, so each thread has its own
+	private ThreadLocal<MarkovNameGenerator> nameGenerator;
+	// names picked by the masking key, as the generator cannot be seeded
+	private List<String> names;
 
 	NameTransformer() throws URISyntaxException, IOException {
 		super();
@@ -68,7 +72,11 @@ public class NameTransformer extends Transformer {
         	throw e;
         }
         try {
-			this.nameGenerator = new MarkovNameGenerator(trainingNames);
+			final List<String> names = trainingNames;
+			this.names = names;
+			MarkovNameGenerator generator = new MarkovNameGenerator(names);
+			this.nameGenerator = ThreadLocal.withInitial(() -> new MarkovNameGenerator(names));
+			this.nameGenerator.set(generator);
         }
         catch (Exception e) {
         	logger.error("Failed to create markov name generator; "+e.getMessage()+"; "+e.getCause());
@@ -83,9 +91,16 @@ public class NameTransformer extends Transformer {
 		int wordCount = value.split(" ").length;
 		int commaCount = value.split(",").length-1;
 		logger.debug("mask '"+value+"; words="+wordCount+"; commas="+commaCount);
+		MaskingKey key = MaskingKey.getInstance();
+		Random random = key == null ? new SecureRandom() : key.random(getNamespace(), value);
 		for (int w=0; w<wordCount && w<3; w++) {
-			int len = new SecureRandom().nextInt(MAX_NAME_LENGTH - MIN_NAME_LENGTH)+MIN_NAME_LENGTH;
-			String name = nameGenerator.generateName(len);
+			String name;
+			if (key == null) {
+				int len = random.nextInt(MAX_NAME_LENGTH - MIN_NAME_LENGTH)+MIN_NAME_LENGTH;
+				name = nameGenerator.get().generateName(len);
+			} else {
+				name = names.get(random.nextInt(names.size()));
+			}
 			result.append((w>0?" ":"") + 
 				      (w==2?name.substring(0, 1):name)+ 
 				      (w==0&&commaCount>0?",":""));
@@ -0,0 +1,408 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.fge.jsonschema.core.exceptions.ProcessingException;
+import com.github.fge.jsonschema.core.report.ProcessingReport;
+import com.github.fge.jsonschema.main.JsonSchema;
+
+/**
+ * Masks a newline delimited json file, such as the output of a FHIR bulk data
+ * export, with one json value (a FHIR resource) on each line.
+ *
+ * The file is memory mapped and split into chunks of whole lines, which are
+ * masked in parallel and written in their original order. Each line is masked
+ * as a stream of tokens by a {@link JsonStreamMasker}, so every rule must have
+ * a path supported by {@link JsonPathMatcher}.
+ *
+ * The config may be a directory holding one config or plan file for each
+ * resource type, named after the type (Patient.xml or Patient.plan); each line
+ * is then masked with the config of its resourceType member. When schema
+ * validation is requested, each line is validated against the json schema.
+ *
+ * Standard input ("-") cannot be mapped: its lines are masked one at a time
+ * as they arrive, and the output is flushed before any read that would wait
+ * for more input.
+ */
+public class NdjsonSourceDocument extends SourceDocument<Void> {
+
+	static final Logger log = Logger.getLogger(NdjsonSourceDocument.class);
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private static final String RESOURCE_TYPE = "resourceType";
+
+	// lines are masked in chunks of about this size
+	static final int CHUNK_SIZE = 1 << 21;
+	// the file is mapped in windows of this size, so no line may be longer
+	private static final long WINDOW_SIZE = 1L << 30;
+	// lines read from standard input are held in memory up to this size
+	static final int MAX_LINE = 64 << 20;
+
+	private JsonPathMatcher matcher; // the matcher of a single config, or null for a directory of configs
+	private final ConcurrentMap<String, JsonPathMatcher> matchers = new ConcurrentHashMap<>();
+	private JsonSchema jsonSchema; // null when not validating
+
+	NdjsonSourceDocument(String type, String config, String schema, String input, String output) {
+		super(type, config, schema, input, output);
+	}
+
+	@Override
+	public void maskDocument(Boolean skipValidation) {
+		if (matcher == null && !new File(configFile).isDirectory()) {
+			log.error("ERROR: no configuration loaded for input file '" + inputFile + "'");
+			throw new DatamaskException("No configuration loaded for input file '" + inputFile + "'");
+		}
+		jsonSchema = null;
+		if (skipValidation) {
+			log.warn("WARNING: Not validating the input file against a json schema.");
+		} else {
+			try {
+				jsonSchema = SchemaCache.getJsonSchema(schemaFile);
+			} catch (IOException | ProcessingException e) {
+				log.error("ERROR: failed to load json schema '" + schemaFile + "'; " + e.toString());
+				throw new DatamaskException("Failed to load json schema '" + schemaFile + "'");
+			}
+		}
+		log.debug("Masking ndjson file '" + inputFile + "'");
+
+		boolean masked = false;
+		try (OutputStream os = openOutput()) {
+			if (STANDARD_STREAM.equals(inputFile)) {
+				try (InputStream in = openInput()) {
+					maskLines(in, os);
+				}
+			} else {
+				try (FileChannel in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+					mask(in, os);
+				}
+			}
+			masked = true;
+		} catch (IOException e) {
+			log.error("Failed to mask ndjson document: " + inputFile + "; " + e.getMessage());
+		} catch (DatamaskException e) {
+			log.error("Failed to mask ndjson document: " + inputFile + "; " + e.getMessage());
+		}
+		if (!masked) {
+			// do not leave a partially masked file behind
+			failed = true;
+			removeOutput();
+		}
+	}
+
+	// masks each line as soon as it has been read; a line is written only once fully masked
+	private void maskLines(InputStream in, OutputStream os) throws IOException {
+		byte[] buffer = new byte[1 << 16];
+		int start = 0; // of the line being read
+		int searched = 0; // no newline before this position
+		int end = 0; // of the bytes read
+		long offset = 0; // of the buffer in the input
+		long lines = 0;
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		JsonGenerator generator = jsonFactory.createGenerator(line);
+		generator.setRootValueSeparator(null);
+		while (true) {
+			int newline = indexOf(buffer, searched, end, (byte) '\n');
+			if (newline < 0) {
+				searched = end;
+				if (start > 0) {
+					System.arraycopy(buffer, start, buffer, 0, end - start);
+					offset += start;
+					searched -= start;
+					end -= start;
+					start = 0;
+				} else if (end == buffer.length) {
+					if (buffer.length >= MAX_LINE) {
+						throw new IOException("Line longer than " + MAX_LINE + " bytes at offset " + offset);
+					}
+					buffer = Arrays.copyOf(buffer, Math.min(MAX_LINE, buffer.length * 2));
+				}
+				if (in.available() == 0) {
+					// the masked lines are not held back while waiting for more input
+					os.flush();
+				}
+				int n = in.read(buffer, end, buffer.length - end);
+				if (n < 0) {
+					break;
+				}
+				end += n;
+				continue;
+			}
+			lines += maskStreamLine(buffer, start, newline, offset, generator, line, os);
+			start = newline + 1;
+			searched = start;
+		}
+		// the last line may have no newline
+		lines += maskStreamLine(buffer, start, end, offset, generator, line, os);
+		log.debug("Masked " + lines + " lines");
+	}
+
+	private int maskStreamLine(byte[] bytes, int from, int end, long offset, JsonGenerator generator,
+			ByteArrayOutputStream line, OutputStream os) throws IOException {
+		if (isBlank(bytes, from, end)) {
+			return 0;
+		}
+		try {
+			maskLine(bytes, from, end - from, generator);
+		} catch (IOException | DatamaskException e) {
+			throw new IOException("line at offset " + (offset + from) + ": " + e.getMessage(), e);
+		}
+		generator.flush();
+		line.write('\n');
+		line.writeTo(os);
+		line.reset();
+		return 1;
+	}
+
+	private static int indexOf(byte[] bytes, int from, int end, byte b) {
+		for (int i = from; i < end; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// splits the file into chunks of whole lines, masks them on the common pool
+	// and writes them in order, with a bounded number of chunks in flight
+	private void mask(FileChannel in, OutputStream os) throws IOException {
+		long size = in.size();
+		int parallelism = ForkJoinPool.getCommonPoolParallelism();
+		Deque<Future<byte[]>> pending = new ArrayDeque<>();
+		MappedByteBuffer window = null;
+		long windowStart = 0;
+		long start = 0;
+		try {
+			while (start < size) {
+				if (window == null || start + Math.min(CHUNK_SIZE, size - start) > windowStart + window.capacity()) {
+					windowStart = start;
+					window = in.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+				}
+				int from = (int) (start - windowStart);
+				int limit = window.capacity();
+				int end = Math.min(from + CHUNK_SIZE, limit);
+				while (end < limit && window.get(end - 1) != '\n') {
+					end++;
+				}
+				if (window.get(end - 1) != '\n' && windowStart + limit < size) {
+					// the last line continues past the window
+					if (from == 0) {
+						throw new IOException("Line longer than " + WINDOW_SIZE + " bytes at offset " + start);
+					}
+					window = null;
+					continue;
+				}
+				ByteBuffer chunk = window.duplicate();
+				chunk.limit(end).position(from);
+				long offset = start;
+				if (size <= CHUNK_SIZE) {
+					// a small file is masked on the calling thread
+					os.write(maskChunk(chunk.slice(), offset));
+				} else {
+					if (pending.size() >= 2 * parallelism) {
+						os.write(pending.poll().get());
+					}
+					ByteBuffer slice = chunk.slice();
+					pending.add(ForkJoinPool.commonPool().submit(() -> maskChunk(slice, offset)));
+				}
+				start = windowStart + end;
+			}
+			while (!pending.isEmpty()) {
+				os.write(pending.poll().get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while masking");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw new IOException(cause instanceof IOException || cause instanceof DatamaskException
+					? cause.getMessage() : cause.toString(), cause);
+		} finally {
+			for (Future<byte[]> f : pending) {
+				f.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Masks the lines of a chunk. Blank lines are dropped, and every line
+	 * written ends with a newline.
+	 *
+	 * @param offset
+	 *            the position of the chunk in the file, to report errors
+	 */
+	byte[] maskChunk(ByteBuffer chunk, long offset) throws IOException {
+		byte[] bytes = new byte[chunk.remaining()];
+		chunk.get(bytes);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + (bytes.length >> 3));
+		try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+			generator.setRootValueSeparator(new SerializedString("\n"));
+			int lines = 0;
+			int from = 0;
+			while (from < bytes.length) {
+				int end = from;
+				while (end < bytes.length && bytes[end] != '\n') {
+					end++;
+				}
+				if (!isBlank(bytes, from, end)) {
+					try {
+						maskLine(bytes, from, end - from, generator);
+					} catch (IOException | DatamaskException e) {
+						throw new IOException("line at offset " + (offset + from) + ": " + e.getMessage(), e);
+					}
+					lines++;
+				}
+				from = end + 1;
+			}
+			generator.flush();
+			if (lines > 0) {
+				out.write('\n');
+			}
+		}
+		return out.toByteArray();
+	}
+
+	// masks one json value, written to the generator as a root value
+	void maskLine(byte[] bytes, int offset, int length, JsonGenerator generator) throws IOException {
+		JsonNode node = null;
+		JsonPathMatcher lineMatcher = matcher;
+		if (lineMatcher == null || jsonSchema != null) {
+			node = mapper.readTree(jsonFactory.createParser(bytes, offset, length));
+			if (node == null) {
+				throw new IOException("No json value");
+			}
+		}
+		if (lineMatcher == null) {
+			lineMatcher = matcher(node.path(RESOURCE_TYPE).asText(null));
+		}
+		if (jsonSchema != null) {
+			validate(node);
+		}
+		try (JsonParser parser = node != null ? node.traverse() : jsonFactory.createParser(bytes, offset, length)) {
+			if (!new JsonStreamMasker(lineMatcher).mask(parser, generator)) {
+				throw new IOException("No json value");
+			}
+			if (parser.nextToken() != null) {
+				throw new IOException("Unexpected content after the json value");
+			}
+		}
+	}
+
+	private void validate(JsonNode node) {
+		ProcessingReport report;
+		try {
+			report = jsonSchema.validate(node);
+		} catch (ProcessingException e) {
+			throw new DatamaskException("Failed to validate with schema '" + schemaFile + "'; " + e.getMessage());
+		}
+		if (!report.isSuccess()) {
+			throw new DatamaskException("Not valid for the specified schema '" + schemaFile + "'");
+		}
+	}
+
+	// the matcher compiled from the config of a resource type, in the config directory
+	private JsonPathMatcher matcher(String resourceType) {
+		if (resourceType == null || resourceType.isEmpty() || !resourceType.matches("[A-Za-z0-9]+")) {
+			throw new DatamaskException("No resource type");
+		}
+		JsonPathMatcher m = matchers.get(resourceType);
+		if (m != null) {
+			return m;
+		}
+		File file = new File(configFile, resourceType + ".plan");
+		if (!file.isFile()) {
+			file = new File(configFile, resourceType + ".xml");
+		}
+		if (!file.isFile()) {
+			throw new DatamaskException("No configuration for resource type '" + resourceType + "' in '" + configFile
+					+ "'");
+		}
+		MaskingPlan typePlan = MaskingPlan.forConfig(file.getPath());
+		if (typePlan == null) {
+			throw new DatamaskException("Failed to load configuration '" + file + "'");
+		}
+		m = compile(typePlan);
+		matchers.put(resourceType, m);
+		return m;
+	}
+
+	private static JsonPathMatcher compile(MaskingPlan plan) {
+		JsonPathMatcher m = plan.getCompiled("json-stream", () -> JsonPathMatcher.compile(plan.getTransformers()));
+		if (!m.getUnsupported().isEmpty()) {
+			String paths = Transformer.describePaths(m.getUnsupported());
+			log.error("ERROR: paths not supported by the ndjson engine: " + paths);
+			throw new DatamaskException("Paths not supported by the ndjson engine: " + paths);
+		}
+		return m;
+	}
+
+	private static boolean isBlank(byte[] bytes, int from, int end) {
+		for (int i = from; i < end; i++) {
+			if (bytes[i] != ' ' && bytes[i] != '\t' && bytes[i] != '\r') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	protected void configure() {
+		// a directory of configs is loaded one resource type at a time, as lines need them
+		matcher = null;
+		if (new File(configFile).isDirectory()) {
+			log.debug("Using the configuration of each resource type in '" + configFile + "'");
+			return;
+		}
+		super.configure();
+	}
+
+	@Override
+	protected void postConfigure() {
+		log.debug("Compiling paths");
+		matcher = compile(plan);
+		log.debug("Compiled");
+	}
+
+	@Override
+	protected void preConfigure() {
+		// not necessary for the ndjson engine
+	}
+}
@@ -13,6 +13,7 @@
 package io.igia.datamask;
 
 import java.security.SecureRandom;
+import java.util.Random;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -107,15 +108,20 @@ public class NumericIdentifierTransformer extends Transformer {
 	}
 	
 	private String numberSequenceMasker(String value) {
-		String result;
 		if (value==null || value.length()==0) {
 			return "";
 		}
+		MaskingKey key = MaskingKey.getInstance();
+		return numberSequenceMasker(value, key == null ? new SecureRandom() : key.random(getNamespace(), value));
+	}
+
+	private String numberSequenceMasker(String value, Random random) {
+		String result;
 		// use random number generator with similar digits, try again if equals
-		long ran = new SecureRandom().nextLong() & Long.MAX_VALUE; // get positive random long
+		long ran = random.nextLong() & Long.MAX_VALUE; // get positive random long
 		result = String.valueOf(ran).substring(0,value.length());
 		if (result.equalsIgnoreCase(value)) {
-			return numberSequenceMasker(value);
+			return numberSequenceMasker(value, random);
 		}
 		return result;
 	}
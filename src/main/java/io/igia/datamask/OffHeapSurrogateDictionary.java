@@ -0,0 +1,334 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Surrogate dictionary kept outside the java heap, for runs with too many
+ * distinct values to hold as strings.
+ *
+ * Original values are not stored: each is reduced to a 128-bit fingerprint,
+ * an HMAC-SHA256 of the namespace and value under a key drawn at random for
+ * the dictionary, truncated to 128 bits. Fingerprints live in open-addressing
+ * tables in direct buffers, split into segments by the high bits of the
+ * fingerprint, and surrogates are appended as utf-8 bytes to an arena of
+ * direct buffers owned by the segment. An entry takes 24 bytes of table, 4
+ * bytes of length and the bytes of the surrogate; only the per-namespace
+ * counters and the values being masked at the moment are on the heap.
+ *
+ * Direct buffers count against -XX:MaxDirectMemorySize, which defaults to the
+ * maximum heap size.
+ */
+class OffHeapSurrogateDictionary extends SurrogateDictionary {
+
+	private static final int SEGMENT_BITS = 6;
+	private static final int SEGMENTS = 1 << SEGMENT_BITS;
+	private static final int INITIAL_SLOTS = 1 << 10;
+	// fingerprint high and low words, then the reference to the surrogate
+	static final int SLOT_SIZE = 24;
+	private static final int MAX_SLOTS = Integer.highestOneBit(Integer.MAX_VALUE / SLOT_SIZE);
+	private static final int CHUNK_SIZE = 1 << 22;
+	// a reference is the occupied flag, the segment, the arena chunk and the offset in the chunk
+	static final long OCCUPIED = 1L << 63;
+	// fingerprints of the values indexed for lookup(), separate from every rule namespace
+	private static final byte[] ANY_NAMESPACE = new byte[0];
+
+	private final ThreadLocal<Mac> mac;
+	private final Segment[] segments = new Segment[SEGMENTS];
+	// values being masked, so the mask function runs once per value
+	private final ConcurrentMap<Fingerprint, FutureTask<String>> computing = new ConcurrentHashMap<>();
+
+	OffHeapSurrogateDictionary() {
+		this(newKey());
+	}
+
+	OffHeapSurrogateDictionary(byte[] key) {
+		SecretKeySpec spec = new SecretKeySpec(key, "HmacSHA256");
+		mac = ThreadLocal.withInitial(() -> {
+			try {
+				Mac m = Mac.getInstance("HmacSHA256");
+				m.init(spec);
+				return m;
+			} catch (GeneralSecurityException e) {
+				throw new DatamaskException("HmacSHA256 is not available; " + e.getMessage());
+			}
+		});
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(i);
+		}
+	}
+
+	@Override
+	String getSurrogate(String namespace, String value, boolean indexed, Function<String, String> mask) {
+		Stats stats = stats(namespace);
+		Fingerprint fp = fingerprint(namespace.getBytes(StandardCharsets.UTF_8), value);
+		String surrogate = find(fp);
+		if (surrogate != null) {
+			stats.hits.increment();
+			return surrogate;
+		}
+		// published before threads waiting for it see it, so a surrogate in use has been saved
+		FutureTask<String> task = new FutureTask<>(() -> {
+			String masked = mask.apply(value);
+			if (masked != null) {
+				publish(fp, indexed ? fingerprint(ANY_NAMESPACE, value) : null,
+						masked.getBytes(StandardCharsets.UTF_8));
+			}
+			return masked;
+		});
+		FutureTask<String> running = computing.putIfAbsent(fp, task);
+		if (running != null) {
+			stats.hits.increment();
+			return get(running);
+		}
+		try {
+			// another thread may have stored the surrogate since the first look
+			surrogate = find(fp);
+			if (surrogate != null) {
+				stats.hits.increment();
+				return surrogate;
+			}
+			task.run();
+			surrogate = get(task);
+			stats.misses.increment();
+			if (surrogate != null) {
+				stats.size.increment();
+			}
+			return surrogate;
+		} finally {
+			computing.remove(fp, task);
+		}
+	}
+
+	@Override
+	String lookup(String value) {
+		return find(fingerprint(ANY_NAMESPACE, value));
+	}
+
+	/**
+	 * Makes a new surrogate visible to other threads, under its fingerprint
+	 * and, for {@link #lookup(String)}, under the alias fingerprint if given
+	 * and not taken by another surrogate.
+	 */
+	void publish(Fingerprint fp, Fingerprint alias, byte[] surrogate) {
+		long ref = store(fp, surrogate);
+		if (alias != null) {
+			index(alias, ref);
+		}
+	}
+
+	static byte[] newKey() {
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		return key;
+	}
+
+	private Fingerprint fingerprint(byte[] namespace, String value) {
+		Mac m = mac.get();
+		m.update(namespace);
+		m.update((byte) 0);
+		byte[] digest = m.doFinal(value.getBytes(StandardCharsets.UTF_8));
+		ByteBuffer b = ByteBuffer.wrap(digest);
+		return new Fingerprint(b.getLong(), b.getLong());
+	}
+
+	private Segment segment(Fingerprint fp) {
+		return segments[(int) (fp.hi >>> (64 - SEGMENT_BITS))];
+	}
+
+	String find(Fingerprint fp) {
+		Segment s = segment(fp);
+		long ref;
+		s.lock.readLock().lock();
+		try {
+			ref = s.find(fp);
+		} finally {
+			s.lock.readLock().unlock();
+		}
+		return ref == 0 ? null : read(ref);
+	}
+
+	long store(Fingerprint fp, byte[] surrogate) {
+		Segment s = segment(fp);
+		s.lock.writeLock().lock();
+		try {
+			long ref = s.find(fp);
+			if (ref == 0) {
+				ref = s.append(surrogate);
+				s.put(fp, ref);
+			}
+			return ref;
+		} finally {
+			s.lock.writeLock().unlock();
+		}
+	}
+
+	// points a fingerprint at a surrogate stored for another one, unless it has one already
+	boolean index(Fingerprint fp, long ref) {
+		Segment s = segment(fp);
+		s.lock.writeLock().lock();
+		try {
+			if (s.find(fp) != 0) {
+				return false;
+			}
+			s.put(fp, ref);
+			return true;
+		} finally {
+			s.lock.writeLock().unlock();
+		}
+	}
+
+	// arena entries are never moved or changed once written, so they are read without a lock
+	private String read(long ref) {
+		ByteBuffer chunk = segments[(int) (ref >>> 56) & 0x7f].chunks[(int) (ref >>> 32) & 0xffffff];
+		int offset = (int) ref;
+		byte[] bytes = new byte[chunk.getInt(offset)];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = chunk.get(offset + 4 + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String get(FutureTask<String> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DatamaskException("Interrupted while waiting for a surrogate");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new DatamaskException("Failed to mask value; " + e.getCause());
+		}
+	}
+
+	static final class Fingerprint {
+		final long hi;
+		final long lo;
+
+		Fingerprint(long hi, long lo) {
+			this.hi = hi;
+			this.lo = lo;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Fingerprint)) {
+				return false;
+			}
+			Fingerprint f = (Fingerprint) o;
+			return hi == f.hi && lo == f.lo;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) lo;
+		}
+	}
+
+	// one open-addressing table with linear probing, and the arena of the surrogates it stores
+	private static final class Segment {
+		final int id;
+		final ReadWriteLock lock = new ReentrantReadWriteLock();
+		ByteBuffer table = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_SIZE);
+		int slots = INITIAL_SLOTS;
+		int count;
+		// written under the write lock; the array is replaced, never changed, when a chunk is added
+		volatile ByteBuffer[] chunks = new ByteBuffer[0];
+		ByteBuffer current;
+
+		Segment(int id) {
+			this.id = id;
+		}
+
+		long find(Fingerprint fp) {
+			int mask = slots - 1;
+			for (int i = (int) fp.lo & mask;; i = (i + 1) & mask) {
+				long ref = table.getLong(i * SLOT_SIZE + 16);
+				if (ref == 0) {
+					return 0;
+				}
+				if (table.getLong(i * SLOT_SIZE) == fp.hi && table.getLong(i * SLOT_SIZE + 8) == fp.lo) {
+					return ref;
+				}
+			}
+		}
+
+		void put(Fingerprint fp, long ref) {
+			if ((count + 1) * 4L > slots * 3L) {
+				resize();
+			}
+			insert(table, slots, fp.hi, fp.lo, ref);
+			count++;
+		}
+
+		private void resize() {
+			if (slots >= MAX_SLOTS) {
+				throw new DatamaskException("Surrogate dictionary is full");
+			}
+			int size = slots * 2;
+			ByteBuffer resized = ByteBuffer.allocateDirect(size * SLOT_SIZE);
+			for (int i = 0; i < slots; i++) {
+				long ref = table.getLong(i * SLOT_SIZE + 16);
+				if (ref != 0) {
+					insert(resized, size, table.getLong(i * SLOT_SIZE), table.getLong(i * SLOT_SIZE + 8), ref);
+				}
+			}
+			table = resized;
+			slots = size;
+		}
+
+		private static void insert(ByteBuffer table, int slots, long hi, long lo, long ref) {
+			int mask = slots - 1;
+			int i = (int) lo & mask;
+			while (table.getLong(i * SLOT_SIZE + 16) != 0) {
+				i = (i + 1) & mask;
+			}
+			table.putLong(i * SLOT_SIZE, hi);
+			table.putLong(i * SLOT_SIZE + 8, lo);
+			table.putLong(i * SLOT_SIZE + 16, ref);
+		}
+
+		long append(byte[] bytes) {
+			if (current == null || current.remaining() < 4 + bytes.length) {
+				if (chunks.length > 0xffffff) {
+					throw new DatamaskException("Surrogate dictionary is full");
+				}
+				current = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, 4 + bytes.length));
+				ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+				grown[chunks.length] = current;
+				chunks = grown;
+			}
+			int offset = current.position();
+			current.putInt(bytes.length);
+			current.put(bytes);
+			return OCCUPIED | (long) id << 56 | (long) (chunks.length - 1) << 32 | offset;
+		}
+	}
+}
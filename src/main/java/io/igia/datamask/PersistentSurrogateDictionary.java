@@ -0,0 +1,498 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Off-heap surrogate dictionary saved in a file, so that values are masked the
+ * same way in later runs.
+ *
+ * The file starts with a header holding the fingerprint key, followed by the
+ * surrogates and open-addressing table written by the last compaction, which
+ * are memory-mapped and read in place, so opening the file takes the same time
+ * however many entries it holds. Surrogates made since then are appended to a
+ * log at the end of the file, one checksummed record each, and replayed into
+ * memory when the file is opened; a record left incomplete by a crash is
+ * discarded. {@link #compact(String)} folds the log into the mapped table.
+ *
+ * The file holds the fingerprint key next to the fingerprints of the original
+ * values, so it must be protected like the source data.
+ */
+final class PersistentSurrogateDictionary extends OffHeapSurrogateDictionary {
+
+	static final Logger log = Logger.getLogger(PersistentSurrogateDictionary.class);
+
+	static final int MAGIC = 0x444d5344; // "DMSD"
+	static final int VERSION = 1;
+	// magic, version, key, table entries, table offset, table slots, log offset
+	private static final int HEADER_SIZE = 72;
+	private static final int KEY_SIZE = 32;
+	private static final int MAX_SURROGATE = 1 << 20;
+	private static final int MIN_SLOTS = 1 << 10;
+
+	private final String path;
+	private final FileChannel channel;
+	private final Header header;
+	// surrogates and table of the last compaction, or null if there was none
+	private final Region table;
+	private long end;
+
+	private PersistentSurrogateDictionary(String path, FileChannel channel, Header header) throws IOException {
+		super(header.key);
+		this.path = path;
+		this.channel = channel;
+		this.header = header;
+		this.table = header.slots == 0 ? null
+				: new Region(channel, MapMode.READ_ONLY, HEADER_SIZE, header.logOffset - HEADER_SIZE);
+		int[] records = new int[1];
+		end = readLog(channel, header.logOffset, r -> {
+			long ref = store(r.fp, r.surrogate);
+			if (r.alias != null) {
+				index(r.alias, ref);
+			}
+			records[0]++;
+		});
+		if (end < channel.size()) {
+			log.warn("Discarding " + (channel.size() - end) + " bytes of incomplete records at the end of dictionary file '"
+					+ path + "'");
+			channel.truncate(end);
+		}
+		log.debug("Opened dictionary file '" + path + "' with " + header.entries + " compacted entries and " + records[0]
+				+ " records since");
+	}
+
+	/**
+	 * Opens a dictionary file for this process, creating it if it does not
+	 * exist.
+	 */
+	static PersistentSurrogateDictionary open(String path) {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			lock(channel);
+			Header header = channel.size() == 0 ? Header.create(channel) : Header.read(channel);
+			return new PersistentSurrogateDictionary(path, channel, header);
+		} catch (IOException | DatamaskException e) {
+			closeQuietly(channel);
+			log.error("Failed to open dictionary file '" + path + "'; " + e.getMessage());
+			throw new DatamaskException("Failed to open dictionary file '" + path + "'; " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Rewrites a dictionary file with the records of its log folded into the
+	 * mapped table, and an empty log. The file must not be in use.
+	 */
+	static void compact(String path) {
+		File file = new File(path);
+		File compacted = new File(path + ".compact");
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			lock(in);
+			Header old = Header.read(in);
+
+			// first pass over the log for the size of the new table and surrogates
+			long[] added = new long[2];
+			long logEnd = readLog(in, old.logOffset, r -> {
+				added[0] += r.alias == null ? 1 : 2;
+				added[1] += 4 + r.surrogate.length;
+			});
+			long surrogates = (old.slots == 0 ? old.logOffset : old.tableOffset) - HEADER_SIZE;
+			long slots = MIN_SLOTS;
+			while (slots * 3 < (old.entries + added[0]) * 4) {
+				slots *= 2;
+			}
+			Header header = new Header(old.key);
+			header.tableOffset = HEADER_SIZE + surrogates + added[1];
+			header.slots = slots;
+			header.logOffset = header.tableOffset + slots * SLOT_SIZE;
+
+			try (FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				// surrogates keep their offsets, so the old table entries can be copied as they are
+				for (long n = 0; n < surrogates;) {
+					n += in.transferTo(HEADER_SIZE + n, surrogates - n, out.position(HEADER_SIZE + n));
+				}
+				Region region = new Region(out, MapMode.READ_WRITE, HEADER_SIZE, header.logOffset - HEADER_SIZE);
+				if (old.slots > 0) {
+					Region oldTable = new Region(in, MapMode.READ_ONLY, old.tableOffset, old.slots * SLOT_SIZE);
+					for (long i = 0; i < old.slots; i++) {
+						long pos = old.tableOffset + i * SLOT_SIZE;
+						long ref = oldTable.getLong(pos + 16);
+						if (ref != 0 && insert(region, header, oldTable.getLong(pos), oldTable.getLong(pos + 8), ref)) {
+							header.entries++;
+						}
+					}
+				}
+				long[] next = { HEADER_SIZE + surrogates };
+				readLog(in, old.logOffset, r -> {
+					long ref = OCCUPIED | next[0];
+					region.putInt(next[0], r.surrogate.length);
+					region.put(next[0] + 4, r.surrogate);
+					next[0] += 4 + r.surrogate.length;
+					if (insert(region, header, r.fp.hi, r.fp.lo, ref)) {
+						header.entries++;
+					}
+					if (r.alias != null && insert(region, header, r.alias.hi, r.alias.lo, ref)) {
+						header.entries++;
+					}
+				});
+				region.force();
+				header.write(out);
+				out.force(true);
+			}
+			log.info("Compacted dictionary file '" + path + "': " + header.entries + " entries, "
+					+ (logEnd - old.logOffset) + " bytes of log folded into the table");
+		} catch (IOException | DatamaskException e) {
+			log.error("Failed to compact dictionary file '" + path + "'; " + e.getMessage());
+			if (!compacted.delete()) {
+				log.debug("No compacted file to remove: " + compacted);
+			}
+			throw new DatamaskException("Failed to compact dictionary file '" + path + "'; " + e.getMessage());
+		}
+		try {
+			Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.error("Failed to replace dictionary file '" + path + "'; " + e.getMessage());
+			throw new DatamaskException("Failed to replace dictionary file '" + path + "'; " + e.getMessage());
+		}
+	}
+
+	@Override
+	String find(Fingerprint fp) {
+		if (table != null) {
+			long ref = probe(table, header, fp.hi, fp.lo);
+			if (ref != 0) {
+				long pos = ref & ~OCCUPIED;
+				byte[] bytes = new byte[table.getInt(pos)];
+				table.get(pos + 4, bytes);
+				return new String(bytes, StandardCharsets.UTF_8);
+			}
+		}
+		return super.find(fp);
+	}
+
+	// a surrogate is appended to the file before it is published, so that no thread can use one that sync()
+	// would miss; aliases are taken in the order of the records, as they are when the file is read back
+	@Override
+	synchronized void publish(Fingerprint fp, Fingerprint alias, byte[] surrogate) {
+		if (alias != null && find(alias) != null) {
+			alias = null;
+		}
+		if (surrogate.length > MAX_SURROGATE) {
+			log.warn("Surrogate of " + surrogate.length + " bytes is too long to save in the dictionary file");
+		} else {
+			ByteBuffer record = ByteBuffer.wrap(new Record(fp, alias, surrogate).encode());
+			try {
+				while (record.hasRemaining()) {
+					end += channel.write(record, end);
+				}
+			} catch (IOException e) {
+				log.error("Failed to write to dictionary file '" + path + "'; " + e.getMessage());
+				throw new DatamaskException("Failed to write to dictionary file '" + path + "'; " + e.getMessage());
+			}
+		}
+		super.publish(fp, alias, surrogate);
+	}
+
+	@Override
+	synchronized void sync() {
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			log.error("Failed to save dictionary file '" + path + "'; " + e.getMessage());
+			throw new DatamaskException("Failed to save dictionary file '" + path + "'; " + e.getMessage());
+		}
+	}
+
+	@Override
+	synchronized void close() {
+		try {
+			channel.force(false);
+			channel.close();
+		} catch (IOException e) {
+			log.error("Failed to close dictionary file '" + path + "'; " + e.getMessage());
+		}
+	}
+
+	private static void lock(FileChannel channel) throws IOException {
+		FileLock lock;
+		try {
+			lock = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		}
+		if (lock == null) {
+			throw new DatamaskException("the file is in use");
+		}
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.debug("Failed to close dictionary file; " + e.getMessage());
+			}
+		}
+	}
+
+	private static long probe(Region table, Header header, long hi, long lo) {
+		long mask = header.slots - 1;
+		for (long i = lo & mask;; i = (i + 1) & mask) {
+			long pos = header.tableOffset + i * SLOT_SIZE;
+			long ref = table.getLong(pos + 16);
+			if (ref == 0) {
+				return 0;
+			}
+			if (table.getLong(pos) == hi && table.getLong(pos + 8) == lo) {
+				return ref;
+			}
+		}
+	}
+
+	private static boolean insert(Region table, Header header, long hi, long lo, long ref) {
+		long mask = header.slots - 1;
+		for (long i = lo & mask;; i = (i + 1) & mask) {
+			long pos = header.tableOffset + i * SLOT_SIZE;
+			if (table.getLong(pos + 16) == 0) {
+				table.putLong(pos, hi);
+				table.putLong(pos + 8, lo);
+				table.putLong(pos + 16, ref);
+				return true;
+			}
+			if (table.getLong(pos) == hi && table.getLong(pos + 8) == lo) {
+				return false;
+			}
+		}
+	}
+
+	// reads the log from an offset, passing each complete record to the consumer; returns the end of the last one
+	private static long readLog(FileChannel channel, long from, Consumer<Record> consumer) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(from)),
+				1 << 16));
+		long pos = from;
+		while (true) {
+			Record r;
+			try {
+				r = Record.read(in);
+			} catch (EOFException e) {
+				r = null;
+			}
+			if (r == null) {
+				return pos;
+			}
+			consumer.accept(r);
+			pos += r.size();
+		}
+	}
+
+	private static final class Header {
+		final byte[] key;
+		long entries;
+		long tableOffset;
+		long slots;
+		long logOffset = HEADER_SIZE;
+
+		Header(byte[] key) {
+			this.key = key;
+		}
+
+		static Header create(FileChannel channel) throws IOException {
+			Header header = new Header(newKey());
+			header.write(channel);
+			channel.force(true);
+			return header;
+		}
+
+		static Header read(FileChannel channel) throws IOException {
+			ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE);
+			while (b.hasRemaining() && channel.read(b, b.position()) >= 0) {
+				// read until the header is complete or the file ends
+			}
+			b.flip();
+			if (b.remaining() < HEADER_SIZE || b.getInt() != MAGIC) {
+				throw new DatamaskException("not a dictionary file");
+			}
+			int version = b.getInt();
+			if (version != VERSION) {
+				throw new DatamaskException("unsupported dictionary file version " + version);
+			}
+			byte[] key = new byte[KEY_SIZE];
+			b.get(key);
+			Header header = new Header(key);
+			header.entries = b.getLong();
+			header.tableOffset = b.getLong();
+			header.slots = b.getLong();
+			header.logOffset = b.getLong();
+			if (header.logOffset < HEADER_SIZE || header.logOffset > channel.size()) {
+				throw new DatamaskException("the file is truncated");
+			}
+			return header;
+		}
+
+		void write(FileChannel channel) throws IOException {
+			ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE);
+			b.putInt(MAGIC).putInt(VERSION).put(key).putLong(entries).putLong(tableOffset).putLong(slots)
+					.putLong(logOffset);
+			b.flip();
+			while (b.hasRemaining()) {
+				channel.write(b, b.position());
+			}
+		}
+	}
+
+	// a surrogate appended to the log: length, alias flag, fingerprint, alias fingerprint, bytes and crc32
+	private static final class Record {
+		final Fingerprint fp;
+		final Fingerprint alias;
+		final byte[] surrogate;
+
+		Record(Fingerprint fp, Fingerprint alias, byte[] surrogate) {
+			this.fp = fp;
+			this.alias = alias;
+			this.surrogate = surrogate;
+		}
+
+		int size() {
+			return 4 + 1 + 16 + (alias == null ? 0 : 16) + surrogate.length + 4;
+		}
+
+		byte[] encode() {
+			ByteBuffer b = ByteBuffer.allocate(size());
+			b.putInt(surrogate.length).put((byte) (alias == null ? 0 : 1)).putLong(fp.hi).putLong(fp.lo);
+			if (alias != null) {
+				b.putLong(alias.hi).putLong(alias.lo);
+			}
+			b.put(surrogate);
+			CRC32 crc = new CRC32();
+			crc.update(b.array(), 0, b.position());
+			b.putInt((int) crc.getValue());
+			return b.array();
+		}
+
+		// returns null at the end of the log or at a damaged record
+		static Record read(DataInputStream in) throws IOException {
+			int first = in.read();
+			if (first < 0) {
+				return null;
+			}
+			byte[] head = new byte[5];
+			head[0] = (byte) first;
+			in.readFully(head, 1, 4);
+			int length = ByteBuffer.wrap(head).getInt();
+			if (length < 0 || length > MAX_SURROGATE || (head[4] != 0 && head[4] != 1)) {
+				return null;
+			}
+			byte[] body = new byte[16 + (head[4] == 0 ? 0 : 16) + length];
+			in.readFully(body);
+			int checksum = in.readInt();
+			CRC32 crc = new CRC32();
+			crc.update(head);
+			crc.update(body);
+			if ((int) crc.getValue() != checksum) {
+				return null;
+			}
+			ByteBuffer b = ByteBuffer.wrap(body);
+			Fingerprint fp = new Fingerprint(b.getLong(), b.getLong());
+			Fingerprint alias = head[4] == 0 ? null : new Fingerprint(b.getLong(), b.getLong());
+			byte[] surrogate = new byte[length];
+			b.get(surrogate);
+			return new Record(fp, alias, surrogate);
+		}
+	}
+
+	// part of a file mapped in windows that overlap, so an item starting in a window lies wholly inside it
+	private static final class Region {
+		private static final long WINDOW = 1L << 30;
+		private static final long OVERLAP = 4 + MAX_SURROGATE;
+
+		private final long start;
+		private final MappedByteBuffer[] windows;
+
+		Region(FileChannel channel, MapMode mode, long start, long length) throws IOException {
+			this.start = start;
+			windows = new MappedByteBuffer[(int) ((length + WINDOW - 1) / WINDOW)];
+			for (int i = 0; i < windows.length; i++) {
+				long offset = i * WINDOW;
+				windows[i] = channel.map(mode, start + offset, Math.min(WINDOW + OVERLAP, length - offset));
+			}
+		}
+
+		private MappedByteBuffer window(long pos) {
+			return windows[(int) ((pos - start) / WINDOW)];
+		}
+
+		private static int offset(long pos, long start) {
+			return (int) ((pos - start) % WINDOW);
+		}
+
+		int getInt(long pos) {
+			return window(pos).getInt(offset(pos, start));
+		}
+
+		long getLong(long pos) {
+			return window(pos).getLong(offset(pos, start));
+		}
+
+		void get(long pos, byte[] dst) {
+			MappedByteBuffer w = window(pos);
+			int offset = offset(pos, start);
+			for (int i = 0; i < dst.length; i++) {
+				dst[i] = w.get(offset + i);
+			}
+		}
+
+		void putInt(long pos, int value) {
+			window(pos).putInt(offset(pos, start), value);
+		}
+
+		void putLong(long pos, long value) {
+			window(pos).putLong(offset(pos, start), value);
+		}
+
+		void put(long pos, byte[] src) {
+			MappedByteBuffer w = window(pos);
+			int offset = offset(pos, start);
+			for (int i = 0; i < src.length; i++) {
+				w.put(offset + i, src[i]);
+			}
+		}
+
+		void force() {
+			for (MappedByteBuffer w : windows) {
+				w.force();
+			}
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Prefix-preserving anonymization of addresses in the manner of Crypto-PAn:
+ * bit i of the output is bit i of the input xor a pseudo-random function of
+ * the i bits before it, so two addresses sharing a prefix of n bits are
+ * mapped to addresses sharing a prefix of n bits, and no more.
+ *
+ * The function is evaluated a byte at a time: one AES encryption of a
+ * byte-aligned prefix gives the 255 bits for every prefix within the next
+ * byte. The bits of the prefixes of up to two bytes are computed when the
+ * cipher is created, and those of three-byte prefixes are cached for each
+ * thread, so an IPv4 address mostly needs no encryption at all. Outputs are
+ * not those of the reference Crypto-PAn implementation.
+ */
+final class PrefixPreservingCipher {
+
+	private static final int TREE = 4; // longs of flip bits for the subtree of one byte
+	private static final int CACHE_SIZE = 1 << 14;
+
+	private final ThreadLocal<Cipher> aes;
+	// subtrees of the empty prefix, of each one-byte prefix and of each two-byte prefix
+	private final long[] tables = new long[TREE * (1 + 256 + 65536)];
+	private final ThreadLocal<Cache> cache = ThreadLocal.withInitial(Cache::new);
+
+	// subtrees of recently seen three-byte prefixes, for one thread
+	private static final class Cache {
+		final int[] prefixes = new int[CACHE_SIZE];
+		final long[] trees = new long[TREE * CACHE_SIZE];
+		final long[] scratch = new long[TREE];
+		final byte[] block = new byte[32];
+
+		Cache() {
+			Arrays.fill(prefixes, -1);
+		}
+	}
+
+	PrefixPreservingCipher(byte[] key) {
+		SecretKeySpec spec = new SecretKeySpec(key, "AES");
+		aes = ThreadLocal.withInitial(() -> {
+			try {
+				Cipher c = Cipher.getInstance("AES/ECB/NoPadding");
+				c.init(Cipher.ENCRYPT_MODE, spec);
+				return c;
+			} catch (GeneralSecurityException e) {
+				throw new DatamaskException("AES is not available; " + e.getMessage());
+			}
+		});
+		byte[] block = new byte[32];
+		subtree(0, 0, 0, tables, 0, block);
+		for (int b0 = 0; b0 < 256; b0++) {
+			subtree((long) b0 << 56, 0, 1, tables, TREE * (1 + b0), block);
+			for (int b1 = 0; b1 < 256; b1++) {
+				subtree((long) (b0 << 8 | b1) << 48, 0, 2, tables, TREE * (257 + (b0 << 8 | b1)), block);
+			}
+		}
+	}
+
+	int anonymize(int address) {
+		int b0 = address >>> 24;
+		int b1 = address >>> 16 & 0xff;
+		int b2 = address >>> 8 & 0xff;
+		Cache c = cache.get();
+		int o3 = permute(c.trees, cached(c, address >>> 8), address & 0xff);
+		return permute(tables, 0, b0) << 24 | permute(tables, TREE * (1 + b0), b1) << 16
+				| permute(tables, TREE * (257 + (b0 << 8 | b1)), b2) << 8 | o3;
+	}
+
+	/**
+	 * Anonymizes a 128-bit address given as its high and low 64 bits, into the
+	 * same two longs.
+	 */
+	void anonymize(long[] address) {
+		long hi = address[0];
+		long lo = address[1];
+		Cache c = cache.get();
+		int b0 = (int) (hi >>> 56);
+		int b1 = (int) (hi >>> 48) & 0xff;
+		long outHi = (long) permute(tables, 0, b0) << 56 | (long) permute(tables, TREE * (1 + b0), b1) << 48
+				| (long) permute(tables, TREE * (257 + (b0 << 8 | b1)), (int) (hi >>> 40) & 0xff) << 40
+				| (long) permute(c.trees, cached(c, (int) (hi >>> 40)), (int) (hi >>> 32) & 0xff) << 32;
+		long outLo = 0;
+		for (int i = 4; i < 16; i++) {
+			subtree(hi, lo, i, c.scratch, 0, c.block);
+			int shift = 56 - 8 * (i % 8);
+			if (i < 8) {
+				outHi |= (long) permute(c.scratch, 0, (int) (hi >>> shift) & 0xff) << shift;
+			} else {
+				outLo |= (long) permute(c.scratch, 0, (int) (lo >>> shift) & 0xff) << shift;
+			}
+		}
+		address[0] = outHi;
+		address[1] = outLo;
+	}
+
+	// offset in the cache of the subtree below a three-byte prefix
+	private int cached(Cache c, int prefix) {
+		int slot = (prefix ^ prefix >>> 14) & (CACHE_SIZE - 1);
+		if (c.prefixes[slot] != prefix) {
+			subtree((long) prefix << 40, 0, 3, c.trees, TREE * slot, c.block);
+			c.prefixes[slot] = prefix;
+		}
+		return TREE * slot;
+	}
+
+	// the 256 flip bits below the first len bytes of an address: two AES blocks of the prefix, its length and a counter;
+	// the block buffer holds the input in its first 16 bytes and the output in the last 16
+	private void subtree(long hi, long lo, int len, long[] out, int offset, byte[] block) {
+		for (int i = 0; i < 15; i++) {
+			long word = i < 8 ? hi : lo;
+			block[i] = i < len ? (byte) (word >>> (56 - 8 * (i % 8))) : 0;
+		}
+		Cipher c = aes.get();
+		try {
+			for (int half = 0; half < 2; half++) {
+				block[15] = (byte) (len << 1 | half);
+				c.update(block, 0, 16, block, 16);
+				out[offset + 2 * half] = word(block, 16);
+				out[offset + 2 * half + 1] = word(block, 24);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new DatamaskException("Failed to encrypt with AES; " + e.getMessage());
+		}
+	}
+
+	private static long word(byte[] bytes, int offset) {
+		long x = 0;
+		for (int i = 0; i < 8; i++) {
+			x = x << 8 | (bytes[offset + i] & 0xff);
+		}
+		return x;
+	}
+
+	// maps a byte through the subtree: each bit is flipped by the bit of the node its prefix in the byte leads to
+	private static int permute(long[] trees, int offset, int b) {
+		int flips = 0;
+		for (int j = 0; j < 8; j++) {
+			int node = 1 << j | b >>> (8 - j);
+			flips |= ((int) (trees[offset + (node >>> 6)] >>> node) & 1) << (7 - j);
+		}
+		return b ^ flips;
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Surrogate dictionary of a worker of a sharded run, asking the
+ * {@link DictionaryService} of the coordinator for every value it has not
+ * masked before.
+ *
+ * The worker makes a candidate surrogate with the mask function and sends it
+ * with the value; the coordinator returns the surrogate of the first worker
+ * to mask the value, which the worker keeps for later requests, since it
+ * never changes. Surrogates found by {@link #lookup(String)} are kept too,
+ * but not values without one, which another worker may mask later.
+ *
+ * Each thread has its own connection, so requests from several threads do not
+ * wait for each other.
+ */
+final class RemoteSurrogateDictionary extends SurrogateDictionary {
+
+	static final Logger log = Logger.getLogger(RemoteSurrogateDictionary.class);
+
+	private final String host;
+	private final int port;
+	private final String id = UUID.randomUUID().toString(); // tells the coordinator which connections are ours
+	// surrogates returned by the coordinator, by namespace and value
+	private final ConcurrentMap<String, ConcurrentMap<String, String>> namespaces = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, String> anyNamespace = new ConcurrentHashMap<>();
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+	private final ThreadLocal<Connection> connection = ThreadLocal.withInitial(this::connect);
+
+	private static final class Connection {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+	}
+
+	/**
+	 * Connects to the dictionary service of a coordinator; the connection is
+	 * checked at once, so a coordinator that is not running is reported before
+	 * masking starts.
+	 */
+	RemoteSurrogateDictionary(String host, int port) {
+		this.host = host;
+		this.port = port;
+		connection.get();
+		log.info("Using the surrogate dictionary of coordinator " + host + ":" + port);
+	}
+
+	@Override
+	String getSurrogate(String namespace, String value, boolean indexed, Function<String, String> mask) {
+		Stats stats = stats(namespace);
+		ConcurrentMap<String, String> surrogates = namespaces.get(namespace);
+		if (surrogates == null) {
+			surrogates = namespaces.computeIfAbsent(namespace, n -> new ConcurrentHashMap<>());
+		}
+		String surrogate = surrogates.get(value);
+		if (surrogate != null) {
+			stats.hits.increment();
+			return surrogate;
+		}
+		String candidate = mask.apply(value);
+		if (candidate == null) {
+			stats.misses.increment();
+			return null;
+		}
+		try {
+			Connection c = connection.get();
+			c.out.writeByte(DictionaryService.SURROGATE);
+			DictionaryService.writeString(c.out, namespace);
+			DictionaryService.writeString(c.out, value);
+			c.out.writeBoolean(indexed);
+			DictionaryService.writeString(c.out, candidate);
+			c.out.flush();
+			surrogate = DictionaryService.readString(c.in);
+		} catch (IOException e) {
+			throw failed(e);
+		}
+		// the candidate of another worker, or of this one, for the same value
+		if (candidate.equals(surrogate)) {
+			stats.misses.increment();
+			stats.size.increment();
+		} else {
+			stats.hits.increment();
+		}
+		surrogates.putIfAbsent(value, surrogate);
+		if (indexed) {
+			anyNamespace.putIfAbsent(value, surrogate);
+		}
+		return surrogate;
+	}
+
+	@Override
+	String lookup(String value) {
+		String surrogate = anyNamespace.get(value);
+		if (surrogate != null) {
+			return surrogate;
+		}
+		try {
+			Connection c = connection.get();
+			c.out.writeByte(DictionaryService.LOOKUP);
+			DictionaryService.writeString(c.out, value);
+			c.out.flush();
+			surrogate = DictionaryService.readString(c.in);
+		} catch (IOException e) {
+			throw failed(e);
+		}
+		if (surrogate != null) {
+			anyNamespace.putIfAbsent(value, surrogate);
+		}
+		return surrogate;
+	}
+
+	/**
+	 * Tells the coordinator that this worker has finished, and closes the
+	 * connections.
+	 */
+	@Override
+	void close() {
+		try {
+			Connection c = connection.get();
+			c.out.writeByte(DictionaryService.DONE);
+			c.out.flush();
+			c.in.readBoolean();
+		} catch (IOException | DatamaskException e) {
+			log.error("Failed to tell coordinator " + host + ":" + port + " that the worker has finished; "
+					+ e.getMessage());
+		}
+		for (Connection c : connections) {
+			try {
+				c.socket.close();
+			} catch (IOException e) {
+				log.debug("Failed to close connection to the coordinator; " + e.getMessage());
+			}
+		}
+		connections.clear();
+	}
+
+	private Connection connect() {
+		try {
+			Socket socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			Connection c = new Connection(socket);
+			connections.add(c);
+			c.out.writeByte(DictionaryService.HELLO);
+			DictionaryService.writeString(c.out, id);
+			c.out.flush();
+			return c;
+		} catch (IOException e) {
+			throw failed(e);
+		}
+	}
+
+	private DatamaskException failed(IOException e) {
+		log.error("Failed to reach the dictionary service of coordinator " + host + ":" + port + "; " + e.getMessage());
+		return new DatamaskException(
+				"Failed to reach the dictionary service of coordinator " + host + ":" + port + "; " + e.getMessage());
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.apache.log4j.Logger;
+import org.jdom2.Document;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.input.sax.XMLReaderSchemaFactory;
+import org.xml.sax.SAXException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.fge.jackson.JsonLoader;
+import com.github.fge.jsonschema.core.exceptions.ProcessingException;
+import com.github.fge.jsonschema.main.JsonSchema;
+import com.github.fge.jsonschema.main.JsonSchemaFactory;
+
+/**
+ * Compiled xsd and json schemas shared by all documents, keyed by schema file
+ * path and reloaded when the file changes, together with pools of reusable xml
+ * parsers for each xsd.
+ *
+ * Compiled schemas are immutable and thread safe. A parser is used by one
+ * thread at a time: it is taken from the pool and returned once the document
+ * is built.
+ */
+final class SchemaCache {
+
+	static final Logger log = Logger.getLogger(SchemaCache.class);
+
+	private static final String JSON_V4_SCHEMA_IDENTIFIER = "http://json-schema.org/draft-04/schema#";
+	private static final String JSON_SCHEMA_IDENTIFIER_ELEMENT = "$schema";
+
+	private static class Entry<S> {
+		final long lastModified;
+		final S schema;
+		final Queue<SAXBuilder> builders = new ConcurrentLinkedQueue<>();
+
+		Entry(long lastModified, S schema) {
+			this.lastModified = lastModified;
+			this.schema = schema;
+		}
+	}
+
+	private static final ConcurrentMap<String, Entry<Schema>> xmlSchemas = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, Entry<JsonSchema>> jsonSchemas = new ConcurrentHashMap<>();
+	private static final Queue<SAXBuilder> builders = new ConcurrentLinkedQueue<>();
+
+	private SchemaCache() {
+	}
+
+	/**
+	 * Returns the compiled xsd, compiling it on first use or when the file has
+	 * changed.
+	 */
+	static Schema getXmlSchema(String xsdFile) throws SAXException {
+		return getXmlEntry(xsdFile).schema;
+	}
+
+	/**
+	 * Returns the compiled json schema, compiling it on first use or when the
+	 * file has changed. Schemas without a $schema member are read as json schema
+	 * v4.
+	 */
+	static JsonSchema getJsonSchema(String schemaFile) throws IOException, ProcessingException {
+		File file = new File(schemaFile);
+		String key = key(file);
+		long lastModified = file.lastModified();
+		Entry<JsonSchema> entry = jsonSchemas.get(key);
+		if (entry == null || entry.lastModified != lastModified) {
+			log.debug("Compiling json schema: " + schemaFile);
+			JsonNode node = JsonLoader.fromFile(file);
+			if (node.get(JSON_SCHEMA_IDENTIFIER_ELEMENT) == null) {
+				((ObjectNode) node).put(JSON_SCHEMA_IDENTIFIER_ELEMENT, JSON_V4_SCHEMA_IDENTIFIER);
+			}
+			entry = new Entry<>(lastModified, JsonSchemaFactory.byDefault().getJsonSchema(node));
+			jsonSchemas.put(key, entry);
+		}
+		return entry.schema;
+	}
+
+	/**
+	 * Parses an xml file with a pooled parser, validating it against the xsd
+	 * unless the xsd is null.
+	 */
+	static Document build(String fileName, String xsdFile) throws JDOMException, IOException, SAXException {
+		Entry<Schema> entry = xsdFile == null ? null : getXmlEntry(xsdFile);
+		Queue<SAXBuilder> pool = entry == null ? builders : entry.builders;
+		SAXBuilder builder = pool.poll();
+		if (builder == null) {
+			builder = entry == null ? new SAXBuilder() : new SAXBuilder(new XMLReaderSchemaFactory(entry.schema));
+			builder.setEntityResolver(CatalogResolver.getInstance());
+		}
+		Document document = builder.build(fileName);
+		// a parser is returned to the pool only after a successful parse
+		pool.offer(builder);
+		return document;
+	}
+
+	private static Entry<Schema> getXmlEntry(String xsdFile) throws SAXException {
+		File file = new File(xsdFile);
+		String key = key(file);
+		long lastModified = file.lastModified();
+		Entry<Schema> entry = xmlSchemas.get(key);
+		if (entry == null || entry.lastModified != lastModified) {
+			log.debug("Compiling xsd: " + xsdFile);
+			SchemaFactory schemafac = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+			// imports, includes and DTDs are read from local copies only
+			schemafac.setResourceResolver(CatalogResolver.getInstance());
+			schemafac.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, CatalogResolver.LOCAL_ACCESS);
+			schemafac.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, CatalogResolver.LOCAL_ACCESS);
+			entry = new Entry<>(lastModified, schemafac.newSchema(file));
+			xmlSchemas.put(key, entry);
+		}
+		return entry;
+	}
+
+	private static String key(File file) {
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+}
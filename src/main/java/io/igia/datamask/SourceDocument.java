@@ -12,18 +12,28 @@
  */
 package io.igia.datamask;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.log4j.Logger;
 
 import io.igia.datamask.model.Config;
-import io.igia.datamask.model.Field;
 
 public abstract class SourceDocument<D> {
 
 	static final Logger log = Logger.getLogger(SourceDocument.class);
+
+	// the input or output file name standing for standard input or output
+	static final String STANDARD_STREAM = "-";
 	
 	protected D document;
 		
@@ -33,10 +43,13 @@ public abstract class SourceDocument<D> {
 	protected String inputFile;
 	protected String outputFile;
 	protected Config configXml;
+	protected MaskingPlan plan;
 
-	private XmlDatamaskUtil util = new XmlDatamaskUtil();
 	protected List<Transformer> config;
 
+	// set by the stages when the document could not be masked, after logging why
+	protected boolean failed;
+
 	SourceDocument(String type, String configFile, String schemaFile, String inputFile, String outputFile) {
 		this.type = type;
 		this.configFile = configFile;
@@ -93,12 +106,129 @@ public abstract class SourceDocument<D> {
 		this.outputFile = outputFile;
 	}
 
-	public void mask(Boolean skipValidation) {
-		configure();
-		maskDocument(skipValidation);
+	/**
+	 * Opens the input file, or standard input when the input file is "-".
+	 * Closing the stream returned for standard input leaves it open.
+	 */
+	protected InputStream openInput() throws IOException {
+		if (STANDARD_STREAM.equals(inputFile)) {
+			return new FilterInputStream(System.in) {
+				@Override
+				public void close() {
+					// standard input stays open
+				}
+			};
+		}
+		return new FileInputStream(inputFile);
+	}
+
+	/**
+	 * Opens the output file, or standard output when the output file is "-".
+	 * Closing the stream returned for standard output flushes it and leaves it
+	 * open.
+	 */
+	protected OutputStream openOutput() throws IOException {
+		if (STANDARD_STREAM.equals(outputFile)) {
+			// written through the descriptor, since System.out flushes on every write
+			System.out.flush();
+			return new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16) {
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			};
+		}
+		return new BufferedOutputStream(new FileOutputStream(outputFile));
+	}
+
+	/**
+	 * Removes a partially masked output file; output already written to
+	 * standard output is left as it is.
+	 */
+	protected void removeOutput() {
+		if (!STANDARD_STREAM.equals(outputFile) && !new File(outputFile).delete()) {
+			log.debug("No output file to remove: " + outputFile);
+		}
+	}
+
+	/**
+	 * Masks the document, and reports whether its output has been written. The
+	 * output left by an earlier run is removed first, so that a document that
+	 * fails leaves no output that could be taken for its masked version.
+	 *
+	 * @return false when the document could not be masked; the reason has
+	 *         been logged
+	 */
+	public boolean mask(Boolean skipValidation) {
+		prepare();
+		try {
+			configure();
+			if (!failed) {
+				maskDocument(skipValidation);
+			}
+		} catch (RuntimeException | Error e) {
+			clearOutput();
+			throw e;
+		}
+		if (failed) {
+			clearOutput();
+		}
+		return !failed;
+	}
+
+	/**
+	 * Clears the outcome of an earlier masking of the document, and removes
+	 * the output it left, unless the output is the input itself.
+	 */
+	void prepare() {
+		failed = false;
+		clearOutput();
+	}
+
+	// removes the output, unless it is the input itself
+	void clearOutput() {
+		if (STANDARD_STREAM.equals(inputFile)
+				|| !new File(outputFile).getAbsoluteFile().equals(new File(inputFile).getAbsoluteFile())) {
+			removeOutput();
+		}
+	}
+
+	/**
+	 * True when the last masking of the document wrote its output.
+	 */
+	boolean isMasked() {
+		return !failed;
 	}
 	
 	public abstract void maskDocument(Boolean skipValidation);
+
+	/**
+	 * Reads the input file, the first of the stages of
+	 * {@link #maskDocument(Boolean)}, so that documents can be read,
+	 * transformed and written by different threads. A document masked as a
+	 * stream has a single stage, {@link #transformDocument(Boolean)}.
+	 *
+	 * @return false when the input could not be read, and the other stages
+	 *         are skipped
+	 */
+	protected boolean readDocument(Boolean skipValidation) {
+		return true;
+	}
+
+	/**
+	 * Masks the document read by {@link #readDocument(Boolean)}.
+	 */
+	protected void transformDocument(Boolean skipValidation) {
+		maskDocument(skipValidation);
+	}
+
+	/**
+	 * Writes the masked document to the output file, and releases it. A
+	 * document that cannot be written is marked as failed.
+	 */
+	protected void writeDocument() {
+		// a document masked as a stream is written as it is masked
+	}
 	
 	// intended to be overridden in sub class
 	protected abstract void preConfigure();
@@ -111,36 +241,17 @@ public abstract class SourceDocument<D> {
 		preConfigure();
 		log.debug("Completed Pre-configuration");
 		log.debug("Loading configuration");
-		configXml = util.unmarshallConfig(configFile);
-		if (configXml==null) {
+		// the config is loaded and its transformers resolved once per JVM
+		plan = MaskingPlan.forConfig(configFile);
+		if (plan==null) {
 			log.error("Failed to load xml configuration document '"+configFile+"'");
+			failed = true;
 			return;
 		}
+		configXml = plan.getConfig();
+		config = new ArrayList<>(plan.getTransformers());
 		log.debug("Loaded");
 		
-		// Setup transformation configuration
-		log.debug("Create TransformerFactory");
-		TransformerFactory transFac = new TransformerFactory();
-		config = new ArrayList<>();
-
-		// read config file namespaces
-
-		// read config file with path and rule values
-		Transformer c;
-		for (Field field : configXml.getField()) {
-			String path = field.getPath();
-			String fieldType = field.getType();
-			String transform = field.getTransform();
-			Map<String, String> params = field.getParams();
-			log.debug("Config:: path: " + path + ", type: " + fieldType + ", transform: " + transform);
-			try {
-				c = transFac.create(transform, path, fieldType, params);
-				config.add(c);
-			} catch (Exception e) {
-				log.error("Failed to create Transformer class instance as configured; path: " + path + ", type: "
-						+ fieldType + ", transform: " + transform + "; " + e.getMessage());
-			}
-		}
 		log.debug("Post-configuration");
 		postConfigure();
 		log.debug("Completed Post-configuration");
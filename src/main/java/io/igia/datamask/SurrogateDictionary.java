@@ -0,0 +1,159 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Surrogates of masked values, kept apart for each transform type so that a
+ * value masked by one rule is not given the surrogate another rule made for it.
+ *
+ * A surrogate is computed once for each value of a namespace, even when
+ * several threads ask for it at the same time; later requests return the same
+ * surrogate. Tokenizing rules look up surrogates of any namespace with
+ * {@link #lookup(String)}.
+ *
+ * The dictionary used by all transformers is {@link #getInstance()}; it keeps
+ * surrogates on the heap unless another implementation is installed before
+ * masking starts. A thread may mask with a dictionary of its own for a while,
+ * bound with {@link #bind(SurrogateDictionary)}, as a {@link MaskingSession}
+ * does.
+ */
+abstract class SurrogateDictionary {
+
+	static final Logger log = Logger.getLogger(SurrogateDictionary.class);
+
+	/**
+	 * Counts of the lookups and surrogates of a namespace.
+	 */
+	static final class Stats {
+		final LongAdder hits = new LongAdder();
+		final LongAdder misses = new LongAdder();
+		final LongAdder size = new LongAdder();
+
+		long getHits() {
+			return hits.sum();
+		}
+
+		long getMisses() {
+			return misses.sum();
+		}
+
+		long getSize() {
+			return size.sum();
+		}
+
+		@Override
+		public String toString() {
+			return "hits=" + getHits() + ", misses=" + getMisses() + ", size=" + getSize();
+		}
+	}
+
+	private static volatile SurrogateDictionary instance = new HeapSurrogateDictionary();
+	private static final ThreadLocal<SurrogateDictionary> bound = new ThreadLocal<>();
+
+	private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+	static SurrogateDictionary getInstance() {
+		return instance;
+	}
+
+	static void setInstance(SurrogateDictionary dictionary) {
+		instance = dictionary;
+	}
+
+	/**
+	 * Returns the dictionary bound to the current thread, or else
+	 * {@link #getInstance()}.
+	 */
+	static SurrogateDictionary current() {
+		SurrogateDictionary dictionary = bound.get();
+		return dictionary != null ? dictionary : instance;
+	}
+
+	/**
+	 * Binds a dictionary to the current thread, or unbinds it when null.
+	 *
+	 * @return the dictionary bound before, to be bound again when done
+	 */
+	static SurrogateDictionary bind(SurrogateDictionary dictionary) {
+		SurrogateDictionary previous = bound.get();
+		if (dictionary == null) {
+			bound.remove();
+		} else {
+			bound.set(dictionary);
+		}
+		return previous;
+	}
+
+	/**
+	 * Returns the surrogate of a value in a namespace, computing it with the
+	 * mask function if there is none yet.
+	 *
+	 * @param indexed
+	 *            whether the surrogate can be found by {@link #lookup(String)}
+	 * @return the surrogate, or null if the mask function returned null
+	 */
+	abstract String getSurrogate(String namespace, String value, boolean indexed, Function<String, String> mask);
+
+	/**
+	 * Returns a surrogate made for the value in any namespace, or null.
+	 */
+	abstract String lookup(String value);
+
+	Stats getStats(String namespace) {
+		Stats s = stats.get(namespace);
+		return s == null ? new Stats() : s;
+	}
+
+	Set<String> getNamespaces() {
+		return new TreeSet<>(stats.keySet());
+	}
+
+	void logStats() {
+		for (String namespace : getNamespaces()) {
+			log.info("Surrogate dictionary " + namespace + ": " + getStats(namespace));
+		}
+	}
+
+	/**
+	 * Makes the surrogates made so far durable, for a dictionary kept in a
+	 * file.
+	 */
+	void sync() {
+		// nothing to save for a dictionary held in memory
+	}
+
+	/**
+	 * Releases the resources of the dictionary once masking is done.
+	 */
+	void close() {
+		// nothing to release for a dictionary held in memory
+	}
+
+	// the counters of a namespace, created on first use
+	protected Stats stats(String namespace) {
+		Stats s = stats.get(namespace);
+		if (s == null) {
+			s = stats.computeIfAbsent(namespace, n -> new Stats());
+		}
+		return s;
+	}
+}
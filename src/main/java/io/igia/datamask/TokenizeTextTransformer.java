@@ -19,7 +19,8 @@ import java.util.regex.Pattern;
 
 public class TokenizeTextTransformer extends TokenizeTransformer {
 	// "\t /|;.:!@#$%^&*()-=+_{}[]\\'\"?><`~"
-	private final Pattern tokenizer = Pattern.compile("([A-z0-9/-]+|[^A-z0-9/-]+)");
+	// a dotted IPv4 address is one token, so that its masked address replaces it
+	private final Pattern tokenizer = Pattern.compile("([0-9]{1,3}(?:\\.[0-9]{1,3}){3}(?![0-9]|\\.[0-9])|[A-z0-9/-]+|[^A-z0-9/-]+)");
 	private final Set<String> ignoreTokens = new HashSet<>(Arrays.asList("table", "tbody", "tr", "td", "th",
 			"div", "[", "'", "]", "+", "|", "[", "\\", ".", "!", "?", ";", ":", "-", "/", "]"));
 	
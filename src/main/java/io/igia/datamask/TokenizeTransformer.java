@@ -63,7 +63,7 @@ public abstract class TokenizeTransformer extends Transformer {
 			if (getIgnoreTokens().contains(s)) {
 				result.append(s);
 			} else {
-				String lookup = datamaskCache.get(s);
+				String lookup = SurrogateDictionary.current().lookup(s);
 				if (lookup==null) {
 					result.append(s);
 				} else {
@@ -13,6 +13,7 @@
 package io.igia.datamask;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
@@ -32,9 +33,6 @@ public abstract class Transformer {
 	private String rule;
 	private Map<String, String> params = new HashMap<>();
 	
-	// global cache across all transformers
-	protected static HashMap<String, String> datamaskCache = new HashMap<>();
-	
 	Transformer() {
 		log.debug("Transformer() constructor");
 	}
@@ -88,18 +86,31 @@ public abstract class Transformer {
 			log.debug("return null value");
 			return "";
 		}
-		String result = datamaskCache.get(value);
-		if (result==null) {
-			result = mask(value);
-			datamaskCache.put(value, result);
-			log.debug("Added value to cache: '"+value+"' => '"+result+"'");
-			return result;
-		} else {
-			log.debug("Found value in cache: '"+value+"' => '"+result+"'");
-			return result;
+		// kept in the dictionary even when derived from a masking key, so that tokenizing rules find it
+		String result = SurrogateDictionary.current().getSurrogate(getNamespace(), value, !(this instanceof TokenizeTransformer), this::mask);
+		log.debug("Masked value: '"+value+"' => '"+result+"'");
+		return result;
+	}
+
+	/**
+	 * Paths of the given transformers as a comma separated list, for messages.
+	 */
+	static String describePaths(List<Transformer> transformers) {
+		StringBuilder paths = new StringBuilder();
+		for (Transformer t : transformers) {
+			paths.append(paths.length() == 0 ? "" : ", ").append(t.getPath());
 		}
+		return paths.toString();
 	}
-	
+
+	/**
+	 * Name of the dictionary namespace holding the surrogates made by this
+	 * transformer: the configured rule, or the transformer type.
+	 */
+	protected String getNamespace() {
+		return rule != null ? rule.toUpperCase() : getClass().getSimpleName();
+	}
+
 	protected abstract String mask(String value);
 
 }
\ No newline at end of file
@@ -25,6 +25,7 @@ public final class TransformerFactory {
 		ZIP_CODE("ZIP_CODE", ZipCodeTransformer.class), 
 		BIRTHDATE("BIRTHDATE", BirthdateTransformer.class), 
 		IDENTIFIER("IDENTIFIER", IdentifierTransformer.class), 
+		FPE("FPE", FormatPreservingTransformer.class), 
 		NAME("NAME", NameTransformer.class), 
 		NUMERIC("NUMERIC", NumericTransformer.class), 
 		NUMERIC_IDENTIFIER("NUMERIC_IDENTIFIER", NumericIdentifierTransformer.class), 
@@ -14,15 +14,15 @@ package io.igia.datamask;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
 
 import org.apache.log4j.Logger;
 import org.jdom2.Attribute;
@@ -30,10 +30,8 @@ import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
 import org.jdom2.Namespace;
+import org.jdom2.filter.Filter;
 import org.jdom2.filter.Filters;
-import org.jdom2.input.SAXBuilder;
-import org.jdom2.input.sax.XMLReaderJDOMFactory;
-import org.jdom2.input.sax.XMLReaderSchemaFactory;
 import org.jdom2.xpath.XPathExpression;
 import org.jdom2.xpath.XPathFactory;
 import org.xml.sax.SAXException;
@@ -44,6 +42,11 @@ public class XmlDatamaskUtil {
 
 	static final Logger log = Logger.getLogger(XmlDatamaskUtil.class);
 	private final XPathFactory xpfac = XPathFactory.instance();
+	// compiled xpath expressions of each thread, keyed by result type, namespaces and path; a
+	// compiled expression holds evaluation state, so it is not shared between threads
+	private static final ThreadLocal<Map<String, XPathExpression<?>>> xpathCache = ThreadLocal
+			.withInitial(HashMap::new);
+	private static JAXBContext configContext;
 
 	protected XmlDatamaskUtil() {
 
@@ -53,8 +56,7 @@ public class XmlDatamaskUtil {
 		log.debug("Loading configuration");
 		try {
 			File file = new File(configFile);
-			JAXBContext jContext = JAXBContext.newInstance(Config.class);
-			Unmarshaller unmarshallerObj = jContext.createUnmarshaller();
+			Unmarshaller unmarshallerObj = getConfigContext().createUnmarshaller();
 			log.debug("Loaded");
 			return (Config) unmarshallerObj.unmarshal(file);
 		} catch (JAXBException e) {
@@ -63,28 +65,42 @@ public class XmlDatamaskUtil {
 		}
 	}
 
+	// creating a JAXBContext is expensive, and a context is thread safe, so one is shared
+	private static synchronized JAXBContext getConfigContext() throws JAXBException {
+		if (configContext == null) {
+			configContext = JAXBContext.newInstance(Config.class);
+		}
+		return configContext;
+	}
+
+	public List<Namespace> getNamespaceList(Config config) {
+		List<Namespace> namespaceList = new ArrayList<>();
+		for (io.igia.datamask.model.Namespace ns : config.getNamespaces()) {
+			namespaceList.add(Namespace.getNamespace(ns.getPrefix(), ns.getUrl()));
+		}
+		return namespaceList;
+	}
+
 	public Document getSAXParsedDocument(String fileName, String xsdFile)
 			throws JDOMException, IOException, SAXException {
-		SchemaFactory schemafac = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-		Schema schema = null;
-		schema = schemafac.newSchema(new File(xsdFile));
-		XMLReaderJDOMFactory factory = new XMLReaderSchemaFactory(schema);
-		SAXBuilder builder = new SAXBuilder(factory);
-
-		return builder.build(fileName);
+		// the compiled xsd and its parsers are shared by documents using the same xsd
+		return SchemaCache.build(fileName, xsdFile);
 	}
 
 	public Document getSAXParsedDocument(String fileName) throws JDOMException, IOException {
-		SAXBuilder builder = new SAXBuilder();
-		return builder.build(fileName);
+		try {
+			return SchemaCache.build(fileName, null);
+		} catch (SAXException e) {
+			// only raised when loading an xsd
+			throw new JDOMException(e.getMessage(), e);
+		}
 	}
 
 	public List<Element> getXpathElements(Document document, List<Namespace> namespaceList, String xpath) {
 		XPathExpression<Element> xpElem;
 		log.debug("getXpathElements(document:"+(document==null?"null":"ok")+", namespaceCount="+namespaceList.size()+", xpath:"+xpath+")");
 
-		xpElem = xpfac.compile(xpath, Filters.element(), null,
-				namespaceList.toArray(new Namespace[namespaceList.size()]));
+		xpElem = getElementXpath(namespaceList, xpath);
 		if (xpElem==null) {
 			log.debug("xpElem is null");
 			return Collections.emptyList();
@@ -95,8 +111,39 @@ public class XmlDatamaskUtil {
 	public List<Attribute> getXpathAttributes(Document document, List<Namespace> namespaceList, String xpath) {
 		XPathExpression<Attribute> xpAttr;
 
-		xpAttr = xpfac.compile(xpath, Filters.attribute(), null,
-				namespaceList.toArray(new Namespace[namespaceList.size()]));
+		xpAttr = getAttributeXpath(namespaceList, xpath);
 		return xpAttr.evaluate(document);
 	}
+
+	/**
+	 * Returns the compiled expression selecting elements, compiling it on first use by the calling thread.
+	 */
+	XPathExpression<Element> getElementXpath(List<Namespace> namespaceList, String xpath) {
+		return getXpath(xpath, Filters.element(), "element", namespaceList);
+	}
+
+	/**
+	 * Returns the compiled expression selecting attributes, compiling it on first use by the calling thread.
+	 */
+	XPathExpression<Attribute> getAttributeXpath(List<Namespace> namespaceList, String xpath) {
+		return getXpath(xpath, Filters.attribute(), "attribute", namespaceList);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> XPathExpression<T> getXpath(String xpath, Filter<T> filter, String filterName,
+			List<Namespace> namespaceList) {
+		StringBuilder key = new StringBuilder(filterName);
+		for (Namespace ns : namespaceList) {
+			key.append(' ').append(ns.getPrefix()).append('=').append(ns.getURI());
+		}
+		key.append(' ').append(xpath);
+		Map<String, XPathExpression<?>> cache = xpathCache.get();
+		XPathExpression<?> xp = cache.get(key.toString());
+		if (xp == null) {
+			log.debug("Compiling xpath: " + xpath);
+			xp = xpfac.compile(xpath, filter, null, namespaceList.toArray(new Namespace[namespaceList.size()]));
+			cache.put(key.toString(), xp);
+		}
+		return (XPathExpression<T>) xp;
+	}
 }
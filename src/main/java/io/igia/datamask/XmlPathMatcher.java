@@ -0,0 +1,493 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+
+/**
+ * Compiles the xpath of every configured rule into a single name indexed
+ * automaton, so a document can be masked in one pass over its elements instead
+ * of one xpath evaluation per rule.
+ *
+ * The supported subset is absolute location paths made of child (/) and
+ * descendant (//) steps with element name tests (prefix:name, name, *, node()),
+ * an optional trailing attribute step (/@name), and simple predicates of the
+ * form [@attr], [@attr='value'] and [child='value']. Rules with any other
+ * expression are not compiled and are left for evaluation with jaxen; see
+ * {@link #getFallback()}.
+ */
+class XmlPathMatcher {
+
+	static final Logger log = Logger.getLogger(XmlPathMatcher.class);
+
+	private static final String WILDCARD = "*";
+
+	/**
+	 * The view of an element needed to evaluate name tests and predicates.
+	 */
+	interface Node {
+		String getNamespaceURI();
+
+		String getName();
+
+		String getAttributeValue(String namespaceURI, String name);
+
+		boolean hasChildValue(String namespaceURI, String name, String value);
+	}
+
+	/**
+	 * {@link Node} over a jdom element; reused across elements to avoid an
+	 * allocation per visited node.
+	 */
+	static class ElementNode implements Node {
+		private Element element;
+
+		ElementNode of(Element element) {
+			this.element = element;
+			return this;
+		}
+
+		@Override
+		public String getNamespaceURI() {
+			return element.getNamespaceURI();
+		}
+
+		@Override
+		public String getName() {
+			return element.getName();
+		}
+
+		@Override
+		public String getAttributeValue(String namespaceURI, String name) {
+			return element.getAttributeValue(name, Namespace.getNamespace(namespaceURI));
+		}
+
+		@Override
+		public boolean hasChildValue(String namespaceURI, String name, String value) {
+			for (Element child : element.getChildren(name, Namespace.getNamespace(namespaceURI))) {
+				if (value.equals(child.getValue())) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	// predicate on a location step
+	static class Predicate {
+		boolean attribute; // [@name] or [@name='value'], otherwise [name='value']
+		String namespaceURI;
+		String name;
+		String value; // null tests for existence only
+
+		boolean matches(Node node) {
+			if (attribute) {
+				String actual = node.getAttributeValue(namespaceURI, name);
+				return actual != null && (value == null || value.equals(actual));
+			}
+			return node.hasChildValue(namespaceURI, name, value);
+		}
+	}
+
+	// one element location step of one rule, i.e. one automaton state
+	static class State {
+		int rule;
+		boolean descendant;
+		String namespaceURI; // null for any namespace
+		String name; // null for any name
+		List<Predicate> predicates = new ArrayList<>();
+		int next = -1; // state for the following step, or -1 when this is the last element step
+
+		boolean hasChildPredicate() {
+			for (Predicate p : predicates) {
+				if (!p.attribute) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean matches(Node node) {
+			if (namespaceURI != null && !namespaceURI.equals(node.getNamespaceURI())) {
+				return false;
+			}
+			for (Predicate p : predicates) {
+				if (!p.matches(node)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final List<Transformer> rules = new ArrayList<>();
+	private final List<Transformer> fallback = new ArrayList<>();
+	private final List<State> states = new ArrayList<>();
+	// trailing attribute step per rule, null for element (TEXT) rules
+	private final List<String[]> attributeTests = new ArrayList<>();
+
+	private final BitSet initial = new BitSet();
+	private final BitSet descendant = new BitSet();
+	private final BitSet anyName = new BitSet();
+	private final Map<String, BitSet> byName = new HashMap<>();
+	// states with a [child='value'] predicate
+	private final BitSet childValues = new BitSet();
+
+	private XmlPathMatcher() {
+	}
+
+	/**
+	 * Compiles the xpath of each transformer; transformers with an expression
+	 * outside the supported subset are returned by {@link #getFallback()}.
+	 */
+	static XmlPathMatcher compile(List<Transformer> transformers, List<Namespace> namespaceList) {
+		XmlPathMatcher matcher = new XmlPathMatcher();
+		Map<String, String> prefixes = new HashMap<>();
+		for (Namespace ns : namespaceList) {
+			prefixes.put(ns.getPrefix(), ns.getURI());
+		}
+		for (Transformer t : transformers) {
+			if (!matcher.add(t, prefixes)) {
+				log.debug("Path is evaluated with xpath: " + t.getPath());
+				matcher.fallback.add(t);
+			}
+		}
+		log.debug("Compiled " + matcher.rules.size() + " rules into " + matcher.states.size() + " states; "
+				+ matcher.fallback.size() + " rules require xpath");
+		return matcher;
+	}
+
+	/**
+	 * Rules that were compiled, indexed by the rule numbers reported by
+	 * {@link #advance(BitSet, Node, BitSet)}.
+	 */
+	List<Transformer> getRules() {
+		return rules;
+	}
+
+	/**
+	 * Rules with an expression that could not be compiled.
+	 */
+	List<Transformer> getFallback() {
+		return fallback;
+	}
+
+	/**
+	 * States active for the document root element.
+	 */
+	BitSet getInitialStates() {
+		return initial;
+	}
+
+	boolean isAttributeRule(int rule) {
+		return attributeTests.get(rule) != null;
+	}
+
+	boolean matchesAttribute(int rule, String namespaceURI, String name) {
+		String[] test = attributeTests.get(rule);
+		return test != null && (test[0] == null || test[0].equals(namespaceURI))
+				&& (test[1] == null || test[1].equals(name));
+	}
+
+	/**
+	 * Whether matching an element with the given name needs the values of its
+	 * children, i.e. whether a streaming reader must look ahead at the
+	 * element's content before the element can be matched.
+	 */
+	boolean needsChildValues(BitSet active, String name) {
+		if (childValues.isEmpty()) {
+			return false;
+		}
+		BitSet candidates = (BitSet) anyName.clone();
+		BitSet named = byName.get(name);
+		if (named != null) {
+			candidates.or(named);
+		}
+		candidates.and(active);
+		return candidates.intersects(childValues);
+	}
+
+	/**
+	 * Moves the automaton into an element.
+	 *
+	 * @param active
+	 *            states active for the element, as returned for its parent
+	 * @param node
+	 *            the element
+	 * @param matched
+	 *            receives the number of each rule whose last element step
+	 *            matches the element
+	 * @return the states active for the children of the element
+	 */
+	BitSet advance(BitSet active, Node node, BitSet matched) {
+		BitSet candidates = (BitSet) anyName.clone();
+		BitSet named = byName.get(node.getName());
+		if (named != null) {
+			candidates.or(named);
+		}
+		candidates.and(active);
+
+		// descendant steps remain active below the element whether or not it matches
+		BitSet next = (BitSet) active.clone();
+		next.and(descendant);
+		for (int s = candidates.nextSetBit(0); s >= 0; s = candidates.nextSetBit(s + 1)) {
+			State state = states.get(s);
+			if (state.matches(node)) {
+				if (state.next < 0) {
+					matched.set(state.rule);
+				} else {
+					next.set(state.next);
+				}
+			}
+		}
+		return next;
+	}
+
+	private boolean add(Transformer t, Map<String, String> prefixes) {
+		String path = t.getPath();
+		boolean attributeRule = t.getNodeType() == Transformer.NodeType.ATTRIBUTE;
+		List<String> steps = new ArrayList<>();
+		List<Boolean> axes = new ArrayList<>();
+		if (path == null || !splitSteps(path.trim(), steps, axes)) {
+			return false;
+		}
+		String[] attributeTest = null;
+		if (attributeRule) {
+			// last step must select the attribute from its parent element
+			String last = steps.remove(steps.size() - 1);
+			if (axes.remove(axes.size() - 1) || !last.startsWith("@") || steps.isEmpty()) {
+				return false;
+			}
+			attributeTest = parseNameTest(last.substring(1).trim(), prefixes);
+			if (attributeTest == null) {
+				return false;
+			}
+		}
+
+		int rule = rules.size();
+		List<State> compiled = new ArrayList<>();
+		for (int i = 0; i < steps.size(); i++) {
+			State state = parseStep(steps.get(i), prefixes);
+			if (state == null) {
+				return false;
+			}
+			state.rule = rule;
+			state.descendant = axes.get(i);
+			compiled.add(state);
+		}
+
+		// all steps are valid, so register the states
+		int first = states.size();
+		for (int i = 0; i < compiled.size(); i++) {
+			State state = compiled.get(i);
+			int id = first + i;
+			state.next = i + 1 < compiled.size() ? id + 1 : -1;
+			states.add(state);
+			if (state.descendant) {
+				descendant.set(id);
+			}
+			if (state.hasChildPredicate()) {
+				childValues.set(id);
+			}
+			if (state.name == null) {
+				anyName.set(id);
+			} else {
+				BitSet named = byName.get(state.name);
+				if (named == null) {
+					named = new BitSet();
+					byName.put(state.name, named);
+				}
+				named.set(id);
+			}
+		}
+		initial.set(first);
+		rules.add(t);
+		attributeTests.add(attributeTest);
+		return true;
+	}
+
+	// splits an absolute path into steps, recording for each whether it follows '//'
+	private static boolean splitSteps(String path, List<String> steps, List<Boolean> axes) {
+		int n = path.length();
+		int i = 0;
+		if (n == 0) {
+			return false;
+		}
+		while (i < n) {
+			if (path.charAt(i) != '/') {
+				return false;
+			}
+			boolean desc = i + 1 < n && path.charAt(i + 1) == '/';
+			i += desc ? 2 : 1;
+			int start = i;
+			int depth = 0;
+			char quote = 0;
+			while (i < n) {
+				char ch = path.charAt(i);
+				if (quote != 0) {
+					if (ch == quote) {
+						quote = 0;
+					}
+				} else if (ch == '\'' || ch == '"') {
+					quote = ch;
+				} else if (ch == '[') {
+					depth++;
+				} else if (ch == ']') {
+					depth--;
+				} else if (ch == '/' && depth == 0) {
+					break;
+				}
+				i++;
+			}
+			String step = path.substring(start, i).trim();
+			if (quote != 0 || depth != 0 || step.isEmpty()) {
+				return false;
+			}
+			steps.add(step);
+			axes.add(desc);
+		}
+		return true;
+	}
+
+	private static State parseStep(String step, Map<String, String> prefixes) {
+		int bracket = step.indexOf('[');
+		String test = (bracket < 0 ? step : step.substring(0, bracket)).trim();
+		State state = new State();
+		if (!"node()".equals(test)) {
+			String[] name = parseNameTest(test, prefixes);
+			if (name == null) {
+				return null;
+			}
+			state.namespaceURI = name[0];
+			state.name = name[1];
+		}
+		while (bracket >= 0) {
+			int end = closingBracket(step, bracket);
+			if (end < 0) {
+				return null;
+			}
+			Predicate p = parsePredicate(step.substring(bracket + 1, end).trim(), prefixes);
+			if (p == null) {
+				return null;
+			}
+			state.predicates.add(p);
+			String rest = step.substring(end + 1).trim();
+			if (rest.isEmpty()) {
+				break;
+			}
+			if (rest.charAt(0) != '[') {
+				return null;
+			}
+			step = rest;
+			bracket = 0;
+		}
+		return state;
+	}
+
+	private static int closingBracket(String step, int open) {
+		char quote = 0;
+		for (int i = open + 1; i < step.length(); i++) {
+			char ch = step.charAt(i);
+			if (quote != 0) {
+				if (ch == quote) {
+					quote = 0;
+				}
+			} else if (ch == '\'' || ch == '"') {
+				quote = ch;
+			} else if (ch == ']') {
+				return i;
+			} else if (ch == '[') {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	private static Predicate parsePredicate(String expr, Map<String, String> prefixes) {
+		Predicate p = new Predicate();
+		if (expr.startsWith("@")) {
+			p.attribute = true;
+			expr = expr.substring(1).trim();
+		}
+		String test = expr;
+		int eq = expr.indexOf('=');
+		if (eq >= 0) {
+			test = expr.substring(0, eq).trim();
+			String literal = expr.substring(eq + 1).trim();
+			if (literal.length() < 2 || (literal.charAt(0) != '\'' && literal.charAt(0) != '"')
+					|| literal.charAt(literal.length() - 1) != literal.charAt(0)) {
+				return null;
+			}
+			p.value = literal.substring(1, literal.length() - 1);
+			if (p.value.indexOf(literal.charAt(0)) >= 0) {
+				return null;
+			}
+		} else if (!p.attribute) {
+			// bare child test or position
+			return null;
+		}
+		String[] name = parseNameTest(test, prefixes);
+		if (name == null || name[1] == null) {
+			return null;
+		}
+		p.namespaceURI = name[0] == null ? "" : name[0];
+		p.name = name[1];
+		return p;
+	}
+
+	// returns { namespace uri or null for any, local name or null for any }
+	private static String[] parseNameTest(String test, Map<String, String> prefixes) {
+		if (WILDCARD.equals(test)) {
+			return new String[] { null, null };
+		}
+		String prefix = null;
+		String local = test;
+		int colon = test.indexOf(':');
+		if (colon >= 0) {
+			prefix = test.substring(0, colon);
+			local = test.substring(colon + 1);
+			if (!isName(prefix) || !prefixes.containsKey(prefix)) {
+				return null;
+			}
+		}
+		String uri = prefix == null ? "" : prefixes.get(prefix);
+		if (WILDCARD.equals(local)) {
+			return prefix == null ? null : new String[] { uri, null };
+		}
+		if (!isName(local)) {
+			return null;
+		}
+		return new String[] { uri, local };
+	}
+
+	private static boolean isName(String s) {
+		if (s.isEmpty() || !(Character.isLetter(s.charAt(0)) || s.charAt(0) == '_')) {
+			return false;
+		}
+		for (int i = 1; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			if (!Character.isLetterOrDigit(ch) && ch != '_' && ch != '-' && ch != '.') {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,252 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits a stream of concatenated xml documents into records, each being one
+ * element with the configured name and its content. Xml declarations,
+ * comments, processing instructions and white space between records are
+ * dropped.
+ *
+ * The stream is scanned as bytes for markup only, without parsing, so it must
+ * be in an encoding where markup characters are single ASCII bytes, such as
+ * UTF-8. A record is returned as soon as its end tag has been read.
+ */
+class XmlRecordSplitter {
+
+	// a record is held in memory until its end tag is read
+	static final int MAX_RECORD = 64 << 20;
+
+	private static final byte[] COMMENT_END = "-->".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CDATA_START = "[CDATA[".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] PI_END = "?>".getBytes(StandardCharsets.US_ASCII);
+
+	private enum State {
+		TEXT, MARKUP, BANG, COMMENT, CDATA, DECLARATION, INSTRUCTION, TAG
+	}
+
+	private final InputStream in;
+	private final String element;
+	private final Flushable output;
+	private final byte[] input = new byte[8192];
+	private int inputPos;
+	private int inputEnd;
+
+	private byte[] record = new byte[8192];
+	private int length;
+	private State state = State.TEXT;
+	private int markupStart; // position in the record of the '<' of the current markup
+	private int depth; // open elements of the current record
+	private char quote; // the quote of an attribute value being read, or 0
+	private int subset; // depth of [ ] in a document type declaration
+
+	/**
+	 * @param element
+	 *            the name of the element of each record, compared with the
+	 *            local name of elements unless it has a prefix
+	 */
+	XmlRecordSplitter(InputStream in, String element) {
+		this(in, element, null);
+	}
+
+	/**
+	 * @param output
+	 *            flushed before any read that would wait for more input, so
+	 *            the records already masked are not held back
+	 */
+	XmlRecordSplitter(InputStream in, String element, Flushable output) {
+		this.in = in;
+		this.element = element;
+		this.output = output;
+	}
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @return the bytes of the record, or null at the end of the stream
+	 */
+	byte[] next() throws IOException {
+		while (true) {
+			if (inputPos == inputEnd) {
+				if (output != null && in.available() == 0) {
+					output.flush();
+				}
+				inputEnd = in.read(input);
+				inputPos = 0;
+				if (inputEnd < 0) {
+					inputEnd = 0;
+					if (depth > 0 || state != State.TEXT) {
+						throw new IOException("Unexpected end of input within a <" + element + "> record");
+					}
+					return null;
+				}
+			}
+			byte b = input[inputPos++];
+			if (depth == 0 && state == State.TEXT && b != '<') {
+				// text between records
+				continue;
+			}
+			append(b);
+			if (scan(b)) {
+				byte[] complete = Arrays.copyOf(record, length);
+				length = 0;
+				return complete;
+			}
+		}
+	}
+
+	// advances the state over the byte just appended; true when it ends a record
+	private boolean scan(byte b) throws IOException {
+		switch (state) {
+		case TEXT:
+			if (b == '<') {
+				markupStart = length - 1;
+				state = State.MARKUP;
+			}
+			return false;
+		case MARKUP:
+			if (b == '!') {
+				state = State.BANG;
+			} else if (b == '?') {
+				state = State.INSTRUCTION;
+			} else {
+				state = State.TAG;
+				quote = 0;
+			}
+			return false;
+		case BANG:
+			int n = length - markupStart - 2; // bytes after "<!"
+			if (n == 2 && record[markupStart + 2] == '-' && record[markupStart + 3] == '-') {
+				state = State.COMMENT;
+			} else if (n <= CDATA_START.length && b == CDATA_START[n - 1]) {
+				if (n == CDATA_START.length) {
+					state = State.CDATA;
+				}
+			} else if (!(n == 1 && b == '-')) {
+				state = State.DECLARATION;
+				subset = 0;
+				return declaration(b);
+			}
+			return false;
+		case COMMENT:
+			return endsWith(COMMENT_END) && endMarkup();
+		case CDATA:
+			return endsWith(CDATA_END) && endMarkup();
+		case INSTRUCTION:
+			return endsWith(PI_END) && endMarkup();
+		case DECLARATION:
+			return declaration(b);
+		default:
+			return tag(b);
+		}
+	}
+
+	private boolean declaration(byte b) {
+		if (b == '[') {
+			subset++;
+		} else if (b == ']') {
+			subset--;
+		} else if (b == '>' && subset <= 0) {
+			return endMarkup();
+		}
+		return false;
+	}
+
+	private boolean tag(byte b) throws IOException {
+		if (quote != 0) {
+			if (b == quote) {
+				quote = 0;
+			}
+			return false;
+		}
+		if (b == '"' || b == '\'') {
+			quote = (char) b;
+			return false;
+		}
+		if (b != '>') {
+			return false;
+		}
+		state = State.TEXT;
+		boolean end = record[markupStart + 1] == '/';
+		boolean empty = record[length - 2] == '/';
+		if (end) {
+			depth--;
+			return depth == 0;
+		}
+		if (depth == 0) {
+			// the record starts with this tag, since anything before it was dropped
+			String name = name(markupStart + 1);
+			if (!matches(name)) {
+				throw new IOException("Unexpected element <" + name + ">; records must be <" + element + "> elements");
+			}
+		}
+		if (empty) {
+			return depth == 0;
+		}
+		depth++;
+		return false;
+	}
+
+	// markup other than a tag has ended; between records it is dropped
+	private boolean endMarkup() {
+		state = State.TEXT;
+		if (depth == 0) {
+			length = 0;
+		}
+		return false;
+	}
+
+	private String name(int from) {
+		int end = from;
+		while (end < length && record[end] != '>' && record[end] != '/' && record[end] > ' ') {
+			end++;
+		}
+		return new String(record, from, end - from, StandardCharsets.UTF_8);
+	}
+
+	private boolean matches(String name) {
+		if (element.indexOf(':') >= 0) {
+			return element.equals(name);
+		}
+		return element.equals(name.substring(name.indexOf(':') + 1));
+	}
+
+	private boolean endsWith(byte[] suffix) {
+		if (length - markupStart < suffix.length + 2) {
+			return false;
+		}
+		for (int i = 0; i < suffix.length; i++) {
+			if (record[length - suffix.length + i] != suffix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void append(byte b) throws IOException {
+		if (length == record.length) {
+			if (length >= MAX_RECORD) {
+				throw new IOException("Record longer than " + MAX_RECORD + " bytes");
+			}
+			record = Arrays.copyOf(record, Math.min(MAX_RECORD, length * 2));
+		}
+		record[length++] = b;
+	}
+}
@@ -16,6 +16,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -38,6 +39,12 @@ public class XmlSourceDocument extends SourceDocument<Document> {
 
 	private XmlDatamaskUtil util = new XmlDatamaskUtil();
 	private List<Namespace> namespaceList = new ArrayList<>();
+	private XmlPathMatcher matcher;
+	// tokenizing rules, applied in a second pass once other rules have masked their values
+	private XmlPathMatcher tokenMatcher;
+	// rules applied one xpath at a time, with unsupported paths
+	private List<Transformer> deferred = new ArrayList<>();
+	private List<Transformer> deferredTokens = new ArrayList<>();
 
 	XmlSourceDocument(String type, String config, String schema, String input, String output) {
 		super(type, config, schema, input, output);
@@ -85,7 +92,16 @@ public class XmlSourceDocument extends SourceDocument<Document> {
 
 	@Override
 	public void maskDocument(Boolean skipValidation) {
-		
+		if (!readDocument(skipValidation)) {
+			failed = true;
+			return;
+		}
+		transformDocument(skipValidation);
+		writeDocument();
+	}
+
+	@Override
+	protected boolean readDocument(Boolean skipValidation) {
 		// Open xml input document, while confirming the document conforms to
 		// the
 		// specified XSD
@@ -109,12 +125,45 @@ public class XmlSourceDocument extends SourceDocument<Document> {
 		}
 		if (document == null) {
 			log.error("Error while opening the XML file" + (skipValidation ? "" : " and validating with XSD file"));
-			return;
+			return false;
 		}
 		log.debug("Opened");
+		return true;
+	}
 
-		// apply each path and rule transformation
-		for (Transformer t : config) {
+	@Override
+	protected void transformDocument(Boolean skipValidation) {
+		// apply every compiled rule in a single pass over the document
+		log.debug("Transforming " + matcher.getRules().size() + " rules in a single pass");
+		transform(document.getRootElement(), matcher, matcher.getInitialStates(), new XmlPathMatcher.ElementNode());
+		transform(deferred);
+
+		// then the tokenizing rules, which replace values masked by the other rules
+		log.debug("Transforming " + tokenMatcher.getRules().size() + " tokenizing rules in a single pass");
+		transform(document.getRootElement(), tokenMatcher, tokenMatcher.getInitialStates(),
+				new XmlPathMatcher.ElementNode());
+		transform(deferredTokens);
+	}
+
+	@Override
+	protected void writeDocument() {
+		// pretty print new xml
+		XMLOutputter out = new XMLOutputter(Format.getPrettyFormat());
+		try (FileWriter writer = new FileWriter(outputFile)) {
+			log.debug("Document: begin");
+			out.output(document, writer);
+			log.info(out.outputString(document));
+			log.debug("Document: end");
+		} catch (IOException e) {
+			log.error("Failed to generate output xml");
+			failed = true;
+		}
+		document = null;
+	}
+
+	// applies each path and rule transformation in turn
+	private void transform(List<Transformer> transformers) {
+		for (Transformer t : transformers) {
 			log.debug("Transforming path:" + t.getPath() + ", nodeType:" + t.getNodeType() + ", rule:" + t.getRule());
 			try {
 				transform(t);
@@ -124,31 +173,82 @@ public class XmlSourceDocument extends SourceDocument<Document> {
 						+ "; " + e.getMessage() + "; " + e.toString());
 			}
 		}
+	}
 
-		// pretty print new xml
-		XMLOutputter out = new XMLOutputter(Format.getPrettyFormat());
-		try {
-			log.debug("Document: begin");
-			out.output(document, new FileWriter(outputFile));
-			log.info(out.outputString(document));
-			log.debug("Document: end");
-		} catch (IOException e) {
-			log.error("Failed to generate output xml");
+	// visits the element and its descendants once, applying every rule that matches
+	private void transform(Element elem, XmlPathMatcher matcher, BitSet active, XmlPathMatcher.ElementNode node) {
+		BitSet matched = new BitSet();
+		BitSet childStates = matcher.advance(active, node.of(elem), matched);
+		for (int r = matched.nextSetBit(0); r >= 0; r = matched.nextSetBit(r + 1)) {
+			Transformer t = matcher.getRules().get(r);
+			try {
+				if (matcher.isAttributeRule(r)) {
+					for (Attribute att : elem.getAttributes()) {
+						if (matcher.matchesAttribute(r, att.getNamespaceURI(), att.getName())) {
+							att.setValue(t.getMaskedValue(att.getValue()));
+						}
+					}
+				} else {
+					elem.setText(t.getMaskedValue(elem.getText()));
+				}
+			} catch (Exception e) {
+				log.error("Failed to apply transformation :: rule: " + t.getRule() + ", path: " + t.getPath()
+						+ ", type:" + t.getNodeType() + ", loc: " + getLocation(elem)
+						+ "; " + e.getMessage() + "; " + e.toString());
+			}
+		}
+		if (childStates.isEmpty()) {
+			return;
+		}
+		// children are read after masking, since masking element text replaces them
+		for (Element child : elem.getChildren()) {
+			transform(child, matcher, childStates, node);
 		}
 	}
 
 	@Override
 	protected void postConfigure() {
 		log.debug("Loading namespaces");
-		namespaceList = new ArrayList<>();
-		for (io.igia.datamask.model.Namespace ns : configXml.getNamespaces()) {
-			Namespace namespace = Namespace.getNamespace(ns.getPrefix(), ns.getUrl());
-			namespaceList.add(namespace);
-		}
+		namespaceList = util.getNamespaceList(configXml);
 		for (Namespace n : namespaceList) {
 			log.debug("namespace: " + n.getPrefix() + ":" + n.getURI());
 		}
 		log.debug("Loaded");
+
+		// tokenizing rules only replace values already masked by other rules, so
+		// they are compiled apart and applied after the other rules
+		log.debug("Compiling paths");
+		List<Transformer> compiled = new ArrayList<>();
+		List<Transformer> tokens = new ArrayList<>();
+		for (Transformer t : config) {
+			if (t instanceof TokenizeTransformer) {
+				tokens.add(t);
+			} else {
+				compiled.add(t);
+			}
+		}
+		List<Namespace> namespaces = namespaceList;
+		matcher = plan.getCompiled("xml", () -> XmlPathMatcher.compile(compiled, namespaces));
+		tokenMatcher = plan.getCompiled("xml-tokens", () -> XmlPathMatcher.compile(tokens, namespaces));
+		deferred = matcher.getFallback();
+		deferredTokens = tokenMatcher.getFallback();
+
+		// compile the xpath of each remaining rule now, so later documents masked
+		// by this thread reuse the compiled expressions
+		List<Transformer> remaining = new ArrayList<>(deferred);
+		remaining.addAll(deferredTokens);
+		for (Transformer t : remaining) {
+			try {
+				if (t.getNodeType() == Transformer.NodeType.ATTRIBUTE) {
+					util.getAttributeXpath(namespaceList, t.getPath());
+				} else {
+					util.getElementXpath(namespaceList, t.getPath());
+				}
+			} catch (Exception e) {
+				log.error("Failed to compile xpath: " + t.getPath() + "; " + e.toString());
+			}
+		}
+		log.debug("Compiled");
 	}
 
 	private String getLocation(Element elem) {
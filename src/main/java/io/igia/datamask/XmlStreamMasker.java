@@ -0,0 +1,307 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.log4j.Logger;
+import org.xml.sax.SAXException;
+
+/**
+ * Event writer which masks the events written to it before passing them on to
+ * another writer, using the rules compiled in a {@link XmlPathMatcher}.
+ *
+ * Only the state of the open elements is held, except that the content of an
+ * element is buffered when a [child='value'] predicate needs to look ahead
+ * before the element can be matched, and the direct text of an element matched
+ * by a TEXT rule is collected until the element ends.
+ */
+class XmlStreamMasker implements XMLEventWriter {
+
+	static final Logger log = Logger.getLogger(XmlStreamMasker.class);
+
+	// {@link XmlPathMatcher.Node} over a start element and, when buffered, its content
+	private static class StartElementNode implements XmlPathMatcher.Node {
+		private final StartElement element;
+		private final List<XMLEvent> content;
+
+		StartElementNode(StartElement element, List<XMLEvent> content) {
+			this.element = element;
+			this.content = content;
+		}
+
+		@Override
+		public String getNamespaceURI() {
+			return element.getName().getNamespaceURI();
+		}
+
+		@Override
+		public String getName() {
+			return element.getName().getLocalPart();
+		}
+
+		@Override
+		public String getAttributeValue(String namespaceURI, String name) {
+			Attribute att = element.getAttributeByName(new QName(namespaceURI, name));
+			return att == null ? null : att.getValue();
+		}
+
+		@Override
+		public boolean hasChildValue(String namespaceURI, String name, String value) {
+			if (content == null) {
+				return false;
+			}
+			// content holds the events following the start element, up to its end element
+			int depth = 0;
+			StringBuilder child = null;
+			for (XMLEvent e : content) {
+				if (e.isStartElement()) {
+					depth++;
+					QName q = e.asStartElement().getName();
+					if (depth == 1 && q.getLocalPart().equals(name) && q.getNamespaceURI().equals(namespaceURI)) {
+						child = new StringBuilder();
+					}
+				} else if (e.isEndElement()) {
+					if (depth == 1 && child != null) {
+						if (value.equals(child.toString())) {
+							return true;
+						}
+						child = null;
+					}
+					depth--;
+				} else if (e.isCharacters() && child != null) {
+					child.append(e.asCharacters().getData());
+				}
+			}
+			return false;
+		}
+	}
+
+	private final XmlPathMatcher matcher;
+	private final XMLEventWriter out;
+	private final XMLEventFactory events = XMLEventFactory.newInstance();
+
+	// states active for the children of each open element
+	private final Deque<BitSet> active = new ArrayDeque<>();
+
+	// content of an element buffered for lookahead, and its depth within it
+	private List<XMLEvent> lookahead;
+	private int lookaheadDepth;
+
+	// direct text of an element matched by TEXT rules, and its depth within it
+	private StringBuilder text;
+	private List<Transformer> textRules;
+	private int textDepth;
+
+	XmlStreamMasker(XmlPathMatcher matcher, XMLEventWriter out) {
+		this.matcher = matcher;
+		this.out = out;
+		this.active.push(matcher.getInitialStates());
+	}
+
+	/**
+	 * Masks the events of a reader into a writer, validating each event first
+	 * when a validator is given; closes the reader and the writer.
+	 */
+	static void mask(XMLEventReader reader, XMLEventWriter writer, XmlPathMatcher matcher,
+			XmlStreamValidator validator) throws XMLStreamException, SAXException {
+		XmlStreamMasker masker = new XmlStreamMasker(matcher, writer);
+		try {
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (validator != null) {
+					validator.validate(event);
+				}
+				masker.add(event);
+			}
+			masker.flush();
+		} finally {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	@Override
+	public void add(XMLEvent event) throws XMLStreamException {
+		if (lookahead != null) {
+			lookahead.add(event);
+			if (event.isStartElement()) {
+				lookaheadDepth++;
+			} else if (event.isEndElement() && --lookaheadDepth == 0) {
+				// the element is complete; match it and replay its content
+				List<XMLEvent> buffered = lookahead;
+				lookahead = null;
+				StartElement start = buffered.get(0).asStartElement();
+				startElement(start, new StartElementNode(start, buffered.subList(1, buffered.size())));
+				for (XMLEvent e : buffered.subList(1, buffered.size())) {
+					add(e);
+				}
+			}
+			return;
+		}
+		if (text != null) {
+			collectText(event);
+			return;
+		}
+		if (event.isStartDocument()) {
+			// the output is always written as utf-8
+			out.add(events.createStartDocument(StandardCharsets.UTF_8.name(), ((StartDocument) event).getVersion()));
+		} else if (event.isStartElement()) {
+			StartElement start = event.asStartElement();
+			if (matcher.needsChildValues(active.peek(), start.getName().getLocalPart())) {
+				lookahead = new ArrayList<>();
+				lookahead.add(event);
+				lookaheadDepth = 1;
+				return;
+			}
+			startElement(start, new StartElementNode(start, null));
+		} else if (event.isEndElement()) {
+			active.pop();
+			out.add(event);
+		} else {
+			out.add(event);
+		}
+	}
+
+	private void startElement(StartElement start, XmlPathMatcher.Node node) throws XMLStreamException {
+		BitSet matched = new BitSet();
+		BitSet childStates = matcher.advance(active.peek(), node, matched);
+		active.push(childStates);
+
+		List<Transformer> elementRules = null;
+		List<Attribute> attributes = null;
+		for (int r = matched.nextSetBit(0); r >= 0; r = matched.nextSetBit(r + 1)) {
+			Transformer t = matcher.getRules().get(r);
+			if (!matcher.isAttributeRule(r)) {
+				if (elementRules == null) {
+					elementRules = new ArrayList<>();
+				}
+				elementRules.add(t);
+				continue;
+			}
+			if (attributes == null) {
+				attributes = new ArrayList<>();
+				for (Iterator<?> it = start.getAttributes(); it.hasNext();) {
+					attributes.add((Attribute) it.next());
+				}
+			}
+			for (int i = 0; i < attributes.size(); i++) {
+				Attribute att = attributes.get(i);
+				QName q = att.getName();
+				if (matcher.matchesAttribute(r, q.getNamespaceURI(), q.getLocalPart())) {
+					attributes.set(i, events.createAttribute(q, mask(t, att.getValue())));
+				}
+			}
+		}
+		if (attributes != null) {
+			start = events.createStartElement(start.getName(), attributes.iterator(), start.getNamespaces());
+		}
+		out.add(start);
+
+		if (elementRules != null) {
+			text = new StringBuilder();
+			textRules = elementRules;
+			textDepth = 1;
+		}
+	}
+
+	// masking element text replaces all of its content, as in the document engine
+	private void collectText(XMLEvent event) throws XMLStreamException {
+		if (event.isStartElement()) {
+			textDepth++;
+		} else if (event.isEndElement()) {
+			if (--textDepth == 0) {
+				String value = text.toString();
+				for (Transformer t : textRules) {
+					value = mask(t, value);
+				}
+				text = null;
+				textRules = null;
+				active.pop();
+				out.add(events.createCharacters(value));
+				out.add(event);
+			}
+		} else if (event.isCharacters() && textDepth == 1) {
+			text.append(event.asCharacters().getData());
+		}
+	}
+
+	private String mask(Transformer t, String value) {
+		try {
+			return t.getMaskedValue(value);
+		} catch (Exception e) {
+			log.error("Failed to apply transformation :: rule: " + t.getRule() + ", path: " + t.getPath() + ", type:"
+					+ t.getNodeType() + "; " + e.getMessage() + "; " + e.toString());
+			return value;
+		}
+	}
+
+	@Override
+	public void add(XMLEventReader reader) throws XMLStreamException {
+		while (reader.hasNext()) {
+			add(reader.nextEvent());
+		}
+	}
+
+	@Override
+	public void flush() throws XMLStreamException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws XMLStreamException {
+		out.close();
+	}
+
+	@Override
+	public String getPrefix(String uri) throws XMLStreamException {
+		return out.getPrefix(uri);
+	}
+
+	@Override
+	public void setPrefix(String prefix, String uri) throws XMLStreamException {
+		out.setPrefix(prefix, uri);
+	}
+
+	@Override
+	public void setDefaultNamespace(String uri) throws XMLStreamException {
+		out.setDefaultNamespace(uri);
+	}
+
+	@Override
+	public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+		out.setNamespaceContext(context);
+	}
+
+	@Override
+	public NamespaceContext getNamespaceContext() {
+		return out.getNamespaceContext();
+	}
+}
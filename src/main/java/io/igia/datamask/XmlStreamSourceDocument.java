@@ -0,0 +1,157 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.validation.Schema;
+
+import org.apache.log4j.Logger;
+import org.jdom2.Namespace;
+import org.xml.sax.SAXException;
+
+/**
+ * Masks an xml file as a stream of StAX events, so memory use does not grow
+ * with the size of the file. Schema validation, when requested, runs over the
+ * same stream of events.
+ *
+ * Every rule must have a path supported by {@link XmlPathMatcher}; rules are
+ * applied as the matching nodes pass through, in document order.
+ *
+ * With a record element, the input is a stream of concatenated documents
+ * instead, such as standard input, split into records by
+ * {@link XmlRecordSplitter}. Each record is masked and written as a document
+ * on its own line as soon as it has been read, and the output is flushed
+ * before any read that would wait for more input.
+ */
+public class XmlStreamSourceDocument extends SourceDocument<Void> {
+
+	static final Logger log = Logger.getLogger(XmlStreamSourceDocument.class);
+
+	private XmlDatamaskUtil util = new XmlDatamaskUtil();
+	private XmlPathMatcher matcher;
+	private String recordElement; // null when the input is a single document
+
+	private XMLInputFactory inputFactory;
+	private XMLOutputFactory outputFactory;
+
+	XmlStreamSourceDocument(String type, String config, String schema, String input, String output) {
+		super(type, config, schema, input, output);
+	}
+
+	public String getRecordElement() {
+		return recordElement;
+	}
+
+	public void setRecordElement(String recordElement) {
+		this.recordElement = recordElement;
+	}
+
+	@Override
+	public void maskDocument(Boolean skipValidation) {
+		log.debug("Streaming xml file '" + inputFile + "' with schema '" + schemaFile + "'");
+		Schema schema = null;
+		if (skipValidation) {
+			log.warn("WARNING: Not validating the XML input file against an XSD.");
+		} else {
+			try {
+				schema = SchemaCache.getXmlSchema(schemaFile);
+			} catch (SAXException e) {
+				log.error("Failed to load xsd schema: " + schemaFile);
+				failed = true;
+				return;
+			}
+		}
+		inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setXMLResolver(CatalogResolver.getInstance());
+		outputFactory = XMLOutputFactory.newInstance();
+
+		boolean masked = false;
+		try (InputStream in = new BufferedInputStream(openInput()); OutputStream os = openOutput()) {
+			if (recordElement == null) {
+				mask(in, os, schema == null ? null : new XmlStreamValidator(schema));
+			} else {
+				maskRecords(in, os, schema);
+			}
+			masked = true;
+		} catch (XMLStreamException | IOException e) {
+			log.error("Failed to mask xml document: " + inputFile + "; " + e.getMessage());
+		} catch (SAXException e) {
+			log.error("Input file '" + inputFile + "' is not valid for the specified schema '" + schemaFile + "'; "
+					+ e.getMessage());
+		}
+		if (!masked) {
+			// do not leave a partially masked file behind
+			log.error("Error while streaming the XML file" + (skipValidation ? "" : " and validating with XSD file"));
+			failed = true;
+			removeOutput();
+		}
+	}
+
+	// masks each record in turn; a record is written only once fully masked
+	private void maskRecords(InputStream in, OutputStream os, Schema schema) throws IOException {
+		XmlRecordSplitter records = new XmlRecordSplitter(in, recordElement, os);
+		ByteArrayOutputStream masked = new ByteArrayOutputStream();
+		int count = 0;
+		for (byte[] record = records.next(); record != null; record = records.next()) {
+			masked.reset();
+			try {
+				mask(new ByteArrayInputStream(record), masked, schema == null ? null : new XmlStreamValidator(schema));
+			} catch (XMLStreamException | SAXException e) {
+				throw new IOException("record " + (count + 1) + ": " + e.getMessage(), e);
+			}
+			masked.write('\n');
+			masked.writeTo(os);
+			count++;
+		}
+		log.debug("Masked " + count + " records");
+	}
+
+	private void mask(InputStream in, OutputStream os, XmlStreamValidator validator)
+			throws XMLStreamException, SAXException {
+		XMLEventReader reader = inputFactory.createXMLEventReader(in);
+		XMLEventWriter writer = outputFactory.createXMLEventWriter(os, StandardCharsets.UTF_8.name());
+		XmlStreamMasker.mask(reader, writer, matcher, validator);
+	}
+
+	@Override
+	protected void postConfigure() {
+		log.debug("Loading namespaces");
+		List<Namespace> namespaceList = util.getNamespaceList(configXml);
+		log.debug("Compiling paths");
+		matcher = plan.getCompiled("xml-stream", () -> XmlPathMatcher.compile(config, namespaceList));
+		if (!matcher.getFallback().isEmpty()) {
+			String paths = Transformer.describePaths(matcher.getFallback());
+			log.error("ERROR: paths not supported by the stream engine: " + paths);
+			throw new DatamaskException("Paths not supported by the stream engine: " + paths);
+		}
+		log.debug("Compiled");
+	}
+
+	@Override
+	protected void preConfigure() {
+		// preConfigure is available in the base class but not necessary for this subclass
+	}
+}
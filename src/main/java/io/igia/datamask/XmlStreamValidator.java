@@ -0,0 +1,100 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.util.Iterator;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.validation.Schema;
+import javax.xml.validation.ValidatorHandler;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Validates a stream of StAX events against an xsd as they are read, so that
+ * validation and masking share a single pass over the input.
+ */
+class XmlStreamValidator {
+
+	private final ValidatorHandler handler;
+	private final AttributesImpl attributes = new AttributesImpl();
+
+	XmlStreamValidator(Schema schema) {
+		// without an error handler, the handler throws on the first validation error
+		this.handler = schema.newValidatorHandler();
+	}
+
+	void validate(XMLEvent event) throws SAXException {
+		try {
+			switch (event.getEventType()) {
+			case XMLStreamConstants.START_DOCUMENT:
+				handler.startDocument();
+				break;
+			case XMLStreamConstants.END_DOCUMENT:
+				handler.endDocument();
+				break;
+			case XMLStreamConstants.START_ELEMENT:
+				startElement(event.asStartElement());
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				endElement(event.asEndElement());
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				char[] ch = event.asCharacters().getData().toCharArray();
+				handler.characters(ch, 0, ch.length);
+				break;
+			default:
+				// comments, processing instructions and dtd events are not validated
+				break;
+			}
+		} catch (SAXException e) {
+			throw new SAXException("line " + event.getLocation().getLineNumber() + ": " + e.getMessage(), e);
+		}
+	}
+
+	private void startElement(StartElement start) throws SAXException {
+		for (Iterator<?> it = start.getNamespaces(); it.hasNext();) {
+			Namespace ns = (Namespace) it.next();
+			handler.startPrefixMapping(ns.getPrefix(), ns.getNamespaceURI());
+		}
+		attributes.clear();
+		for (Iterator<?> it = start.getAttributes(); it.hasNext();) {
+			Attribute att = (Attribute) it.next();
+			QName q = att.getName();
+			attributes.addAttribute(q.getNamespaceURI(), q.getLocalPart(), qualifiedName(q), "CDATA", att.getValue());
+		}
+		QName q = start.getName();
+		handler.startElement(q.getNamespaceURI(), q.getLocalPart(), qualifiedName(q), attributes);
+	}
+
+	private void endElement(EndElement end) throws SAXException {
+		QName q = end.getName();
+		handler.endElement(q.getNamespaceURI(), q.getLocalPart(), qualifiedName(q));
+		for (Iterator<?> it = end.getNamespaces(); it.hasNext();) {
+			handler.endPrefixMapping(((Namespace) it.next()).getPrefix());
+		}
+	}
+
+	private static String qualifiedName(QName q) {
+		return q.getPrefix().isEmpty() ? q.getLocalPart() : q.getPrefix() + ":" + q.getLocalPart();
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchSchedulerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String output;
+
+	@Before
+	public void setUp() {
+		output = folder.getRoot().getPath();
+	}
+
+	@Test
+	public void testExpandFile() {
+		List<String[]> files = BatchScheduler.expand("src/test/resources/example/employees.xml", output);
+		assertEquals(1, files.size());
+		assertEquals(new File("src/test/resources/example/employees.xml"), new File(files.get(0)[0]));
+		assertEquals(new File(output, "employees.xml"), new File(files.get(0)[1]));
+	}
+
+	@Test
+	public void testExpandDirectory() {
+		List<String[]> files = BatchScheduler.expand("src/test/resources/fhir", output);
+		assertTrue(files.size() > 1);
+		boolean found = false;
+		for (String[] file : files) {
+			assertTrue(new File(file[0]).isFile());
+			if (new File(file[0]).equals(new File("src/test/resources/fhir/patient/patient-response.xml"))) {
+				// the path below the directory is kept
+				assertEquals(new File(output, "patient/patient-response.xml"), new File(file[1]));
+				found = true;
+			}
+		}
+		assertTrue(found);
+		assertTrue(new File(output, "patient").isDirectory());
+	}
+
+	@Test
+	public void testExpandGlob() {
+		List<String[]> files = BatchScheduler.expand(
+				"src/test/resources/example/*.xsd;src/test/resources/fhir/**/patient-response.xml", output);
+		assertEquals(3, files.size());
+		assertArrayEquals(new String[] { new File("src/test/resources/example/employees.xsd").getPath(),
+				new File(output, "employees.xsd").getPath() }, files.get(0));
+		assertArrayEquals(new String[] { new File("src/test/resources/example/remote-import.xsd").getPath(),
+				new File(output, "remote-import.xsd").getPath() }, files.get(1));
+		assertArrayEquals(new String[] { new File("src/test/resources/fhir/patient/patient-response.xml").getPath(),
+				new File(output, "patient/patient-response.xml").getPath() }, files.get(2));
+	}
+
+	@Test(expected = DatamaskException.class)
+	public void testExpandMissing() {
+		BatchScheduler.expand("src/test/resources/no-such-directory", output);
+	}
+
+	@Test
+	public void testShard() {
+		List<SourceDocument<?>> documents = new ArrayList<>();
+		for (String[] file : BatchScheduler.expand("src/test/resources/fhir", output)) {
+			documents.add(new XmlSourceDocument("xml", "config.xml", null, file[0], file[1]));
+		}
+		// every document is in exactly one shard, in the order given
+		List<SourceDocument<?>> all = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			List<SourceDocument<?>> shard = BatchScheduler.shard(documents, i, 3);
+			assertTrue(!shard.isEmpty());
+			all.addAll(shard);
+		}
+		assertEquals(documents.size(), all.size());
+		assertTrue(all.containsAll(documents));
+		assertEquals(documents, BatchScheduler.shard(documents, 0, 1));
+	}
+
+	@Test
+	public void testMask() throws IOException {
+		// the same input masked four times on two threads gives the same output
+		List<SourceDocument<?>> documents = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			documents.add(new XmlSourceDocument("xml", "src/test/resources/example/config.xml",
+					"src/test/resources/example/employees.xsd", "src/test/resources/example/employees.xml",
+					output + "/employees-" + i + ".xml"));
+		}
+		BatchScheduler.mask(documents, 2, false);
+		byte[] expected = Files.readAllBytes(Paths.get(output, "employees-0.xml"));
+		assertTrue(expected.length > 0);
+		for (int i = 1; i < 4; i++) {
+			assertArrayEquals(expected, Files.readAllBytes(Paths.get(output, "employees-" + i + ".xml")));
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+public class CatalogResolverTest {
+	private CatalogResolver resolver = CatalogResolver.getInstance();
+
+	@Test
+	public void testResolveLocalFile() throws SAXException, IOException {
+		String uri = resolver.resolve("xml.xsd", new File("src/test/resources/fhir/schema-xsd/fhir-base.xsd").toURI().toString());
+		assertTrue(uri.startsWith("file:"));
+		assertTrue(uri.endsWith("fhir/schema-xsd/xml.xsd"));
+	}
+
+	@Test
+	public void testResolveMissingLocalFile() throws SAXException, IOException {
+		assertNull(resolver.resolve("missing.xsd", new File("src/test/resources/example/employees.xsd").toURI().toString()));
+	}
+
+	@Test
+	public void testResolveRemoteFromClasspath() throws SAXException, IOException {
+		String uri = resolver.resolve("http://www.w3.org/2001/xml.xsd", null);
+		assertTrue(uri.endsWith("catalog/xml.xsd"));
+	}
+
+	@Test
+	public void testResolveRemoteFromDirectory() throws SAXException, IOException {
+		resolver.addDirectory("src/test/resources/fhir/schema-xsd");
+		String uri = resolver.resolve("http://hl7.org/fhir/fhir-xhtml.xsd", null);
+		assertTrue(uri.endsWith("fhir/schema-xsd/fhir-xhtml.xsd"));
+	}
+
+	@Test(expected = SAXException.class)
+	public void testRefuseRemote() throws SAXException, IOException {
+		resolver.resolve("http://example.com/schemas/unknown.xsd", null);
+	}
+
+	@Test(expected = DatamaskException.class)
+	public void testMissingDirectory() {
+		resolver.addDirectory("src/test/resources/missing");
+	}
+
+	@Test
+	public void testSchemaWithRemoteImport() throws SAXException {
+		assertNotNull(SchemaCache.getXmlSchema("src/test/resources/example/remote-import.xsd"));
+	}
+
+	@Test
+	public void testFhirSchemaOffline() throws SAXException {
+		assertNotNull(SchemaCache.getXmlSchema("src/test/resources/fhir/schema-xsd/patient.xsd"));
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CheckpointJournalTest {
+
+	private static final String FILE = "src/test/resources/example/checkpoint-output.journal";
+	private static final String OUTPUT = "src/test/resources/example/checkpoint-output-";
+
+	private final List<SourceDocument<?>> documents = new ArrayList<>();
+
+	@Before
+	public void setUp() throws IOException {
+		new File(FILE).delete();
+		for (int i = 0; i < 3; i++) {
+			File output = new File(OUTPUT + i + ".json");
+			Files.write(output.toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+			documents.add(new JsonSourceDocument("json", "src/test/resources/fhir/patient/config-json.xml", null,
+					"src/test/resources/fhir/patient/patient-input.json", output.getPath()));
+		}
+	}
+
+	@Test
+	public void testResume() {
+		CheckpointJournal journal = CheckpointJournal.open(FILE);
+		assertEquals(documents, journal.pending(documents));
+		journal.completed(documents.get(0));
+		journal.completed(documents.get(2));
+		journal.close();
+
+		journal = CheckpointJournal.open(FILE);
+		List<SourceDocument<?>> pending = journal.pending(documents);
+		assertEquals(1, pending.size());
+		assertSame(documents.get(1), pending.get(0));
+		journal.close();
+	}
+
+	@Test
+	public void testMissingOutputIsMaskedAgain() {
+		CheckpointJournal journal = CheckpointJournal.open(FILE);
+		for (SourceDocument<?> doc : documents) {
+			journal.completed(doc);
+		}
+		journal.close();
+		new File(OUTPUT + "1.json").delete();
+
+		journal = CheckpointJournal.open(FILE);
+		List<SourceDocument<?>> pending = journal.pending(documents);
+		assertEquals(1, pending.size());
+		assertSame(documents.get(1), pending.get(0));
+		journal.close();
+	}
+
+	@Test
+	public void testFailedDocumentIsMaskedAgain() {
+		// the output left by an earlier run does not pass for the output of a document that failed
+		documents.get(1).setInputFile("src/test/resources/fhir/patient/no-such-input.json");
+		CheckpointJournal journal = CheckpointJournal.open(FILE);
+		try {
+			BatchScheduler.mask(documents, 2, true, journal::completed);
+			fail("expected a failure");
+		} catch (DatamaskException e) {
+			assertTrue(e.getMessage().startsWith("1 of 3"));
+		} finally {
+			journal.close();
+		}
+
+		journal = CheckpointJournal.open(FILE);
+		List<SourceDocument<?>> pending = journal.pending(documents);
+		assertEquals(1, pending.size());
+		assertSame(documents.get(1), pending.get(0));
+		journal.close();
+	}
+
+	@Test
+	public void testIncompleteLine() throws IOException {
+		CheckpointJournal journal = CheckpointJournal.open(FILE);
+		journal.completed(documents.get(0));
+		journal.close();
+		long length = new File(FILE).length();
+		try (RandomAccessFile file = new RandomAccessFile(FILE, "rw")) {
+			file.seek(length);
+			file.write("done\t123".getBytes(StandardCharsets.UTF_8));
+		}
+
+		journal = CheckpointJournal.open(FILE);
+		assertEquals(length, new File(FILE).length());
+		assertEquals(2, journal.pending(documents).size());
+		journal.completed(documents.get(1));
+		journal.close();
+
+		journal = CheckpointJournal.open(FILE);
+		assertEquals(1, journal.pending(documents).size());
+		journal.close();
+	}
+}
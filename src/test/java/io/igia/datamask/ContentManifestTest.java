@@ -0,0 +1,137 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentManifestTest {
+
+	private static final String FILE = "src/test/resources/example/content-output.manifest";
+	private static final String INPUT = "src/test/resources/example/content-output-input-";
+	private static final String OUTPUT = "src/test/resources/example/content-output-";
+
+	@Before
+	public void setUp() throws IOException {
+		new File(FILE).delete();
+		for (int i = 0; i < 3; i++) {
+			Files.write(Paths.get(INPUT + i + ".xml"), ("<employee id=\"" + i + "\"/>").getBytes(StandardCharsets.UTF_8));
+			new File(OUTPUT + i + ".xml").delete();
+		}
+	}
+
+	@Test
+	public void testHash() throws IOException {
+		String empty = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+		Files.write(Paths.get(INPUT + "0.xml"), new byte[0]);
+		assertEquals(empty, ContentManifest.hash(Paths.get(INPUT + "0.xml")));
+
+		// a file large enough to be mapped hashes the same as one read
+		byte[] large = new byte[200000];
+		Arrays.fill(large, (byte) 'a');
+		Files.write(Paths.get(INPUT + "1.xml"), large);
+		String mapped = ContentManifest.hash(Paths.get(INPUT + "1.xml"));
+		large[large.length - 1] = 'b';
+		Files.write(Paths.get(INPUT + "1.xml"), large);
+		assertTrue(!mapped.equals(ContentManifest.hash(Paths.get(INPUT + "1.xml"))));
+		assertEquals(64, mapped.length());
+	}
+
+	@Test
+	public void testChangedInputs() throws IOException {
+		List<SourceDocument<?>> documents = documents("src/test/resources/example/config.xml");
+		ContentManifest manifest = ContentManifest.open(FILE);
+		assertEquals(documents, manifest.changed(documents));
+		for (SourceDocument<?> doc : documents) {
+			Files.write(Paths.get(doc.outputFile), "<employee/>".getBytes(StandardCharsets.UTF_8));
+			manifest.completed(doc);
+		}
+		manifest.save();
+
+		// the same content rewritten is unchanged
+		Files.write(Paths.get(INPUT + "0.xml"), "<employee id=\"0\"/>".getBytes(StandardCharsets.UTF_8));
+		Files.write(Paths.get(INPUT + "2.xml"), "<employee id=\"9\"/>".getBytes(StandardCharsets.UTF_8));
+		documents = documents("src/test/resources/example/config.xml");
+		manifest = ContentManifest.open(FILE);
+		List<SourceDocument<?>> changed = manifest.changed(documents);
+		assertEquals(1, changed.size());
+		assertSame(documents.get(2), changed.get(0));
+		manifest.save();
+
+		// the document not masked again is still changed
+		manifest = ContentManifest.open(FILE);
+		assertEquals(1, manifest.changed(documents("src/test/resources/example/config.xml")).size());
+	}
+
+	@Test
+	public void testChangedPlan() throws IOException {
+		List<SourceDocument<?>> documents = documents("src/test/resources/example/config.xml");
+		ContentManifest manifest = ContentManifest.open(FILE);
+		manifest.changed(documents);
+		for (SourceDocument<?> doc : documents) {
+			Files.write(Paths.get(doc.outputFile), new byte[0]);
+			manifest.completed(doc);
+		}
+		manifest.save();
+
+		manifest = ContentManifest.open(FILE);
+		assertEquals(3, manifest.changed(documents("src/test/resources/example/config-invalid-path.xml")).size());
+	}
+
+	@Test
+	public void testFailedDocument() throws IOException {
+		List<SourceDocument<?>> documents = documents("src/test/resources/example/config.xml");
+		ContentManifest manifest = ContentManifest.open(FILE);
+		manifest.changed(documents);
+		for (SourceDocument<?> doc : documents) {
+			Files.write(Paths.get(doc.outputFile), "<employee/>".getBytes(StandardCharsets.UTF_8));
+			manifest.completed(doc);
+		}
+		manifest.save();
+
+		// a changed input that fails to mask does not keep the output of the last run
+		Files.write(Paths.get(INPUT + "1.xml"), "<employee".getBytes(StandardCharsets.UTF_8));
+		manifest = ContentManifest.open(FILE);
+		List<SourceDocument<?>> changed = manifest.changed(documents("src/test/resources/example/config.xml"));
+		assertEquals(1, changed.size());
+		assertFalse(changed.get(0).mask(true));
+		assertFalse(new File(OUTPUT + "1.xml").exists());
+		manifest.save();
+
+		manifest = ContentManifest.open(FILE);
+		assertEquals(1, manifest.changed(documents("src/test/resources/example/config.xml")).size());
+	}
+
+	private static List<SourceDocument<?>> documents(String config) {
+		List<SourceDocument<?>> documents = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			documents.add(new XmlSourceDocument("xml", config, "src/test/resources/example/employees.xsd",
+					INPUT + i + ".xml", OUTPUT + i + ".xml"));
+		}
+		return documents;
+	}
+}
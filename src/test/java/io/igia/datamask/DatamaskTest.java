@@ -14,6 +14,7 @@ package io.igia.datamask;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.Permission;
 import java.util.ArrayList;
@@ -82,6 +83,88 @@ public class DatamaskTest {
 				"src/test/resources/example/employees-output-cli.xml"));
 	}
 	
+	@Test
+	public void testXmlStreamEngine() throws JAXBException, JDOMException, IOException {
+		OptionGroup opt = new OptionGroup();
+		opt.configFile = "src/test/resources/example/config.xml";
+		opt.inputType = "xml";
+		opt.inputFile = "src/test/resources/example/employees.xml";
+		opt.outputFile = "src/test/resources/example/employees-output-cli.xml";
+		opt.schemaFile = "src/test/resources/example/employees.xsd";
+		String[] args = new String[] { "--mask=type:" + opt.inputType + ",engine:stream,config:" + opt.configFile
+				+ ",schema:" + opt.schemaFile + ",in:" + opt.inputFile + ",out:" + opt.outputFile };
+		Datamask.main(args);
+		
+		assertTrue(validateTransformation("src/test/resources/example/config.xml",
+				"src/test/resources/example/employees.xml",
+				"src/test/resources/example/employees-output-cli.xml"));
+	}
+	
+	@Test
+	public void testJsonStreamEngine() {
+		String[] args = new String[] { "--skip-schema-validation",
+				"--mask=type:json,engine:stream,config:src/test/resources/fhir/patient/config-json.xml"
+						+ ",in:src/test/resources/fhir/patient/patient-input.json"
+						+ ",out:src/test/resources/fhir/patient/patient-output-cli.json" };
+		Datamask.main(args);
+		
+		assertTrue(new File("src/test/resources/fhir/patient/patient-output-cli.json").length() > 0);
+	}
+	
+	@Test
+	public void testThreads() throws JAXBException, JDOMException, IOException {
+		String[] args = new String[] { "--threads=2",
+				"--mask=type:xml,config:src/test/resources/example/config.xml,schema:src/test/resources/example/employees.xsd"
+						+ ",in:src/test/resources/example/employees.xml,out:src/test/resources/example/employees-output-thread1.xml",
+				"--mask=type:xml,config:src/test/resources/example/config.xml,schema:src/test/resources/example/employees.xsd"
+						+ ",in:src/test/resources/example/employees.xml,out:src/test/resources/example/employees-output-thread2.xml" };
+		Datamask.main(args);
+		
+		assertTrue(validateTransformation("src/test/resources/example/config.xml",
+				"src/test/resources/example/employees.xml",
+				"src/test/resources/example/employees-output-thread1.xml"));
+		assertTrue(validateTransformation("src/test/resources/example/config.xml",
+				"src/test/resources/example/employees.xml",
+				"src/test/resources/example/employees-output-thread2.xml"));
+		// the shared cache masks a value the same way in every document
+		Document first = util.getSAXParsedDocument("src/test/resources/example/employees-output-thread1.xml");
+		Document second = util.getSAXParsedDocument("src/test/resources/example/employees-output-thread2.xml");
+		assertEquals(util.getXpathAttributes(first, new ArrayList<Namespace>(), "//employee/@id").get(0).getValue(),
+				util.getXpathAttributes(second, new ArrayList<Namespace>(), "//employee/@id").get(0).getValue());
+	}
+	
+	@Test(expected = SecurityException.class)
+	public void testInvalidThreads() {
+		String[] args = new String[] { "--threads=none", "--mask=type:xml,config:example.xml,schema:example.xsd,in:example.xml,out:example-masked.xml"};
+		Datamask.main(args);
+	}
+	
+	@Test(expected = SecurityException.class)
+	public void testInvalidEngine() {
+		String[] args = new String[] { "--mask=type:xml,engine:sax,config:example.xml,schema:example.xsd,in:example.xml,out:example-masked.xml"};
+		Datamask.main(args);
+	}
+	
+	@Test
+	public void testCompiledPlan() throws JAXBException, JDOMException, IOException {
+		String[] args = new String[] { "--compile=config:src/test/resources/example/config.xml,out:src/test/resources/example/config-output.plan" };
+		Datamask.main(args);
+		assertTrue(new File("src/test/resources/example/config-output.plan").exists());
+
+		args = new String[] { "--mask=type:xml,config:src/test/resources/example/config-output.plan,schema:src/test/resources/example/employees.xsd"
+				+ ",in:src/test/resources/example/employees.xml,out:src/test/resources/example/employees-output-plan.xml" };
+		Datamask.main(args);
+		assertTrue(validateTransformation("src/test/resources/example/config.xml",
+				"src/test/resources/example/employees.xml",
+				"src/test/resources/example/employees-output-plan.xml"));
+	}
+	
+	@Test(expected = SecurityException.class)
+	public void testCompileMissingOut() {
+		String[] args = new String[] { "--compile=config:src/test/resources/example/config.xml" };
+		Datamask.main(args);
+	}
+	
 	@Test(expected = SecurityException.class)
 	public void testInvalidOption() {
 		String[] args = new String[] {"--invalid"};
@@ -12,6 +12,7 @@
  */
 package io.igia.datamask;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.util.HashMap;
@@ -293,4 +294,17 @@ public class DateOffsetTransformerTest {
 	    assertTrue(diff <= RANDOM_RANGE_HIGH);
 	}
 
+	@Test
+	public void testOffsetShared() {
+		SurrogateDictionary previous = SurrogateDictionary.bind(new HeapSurrogateDictionary());
+		try {
+			DateOffsetTransformer first = new DateOffsetTransformer();
+			DateOffsetTransformer other = new DateOffsetTransformer();
+			// the offset another process would draw
+			other.secondsOffset = first.secondsOffset + 1;
+			assertEquals(first.getSecondsOffset(), other.getSecondsOffset());
+		} finally {
+			SurrogateDictionary.bind(previous);
+		}
+	}
 }
@@ -0,0 +1,114 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class DictionaryServiceTest {
+
+	@Test
+	public void testWorkersShareSurrogates() throws Exception {
+		SurrogateDictionary coordinator = new HeapSurrogateDictionary();
+		DictionaryService service = DictionaryService.start(null, 0, coordinator);
+		try {
+			SurrogateDictionary first = new RemoteSurrogateDictionary("localhost", service.getPort());
+			SurrogateDictionary second = new RemoteSurrogateDictionary("localhost", service.getPort());
+			assertEquals("first-1", first.getSurrogate("NAME", "Smith", true, v -> "first-1"));
+			// the second worker gets the surrogate of the first, not its own candidate
+			assertEquals("first-1", second.getSurrogate("NAME", "Smith", true, v -> "second-1"));
+			assertEquals("first-1", second.lookup("Smith"));
+			assertNull(second.lookup("Jones"));
+			assertEquals("second-2", second.getSurrogate("NAME", "Jones", true, v -> "second-2"));
+			assertEquals("second-2", first.lookup("Jones"));
+			assertEquals("first-1", coordinator.getSurrogate("NAME", "Smith", true, v -> "coordinator"));
+			assertEquals(1, second.getStats("NAME").getHits());
+
+			first.close();
+			second.close();
+			service.awaitWorkers(2, 10000);
+		} finally {
+			service.close();
+		}
+	}
+
+	@Test(expected = DatamaskException.class)
+	public void testDisconnectedWorker() throws Exception {
+		DictionaryService service = DictionaryService.start(null, 0, new HeapSurrogateDictionary());
+		try {
+			SurrogateDictionary finished = new RemoteSurrogateDictionary("localhost", service.getPort());
+			finished.close();
+			// a worker that stops without telling the coordinator is not waited for
+			try (Socket socket = new Socket("localhost", service.getPort())) {
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				out.writeByte(DictionaryService.HELLO);
+				DictionaryService.writeString(out, "failed-worker");
+				out.flush();
+			}
+			service.awaitWorkers(2, 60000);
+		} finally {
+			service.close();
+		}
+	}
+
+	@Test(expected = DatamaskException.class)
+	public void testAbsentWorker() throws Exception {
+		DictionaryService service = DictionaryService.start(null, 0, new HeapSurrogateDictionary());
+		try {
+			service.awaitWorkers(1, 100);
+		} finally {
+			service.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentWorkers() throws Exception {
+		SurrogateDictionary coordinator = new HeapSurrogateDictionary();
+		DictionaryService service = DictionaryService.start(null, 0, coordinator);
+		ExecutorService threads = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<List<String>>> results = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				int worker = t;
+				results.add(threads.submit(() -> {
+					SurrogateDictionary dictionary = new RemoteSurrogateDictionary("localhost", service.getPort());
+					List<String> surrogates = new ArrayList<>();
+					for (int i = 0; i < 200; i++) {
+						surrogates.add(dictionary.getSurrogate("IDENTIFIER", "id" + i, true, v -> worker + "-" + v));
+					}
+					dictionary.close();
+					return surrogates;
+				}));
+			}
+			List<String> expected = results.get(0).get();
+			for (Future<List<String>> result : results) {
+				assertEquals(expected, result.get());
+			}
+			service.awaitWorkers(4, 10000);
+			assertEquals(200, coordinator.getStats("IDENTIFIER").getSize());
+		} finally {
+			threads.shutdownNow();
+			service.close();
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DocumentPipelineTest {
+
+	// records the stages each document goes through, without reading any file
+	private static class StagedDocument extends SourceDocument<String> {
+		final List<String> written;
+		final boolean failing;
+		final List<String> stages = Collections.synchronizedList(new ArrayList<>());
+
+		StagedDocument(String name, List<String> written, boolean failing) {
+			super("test", null, null, name, name);
+			this.written = written;
+			this.failing = failing;
+		}
+
+		@Override
+		protected void configure() {
+			stages.add("configure");
+		}
+
+		@Override
+		protected boolean readDocument(Boolean skipValidation) {
+			stages.add("read");
+			document = inputFile;
+			return true;
+		}
+
+		@Override
+		protected void transformDocument(Boolean skipValidation) {
+			stages.add("transform");
+			if (failing) {
+				throw new DatamaskException("failed " + inputFile);
+			}
+			// later documents are masked faster, so they finish first
+			try {
+				Thread.sleep(Math.max(0, 20 - Integer.parseInt(inputFile)));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			document = "masked " + document;
+		}
+
+		@Override
+		protected void writeDocument() {
+			stages.add("write");
+			written.add(document);
+			document = null;
+		}
+
+		@Override
+		public void maskDocument(Boolean skipValidation) {
+			fail("masked outside the pipeline");
+		}
+
+		@Override
+		protected void preConfigure() {
+		}
+
+		@Override
+		protected void postConfigure() {
+		}
+	}
+
+	@Test
+	public void testOrderedOutput() {
+		List<String> written = new ArrayList<>();
+		List<SourceDocument<?>> documents = new ArrayList<>();
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			documents.add(new StagedDocument(Integer.toString(i), written, false));
+			expected.add("masked " + i);
+		}
+		DocumentPipeline.mask(documents, 4, true);
+		assertEquals(expected, written);
+		for (SourceDocument<?> doc : documents) {
+			assertEquals(4, ((StagedDocument) doc).stages.size());
+			assertEquals("configure", ((StagedDocument) doc).stages.get(0));
+			assertEquals("write", ((StagedDocument) doc).stages.get(3));
+			assertEquals(null, doc.getDocument());
+		}
+	}
+
+	@Test
+	public void testFailedDocumentIsNotWritten() {
+		List<String> written = new ArrayList<>();
+		List<SourceDocument<?>> documents = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			documents.add(new StagedDocument(Integer.toString(i), written, i == 2));
+		}
+		try {
+			DocumentPipeline.mask(documents, 2, true);
+			fail("expected a failure");
+		} catch (DatamaskException e) {
+			assertTrue(e.getMessage().startsWith("1 of 5"));
+		}
+		List<String> expected = new ArrayList<>();
+		for (int i : new int[] { 0, 1, 3, 4 }) {
+			expected.add("masked " + i);
+		}
+		assertEquals(expected, written);
+	}
+}
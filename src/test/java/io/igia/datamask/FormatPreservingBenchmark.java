@@ -0,0 +1,56 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+/**
+ * Compares the cost of masking identifiers with the salted MD5 hash of
+ * IDENTIFIER and with the FF1 encryption of FPE, calling mask() directly so
+ * that the surrogate dictionary is left out of both.
+ *
+ * Run with: java -cp target/classes:target/test-classes:... io.igia.datamask.FormatPreservingBenchmark [values] [rounds]
+ */
+public class FormatPreservingBenchmark {
+
+	public static void main(String[] args) {
+		int values = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		String[] mrns = new String[values];
+		for (int i = 0; i < values; i++) {
+			mrns[i] = String.format("MRN%08d", i);
+		}
+		Transformer md5 = new IdentifierTransformer();
+		Transformer fpe = new FormatPreservingTransformer();
+		long sink = 0;
+		for (int round = 0; round <= rounds; round++) {
+			// the first round warms up the jit
+			long start = System.nanoTime();
+			for (String mrn : mrns) {
+				sink += md5.mask(mrn).length();
+			}
+			long hashed = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (String mrn : mrns) {
+				sink += fpe.mask(mrn).length();
+			}
+			long encrypted = System.nanoTime() - start;
+
+			if (round > 0) {
+				System.out.printf("round %d: md5 %.0f ns/value, fpe %.0f ns/value%n", round, (double) hashed / values,
+						(double) encrypted / values);
+			}
+		}
+		System.out.println(values + " values, checksum " + sink);
+	}
+}
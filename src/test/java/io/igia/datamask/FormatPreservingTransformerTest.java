@@ -0,0 +1,156 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class FormatPreservingTransformerTest {
+
+	// NIST SP 800-38G FF1 samples 1 to 3
+	private static final byte[] NIST_KEY = new BigInteger("2B7E151628AED2A6ABF7158809CF4F3C", 16).toByteArray();
+
+	@After
+	public void tearDown() {
+		MaskingKey.setInstance(null);
+	}
+
+	@Test
+	public void testNistSamples() {
+		FF1 ff1 = new FF1(NIST_KEY);
+		int[] plain = numerals("0123456789", 10);
+		assertArrayEquals(numerals("2433477484", 10), ff1.encrypt(plain, 10, new byte[0]));
+		byte[] tweak = new BigInteger("39383736353433323130", 16).toByteArray();
+		assertArrayEquals(numerals("6124200773", 10), ff1.encrypt(plain, 10, tweak));
+		assertArrayEquals(plain, ff1.decrypt(numerals("6124200773", 10), 10, tweak));
+
+		tweak = new BigInteger("3737373770717273373737", 16).toByteArray();
+		int[] plain36 = numerals("0123456789abcdefghi", 36);
+		assertArrayEquals(numerals("a9tv40mll9kdu509eum", 36), ff1.encrypt(plain36, 36, tweak));
+		assertArrayEquals(plain36, ff1.decrypt(numerals("a9tv40mll9kdu509eum", 36), 36, tweak));
+	}
+
+	@Test
+	public void testLongValues() {
+		FF1 ff1 = new FF1(NIST_KEY);
+		int[] plain = numerals("1234567890123456789012345678901234567890", 10);
+		int[] encrypted = ff1.encrypt(plain, 10, new byte[] { 1, 2, 3 });
+		assertEquals(plain.length, encrypted.length);
+		assertArrayEquals(plain, ff1.decrypt(encrypted, 10, new byte[] { 1, 2, 3 }));
+	}
+
+	@Test
+	public void testFormatPreserved() {
+		FormatPreservingTransformer transformer = new FormatPreservingTransformer();
+		String[] values = { "123-45-6789", "(617)555-0123", "MRN00012345", "ab12CD34", "0042" };
+		for (String value : values) {
+			String masked = transformer.mask(value);
+			assertNotEquals(value, masked);
+			assertEquals(value.length(), masked.length());
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				char m = masked.charAt(i);
+				if (Character.isDigit(c)) {
+					assertTrue(Character.isDigit(m));
+				} else if (Character.isUpperCase(c)) {
+					assertTrue(Character.isUpperCase(m));
+				} else if (Character.isLowerCase(c)) {
+					assertTrue(Character.isLowerCase(m));
+				} else {
+					assertEquals(c, m);
+				}
+			}
+			assertEquals(value, transformer.unmask(masked));
+		}
+	}
+
+	@Test
+	public void testSingleCharacters() {
+		MaskingKey.setInstance(new MaskingKey("0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII)));
+		FormatPreservingTransformer transformer = new FormatPreservingTransformer();
+		Set<String> digits = new HashSet<>();
+		int unchanged = 0;
+		for (char c = '0'; c <= '9'; c++) {
+			String masked = transformer.mask(String.valueOf(c));
+			assertTrue(Character.isDigit(masked.charAt(0)));
+			assertEquals(String.valueOf(c), transformer.unmask(masked));
+			digits.add(masked);
+			unchanged += masked.equals(String.valueOf(c)) ? 1 : 0;
+		}
+		assertEquals(10, digits.size());
+		assertTrue(unchanged < 10);
+
+		for (String value : new String[] { "A", "z", "MRN-7", "x-1" }) {
+			String masked = transformer.mask(value);
+			assertEquals(value.length(), masked.length());
+			assertEquals(value, transformer.unmask(masked));
+		}
+		assertTrue(Character.isUpperCase(transformer.mask("A").charAt(0)));
+		assertTrue(Character.isLowerCase(transformer.mask("z").charAt(0)));
+
+		// the digit of "MRN-7" is encrypted with the letters, not left for want of a second digit
+		Set<Character> last = new HashSet<>();
+		for (char c = '0'; c <= '9'; c++) {
+			last.add(transformer.mask("MRN-" + c).charAt(4));
+		}
+		assertTrue(last.size() > 1);
+	}
+
+	@Test(expected = DatamaskException.class)
+	public void testDomainTooSmall() {
+		new FF1(NIST_KEY).encrypt(new int[] { 1, 2 }, 5, new byte[0]);
+	}
+
+	@Test
+	public void testKeyed() {
+		MaskingKey.setInstance(new MaskingKey("0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII)));
+		Transformer first = new FormatPreservingTransformer();
+		String masked = first.getMaskedValue("MRN00012345");
+		assertEquals(masked, new FormatPreservingTransformer().getMaskedValue("MRN00012345"));
+		assertNotEquals(masked, first.getMaskedValue("MRN00012346"));
+
+		// the dictionary keeps the value masked with the key, so the cipher is compared directly
+		MaskingKey.setInstance(null);
+		assertNotEquals(masked, new FormatPreservingTransformer().mask("MRN00012345"));
+	}
+
+	@Test
+	public void testUnkeyedInDictionary() {
+		// without a key the cipher is random for the process, so the dictionary keeps the masked value
+		SurrogateDictionary previous = SurrogateDictionary.bind(new HeapSurrogateDictionary());
+		try {
+			String masked = new FormatPreservingTransformer().getMaskedValue("MRN00012345");
+			assertEquals(masked, SurrogateDictionary.current().lookup("MRN00012345"));
+		} finally {
+			SurrogateDictionary.bind(previous);
+		}
+	}
+
+	private static int[] numerals(String s, int radix) {
+		int[] numerals = new int[s.length()];
+		for (int i = 0; i < s.length(); i++) {
+			numerals[i] = Character.digit(s.charAt(i), radix);
+		}
+		return numerals;
+	}
+}
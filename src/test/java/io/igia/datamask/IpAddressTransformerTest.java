@@ -13,8 +13,11 @@
 package io.igia.datamask;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Random;
+
 import org.junit.Test;
 
 public class IpAddressTransformerTest {
@@ -25,6 +28,83 @@ public class IpAddressTransformerTest {
 		Transformer transformer = new IpAddressTransformer();
 		String maskedValue = transformer.mask(text);
 		assertTrue(!maskedValue.equalsIgnoreCase(text));
-		assertEquals("127.0.0.1", maskedValue);
+		assertTrue(IpAddressTransformer.parseIpv4(maskedValue, 0, maskedValue.length()) >= 0);
+		assertEquals(maskedValue, new IpAddressTransformer().mask(text));
+	}
+
+	@Test
+	public void testNotAnAddress() {
+		Transformer transformer = new IpAddressTransformer();
+		assertEquals("127.0.0.1", transformer.mask("host.example.com"));
+		assertEquals("127.0.0.1", transformer.mask("1.2.3.256"));
+		assertEquals("127.0.0.1", transformer.mask("1:2:3:4:5:6:7:8:9"));
+	}
+
+	@Test
+	public void testPrefixPreservedIpv4() {
+		PrefixPreservingCipher cipher = new PrefixPreservingCipher(new byte[16]);
+		Random random = new Random(1);
+		for (int i = 0; i < 10000; i++) {
+			int a = random.nextInt();
+			int b = i % 2 == 0 ? random.nextInt() : a ^ (1 << random.nextInt(32));
+			assertEquals(Integer.numberOfLeadingZeros(a ^ b),
+					Integer.numberOfLeadingZeros(cipher.anonymize(a) ^ cipher.anonymize(b)));
+		}
+	}
+
+	@Test
+	public void testPrefixPreservedIpv6() {
+		PrefixPreservingCipher cipher = new PrefixPreservingCipher(new byte[16]);
+		Random random = new Random(2);
+		for (int i = 0; i < 2000; i++) {
+			long[] a = { random.nextLong(), random.nextLong() };
+			long[] b = a.clone();
+			int bit = random.nextInt(128);
+			if (bit < 64) {
+				b[0] ^= 1L << bit;
+			} else {
+				b[1] ^= 1L << (bit - 64);
+			}
+			int common = commonPrefix(a, b);
+			cipher.anonymize(a);
+			cipher.anonymize(b);
+			assertEquals(common, commonPrefix(a, b));
+		}
+	}
+
+	@Test
+	public void testIpv6() {
+		long[] address = new long[2];
+		assertTrue(IpAddressTransformer.parseIpv6("2001:DB8:0:0:0:0:0:1", address));
+		assertEquals("2001:db8::1", IpAddressTransformer.formatIpv6(address));
+		assertTrue(IpAddressTransformer.parseIpv6("::ffff:1.2.3.4", address));
+		assertEquals("::ffff:102:304", IpAddressTransformer.formatIpv6(address));
+		assertTrue(IpAddressTransformer.parseIpv6("1:0:0:2:0:0:0:3", address));
+		assertEquals("1:0:0:2::3", IpAddressTransformer.formatIpv6(address));
+		assertFalse(IpAddressTransformer.parseIpv6("1::2::3", address));
+		assertFalse(IpAddressTransformer.parseIpv6("12345::", address));
+
+		Transformer transformer = new IpAddressTransformer();
+		String first = transformer.mask("2001:db8:85a3::8a2e:370:7334");
+		String second = transformer.mask("2001:db8:85a3::8a2e:370:7335");
+		assertTrue(IpAddressTransformer.parseIpv6(first, address));
+		assertTrue(first.substring(0, first.lastIndexOf(':')).equals(second.substring(0, second.lastIndexOf(':'))));
+	}
+
+	@Test
+	public void testTokenized() {
+		SurrogateDictionary previous = SurrogateDictionary.bind(new HeapSurrogateDictionary());
+		try {
+			String masked = new IpAddressTransformer().getMaskedValue("10.1.2.3");
+			assertEquals(masked, SurrogateDictionary.current().lookup("10.1.2.3"));
+			assertEquals("login from " + masked + ".",
+					new TokenizeTextTransformer().getMaskedValue("login from 10.1.2.3."));
+		} finally {
+			SurrogateDictionary.bind(previous);
+		}
+	}
+
+	private static int commonPrefix(long[] a, long[] b) {
+		return a[0] != b[0] ? Long.numberOfLeadingZeros(a[0] ^ b[0]) : 64 + Long.numberOfLeadingZeros(a[1] ^ b[1]);
 	}
 }
@@ -0,0 +1,86 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class JsonPathMatcherTest {
+	private TransformerFactory factory = new TransformerFactory();
+
+	@Test
+	public void testMemberPath() {
+		JsonPathMatcher matcher = compile("$.meta.lastUpdated");
+		BitSet matched = new BitSet();
+		BitSet meta = matcher.advance(matcher.getInitialStates(), "meta", 0, matched);
+		assertTrue(matched.isEmpty());
+		matcher.advance(meta, "lastUpdated", 0, matched);
+		assertTrue(matched.get(0));
+
+		matched.clear();
+		matcher.advance(matcher.getInitialStates(), "lastUpdated", 0, matched);
+		assertTrue(matched.isEmpty());
+	}
+
+	@Test
+	public void testArrayPath() {
+		JsonPathMatcher matcher = compile("$.name[*].family", "$['telecom'][1].value");
+		BitSet matched = new BitSet();
+		BitSet name = matcher.advance(matcher.getInitialStates(), "name", 0, matched);
+		BitSet element = matcher.advance(name, null, 3, matched);
+		matcher.advance(element, "family", 0, matched);
+		assertTrue(matched.get(0));
+		assertFalse(matched.get(1));
+
+		matched.clear();
+		BitSet telecom = matcher.advance(matcher.getInitialStates(), "telecom", 0, matched);
+		matcher.advance(matcher.advance(telecom, null, 0, matched), "value", 0, matched);
+		assertTrue(matched.isEmpty());
+		matcher.advance(matcher.advance(telecom, null, 1, matched), "value", 0, matched);
+		assertTrue(matched.get(1));
+	}
+
+	@Test
+	public void testDeepScan() {
+		JsonPathMatcher matcher = compile("$..system");
+		BitSet matched = new BitSet();
+		BitSet active = matcher.advance(matcher.getInitialStates(), "identifier", 0, matched);
+		active = matcher.advance(active, null, 0, matched);
+		active = matcher.advance(active, "type", 0, matched);
+		matcher.advance(active, "system", 0, matched);
+		assertTrue(matched.get(0));
+	}
+
+	@Test
+	public void testUnsupportedPaths() {
+		JsonPathMatcher matcher = compile("$.name[?(@.use=='official')].family", "$.name[0:2].family",
+				"$.name[0,1].family", "name.family", "$", "$.id");
+		assertEquals(5, matcher.getUnsupported().size());
+		assertEquals(1, matcher.getRules().size());
+	}
+
+	private JsonPathMatcher compile(String... paths) {
+		List<Transformer> rules = new ArrayList<>();
+		for (String path : paths) {
+			rules.add(factory.create("TEXT", path, "JSON", null));
+		}
+		return JsonPathMatcher.compile(rules);
+	}
+}
@@ -12,9 +12,13 @@
  */
 package io.igia.datamask;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -22,8 +26,14 @@ import java.nio.file.Paths;
 import java.util.List;
 
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
 import com.jayway.jsonpath.Configuration;
 import com.jayway.jsonpath.DocumentContext;
 import com.jayway.jsonpath.JsonPath;
@@ -35,6 +45,9 @@ import io.igia.datamask.model.Field;
 public class JsonSourceDocumentTest {
 	private XmlDatamaskUtil util = new XmlDatamaskUtil();
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	@Test
 	public void testDeindentifyNoSchema() {
 		mask("json",
@@ -48,6 +61,40 @@ public class JsonSourceDocumentTest {
 				"src/test/resources/fhir/patient/patient-output.json"));
 	}
 	
+	@Test
+	public void testPaths() throws IOException {
+		// a filter path left to JsonPath, an array of names and a tokenizing rule
+		String output = folder.getRoot().getPath() + "/patient-paths-output.json";
+		mask("json", "src/test/resources/fhir/patient/config-json-paths.xml",
+				"src/test/resources/fhir/patient/patient-paths-input.json", null, output, true);
+		JsonNode masked = new ObjectMapper().readTree(new File(output));
+
+		assertEquals("10006579", masked.at("/identifier/0/value").asText());
+		assertNotEquals("20007468", masked.at("/identifier/1/value").asText());
+		String family = masked.at("/name/0/family").asText();
+		assertNotEquals("Gupta", family);
+		JsonNode given = masked.at("/name/0/given");
+		assertEquals(2, given.size());
+		assertNotEquals("Lokesh", given.get(0).asText());
+		assertNotEquals("Kumar", given.get(1).asText());
+		String div = masked.at("/text/div").asText();
+		assertFalse(div.contains("Gupta"));
+		assertFalse(div.contains("Lokesh"));
+		assertTrue(div.contains(family));
+	}
+
+	@Test
+	public void testOutputFormat() throws IOException {
+		// written as the Gson printer used to write it
+		String output = folder.getRoot().getPath() + "/patient-format-output.json";
+		mask("json", "src/test/resources/fhir/patient/config-json-paths.xml",
+				"src/test/resources/fhir/patient/patient-paths-input.json", null, output, true);
+		String json = readFileAsString(output);
+		assertTrue(json.contains("\u003cdiv xmlns\u003d"));
+		assertEquals(new GsonBuilder().setPrettyPrinting().create().toJson(new JsonParser().parse(json))
+				+ System.lineSeparator(), json);
+	}
+
 	private void mask(String inputType, String xmlConfigFile, String inputFile, String schema, String outputFile, Boolean skipXsdValidation) {
 		JsonSourceDocument doc = new JsonSourceDocument(inputType, xmlConfigFile, schema, inputFile, outputFile);
 		doc.mask(skipXsdValidation);
@@ -0,0 +1,87 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MaskingKeyTest {
+
+	private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	@After
+	public void tearDown() {
+		MaskingKey.setInstance(null);
+	}
+
+	@Test
+	public void testPrf() {
+		MaskingKey key = new MaskingKey(KEY);
+		assertArrayEquals(key.prf("NAME", "Smith"), new MaskingKey(KEY).prf("NAME", "Smith"));
+		assertFalse(Arrays.equals(key.prf("NAME", "Smith"), key.prf("IDENTIFIER", "Smith")));
+		assertFalse(Arrays.equals(key.prf("NAME", "Smith"), new MaskingKey(Arrays.copyOf(KEY, 16)).prf("NAME", "Smith")));
+		assertEquals(key.random("NAME", "Smith").nextLong(), new MaskingKey(KEY).random("NAME", "Smith").nextLong());
+	}
+
+	@Test
+	public void testLoad() {
+		MaskingKey.load("src/test/resources/example/datamask.key");
+		assertNotNull(MaskingKey.getInstance());
+		assertArrayEquals(new MaskingKey(KEY).prf("NAME", "Smith"), MaskingKey.getInstance().prf("NAME", "Smith"));
+	}
+
+	@Test(expected = DatamaskException.class)
+	public void testLoadMissingKey() {
+		MaskingKey.load("src/test/resources/example/missing.key");
+	}
+
+	@Test
+	public void testKeyedTransformers() throws Exception {
+		MaskingKey.setInstance(new MaskingKey(KEY));
+		Transformer[][] pairs = {
+				{ new IdentifierTransformer("//id", "TEXT", "IDENTIFIER", null),
+						new IdentifierTransformer("//id", "TEXT", "IDENTIFIER", null) },
+				{ new NameTransformer("//name", "TEXT", "NAME", null), new NameTransformer("//name", "TEXT", "NAME", null) },
+				{ new EmailTransformer("//email", "TEXT", "EMAIL", null),
+						new EmailTransformer("//email", "TEXT", "EMAIL", null) },
+				{ new NumericIdentifierTransformer(), new NumericIdentifierTransformer() } };
+		String[] values = { "MRN-1234", "Smith, John A", "john@example.com", "123456789" };
+		// each of the pair masks with a dictionary of its own, as separate processes do
+		SurrogateDictionary first = new HeapSurrogateDictionary();
+		SurrogateDictionary second = new HeapSurrogateDictionary();
+		SurrogateDictionary previous = SurrogateDictionary.bind(first);
+		try {
+			for (int i = 0; i < pairs.length; i++) {
+				SurrogateDictionary.bind(first);
+				String masked = pairs[i][0].getMaskedValue(values[i]);
+				assertNotEquals(values[i], masked);
+				// kept for tokenizing rules
+				assertEquals(masked, first.lookup(values[i]));
+				SurrogateDictionary.bind(second);
+				assertEquals(masked, pairs[i][1].getMaskedValue(values[i]));
+			}
+			assertNotEquals(pairs[0][0].getMaskedValue("MRN-1234"), pairs[0][0].getMaskedValue("MRN-1235"));
+		} finally {
+			SurrogateDictionary.bind(previous);
+		}
+	}
+}
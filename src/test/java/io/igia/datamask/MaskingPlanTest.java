@@ -0,0 +1,57 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class MaskingPlanTest {
+
+	@Test
+	public void testForConfigLoadsOnce() {
+		MaskingPlan plan = MaskingPlan.forConfig("src/test/resources/example/config.xml");
+		assertEquals(9, plan.getTransformers().size());
+		assertSame(plan, MaskingPlan.forConfig("src/test/resources/example/config.xml"));
+	}
+
+	@Test
+	public void testCompile() {
+		MaskingPlan.compile("src/test/resources/fhir/patient/config.xml", "src/test/resources/fhir/patient/config-output.plan");
+		MaskingPlan xml = MaskingPlan.forConfig("src/test/resources/fhir/patient/config.xml");
+		MaskingPlan compiled = MaskingPlan.forConfig("src/test/resources/fhir/patient/config-output.plan");
+
+		assertEquals(xml.getConfig().getNamespaces().size(), compiled.getConfig().getNamespaces().size());
+		assertEquals(xml.getTransformers().size(), compiled.getTransformers().size());
+		for (int i = 0; i < xml.getTransformers().size(); i++) {
+			Transformer t = xml.getTransformers().get(i);
+			Transformer c = compiled.getTransformers().get(i);
+			assertEquals(t.getClass(), c.getClass());
+			assertEquals(t.getPath(), c.getPath());
+			assertEquals(t.getNodeType(), c.getNodeType());
+			assertEquals(t.getParams(), c.getParams());
+		}
+	}
+
+	@Test(expected = DatamaskException.class)
+	public void testCompileInvalidPath() {
+		MaskingPlan.compile("src/test/resources/example/config-invalid-path.xml", "src/test/resources/example/config-output.plan");
+	}
+
+	@Test
+	public void testMissingConfig() {
+		assertNull(MaskingPlan.forConfig("src/test/resources/example/missing.xml"));
+	}
+}
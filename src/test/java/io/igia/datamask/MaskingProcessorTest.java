@@ -0,0 +1,233 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.igia.datamask.MaskingFlow.Publisher;
+import io.igia.datamask.MaskingFlow.Subscriber;
+import io.igia.datamask.MaskingFlow.Subscription;
+
+public class MaskingProcessorTest {
+
+	private static final MaskingProfile PROFILE = MaskingProfile.compile("json",
+			"src/test/resources/fhir/patient/config-json.xml", null);
+
+	@Test
+	public void testOrdered() throws Exception {
+		List<byte[]> records = records(200);
+		try (MaskingSession session = MaskingSession.open(PROFILE)) {
+			RecordPublisher publisher = new RecordPublisher(records);
+			MaskingProcessor processor = new MaskingProcessor(session, 4, true);
+			publisher.subscribe(processor);
+			RecordSubscriber subscriber = new RecordSubscriber(7, records.size());
+			processor.subscribe(subscriber);
+			subscriber.await();
+			assertNull(subscriber.error);
+			assertEquals(records.size(), subscriber.received.size());
+			for (int i = 0; i < records.size(); i++) {
+				assertArrayEquals(session.mask(records.get(i)), subscriber.received.get(i));
+			}
+			// no more records were held than twice the parallelism
+			assertTrue(publisher.maxOutstanding <= 8);
+		}
+	}
+
+	@Test
+	public void testUnordered() throws Exception {
+		List<byte[]> records = records(200);
+		try (MaskingSession session = MaskingSession.open(PROFILE)) {
+			MaskingProcessor processor = new MaskingProcessor(session, 4, false);
+			new RecordPublisher(records).subscribe(processor);
+			RecordSubscriber subscriber = new RecordSubscriber(Long.MAX_VALUE, records.size());
+			processor.subscribe(subscriber);
+			subscriber.await();
+			assertNull(subscriber.error);
+			Set<String> expected = new HashSet<>();
+			for (byte[] record : records) {
+				expected.add(new String(session.mask(record), StandardCharsets.UTF_8));
+			}
+			Set<String> received = new HashSet<>();
+			for (byte[] record : subscriber.received) {
+				received.add(new String(record, StandardCharsets.UTF_8));
+			}
+			assertEquals(expected, received);
+		}
+	}
+
+	@Test
+	public void testBackpressure() throws Exception {
+		List<byte[]> records = records(100);
+		try (MaskingSession session = MaskingSession.open(PROFILE)) {
+			RecordPublisher publisher = new RecordPublisher(records);
+			MaskingProcessor processor = new MaskingProcessor(session, 2, true);
+			publisher.subscribe(processor);
+			RecordSubscriber subscriber = new RecordSubscriber(0, 3);
+			processor.subscribe(subscriber);
+			subscriber.subscription.request(3);
+			subscriber.await();
+			Thread.sleep(200);
+			// only the records requested are published, and few more are read
+			assertEquals(3, subscriber.received.size());
+			assertTrue(publisher.sent <= 3 + 4);
+			subscriber.subscription.cancel();
+			assertTrue(publisher.cancelled);
+		}
+	}
+
+	@Test
+	public void testMalformedRecord() throws Exception {
+		List<byte[]> records = records(20);
+		records.set(10, "{\"id\": ".getBytes(StandardCharsets.UTF_8));
+		try (MaskingSession session = MaskingSession.open(PROFILE)) {
+			RecordPublisher publisher = new RecordPublisher(records);
+			MaskingProcessor processor = new MaskingProcessor(session, 2, true);
+			publisher.subscribe(processor);
+			RecordSubscriber subscriber = new RecordSubscriber(Long.MAX_VALUE, records.size());
+			processor.subscribe(subscriber);
+			subscriber.await();
+			assertTrue(subscriber.error instanceof IOException);
+			assertTrue(subscriber.received.size() <= 10);
+			assertTrue(publisher.cancelled);
+		}
+	}
+
+	private static List<byte[]> records(int count) {
+		List<byte[]> records = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			records.add(("{\"resourceType\": \"Patient\", \"id\": \"" + (1000000 + i) + "\"}")
+					.getBytes(StandardCharsets.UTF_8));
+		}
+		return records;
+	}
+
+	// publishes the records on the thread requesting them
+	private static final class RecordPublisher implements Publisher<byte[]>, Subscription {
+		private final List<byte[]> records;
+		private Subscriber<? super byte[]> subscriber;
+		private long demand;
+		private boolean emitting;
+		volatile int sent;
+		volatile long maxOutstanding;
+		volatile boolean cancelled;
+
+		RecordPublisher(List<byte[]> records) {
+			this.records = records;
+		}
+
+		@Override
+		public void subscribe(Subscriber<? super byte[]> subscriber) {
+			this.subscriber = subscriber;
+			subscriber.onSubscribe(this);
+		}
+
+		@Override
+		public void request(long n) {
+			synchronized (this) {
+				demand += n;
+				maxOutstanding = Math.max(maxOutstanding, demand);
+				if (emitting) {
+					return;
+				}
+				emitting = true;
+			}
+			while (true) {
+				byte[] next;
+				synchronized (this) {
+					if (cancelled || demand == 0 || sent == records.size()) {
+						emitting = false;
+						if (!cancelled && sent == records.size()) {
+							break;
+						}
+						return;
+					}
+					demand--;
+					next = records.get(sent++);
+				}
+				subscriber.onNext(next);
+			}
+			subscriber.onComplete();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	// collects the masked records, requesting them in batches
+	private static final class RecordSubscriber implements Subscriber<byte[]> {
+		private final long batch;
+		private final CountDownLatch done;
+		private long remaining;
+		volatile Subscription subscription;
+		final List<byte[]> received = new ArrayList<>();
+		volatile Throwable error;
+
+		RecordSubscriber(long batch, int expected) {
+			this.batch = batch;
+			this.done = new CountDownLatch(1);
+			this.remaining = expected;
+		}
+
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+			if (batch > 0) {
+				subscription.request(batch);
+			}
+		}
+
+		@Override
+		public void onNext(byte[] item) {
+			synchronized (received) {
+				received.add(item);
+			}
+			if (--remaining == 0) {
+				done.countDown();
+			}
+			if (batch > 0 && batch != Long.MAX_VALUE && received.size() % batch == 0) {
+				subscription.request(batch);
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+			done.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			done.countDown();
+		}
+
+		void await() throws InterruptedException {
+			assertTrue(done.await(30, TimeUnit.SECONDS));
+		}
+	}
+}
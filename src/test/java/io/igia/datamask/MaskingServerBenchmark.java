@@ -0,0 +1,131 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of the masking service: clients on their own threads post the same
+ * document over keep-alive connections, one request at a time each, and the
+ * latency percentiles and throughput are printed. The first round warms up
+ * the jit and is not printed.
+ *
+ * Against a local instance started by the benchmark:
+ * java -cp target/classes:target/test-classes:... io.igia.datamask.MaskingServerBenchmark profiles.txt patient patient.json [clients] [requests] [rounds]
+ *
+ * Against a running instance:
+ * java -cp ... io.igia.datamask.MaskingServerBenchmark http://localhost:8080/mask/patient patient.json [clients] [requests] [rounds]
+ */
+public class MaskingServerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		boolean remote = args[0].startsWith("http");
+		int next = remote ? 2 : 3;
+		byte[] document = Files.readAllBytes(Paths.get(args[next - 1]));
+		int clients = args.length > next ? Integer.parseInt(args[next]) : 8;
+		int requests = args.length > next + 1 ? Integer.parseInt(args[next + 1]) : 20000;
+		int rounds = args.length > next + 2 ? Integer.parseInt(args[next + 2]) : 3;
+		// keep a connection per client
+		System.setProperty("http.maxConnections", Integer.toString(clients));
+
+		MaskingServer server = null;
+		URL url;
+		if (remote) {
+			url = new URL(args[0]);
+		} else {
+			server = MaskingServer.start(null, 0, Runtime.getRuntime().availableProcessors(),
+					MaskingProfile.loadAll(args[0]));
+			url = new URL("http://localhost:" + server.getPort() + MaskingServer.MASK_PATH + args[1]);
+		}
+		String contentType = args[next - 1].endsWith(".xml") ? "application/xml" : "application/json";
+
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		try {
+			for (int round = 0; round <= rounds; round++) {
+				long[] latencies = new long[requests];
+				AtomicInteger issued = new AtomicInteger();
+				AtomicInteger failed = new AtomicInteger();
+				long start = System.nanoTime();
+				List<Future<?>> done = new ArrayList<>();
+				for (int c = 0; c < clients; c++) {
+					done.add(pool.submit(() -> {
+						for (int i = issued.getAndIncrement(); i < requests; i = issued.getAndIncrement()) {
+							long t = System.nanoTime();
+							if (post(url, contentType, document) != 200) {
+								failed.incrementAndGet();
+							}
+							latencies[i] = System.nanoTime() - t;
+						}
+						return null;
+					}));
+				}
+				for (Future<?> f : done) {
+					f.get();
+				}
+				long elapsed = System.nanoTime() - start;
+				if (round > 0) {
+					Arrays.sort(latencies);
+					System.out.printf(
+							"round %d: %d requests, %d clients, %.0f requests/s, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms, %d failed%n",
+							round, requests, clients, requests / (elapsed / 1e9), percentile(latencies, 0.50),
+							percentile(latencies, 0.90), percentile(latencies, 0.99), percentile(latencies, 0.999),
+							latencies[requests - 1] / 1e6, failed.get());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			if (server != null) {
+				server.stop();
+			}
+		}
+	}
+
+	private static int post(URL url, String contentType, byte[] document) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(document.length);
+		connection.setRequestProperty("Content-Type", contentType);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(document);
+		}
+		int status = connection.getResponseCode();
+		// the body is read to the end, so the connection is kept for the next request
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		try (InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+				body.write(buffer, 0, n);
+			}
+		}
+		return status;
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+	}
+}
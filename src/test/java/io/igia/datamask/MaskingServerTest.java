@@ -0,0 +1,103 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jayway.jsonpath.DocumentContext;
+import com.jayway.jsonpath.JsonPath;
+
+public class MaskingServerTest {
+
+	private MaskingServer server;
+
+	@Before
+	public void setUp() {
+		Map<String, MaskingProfile> profiles = new HashMap<>();
+		profiles.put("patient", MaskingProfile.load("patient", "json", "src/test/resources/fhir/patient/config-json.xml",
+				null));
+		server = MaskingServer.start(null, 0, 2, profiles);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testMask() throws IOException {
+		byte[] input = Files.readAllBytes(Paths.get("src/test/resources/fhir/patient/patient-input.json"));
+		String[] response = request("POST", "/mask/patient", input);
+		assertEquals("200", response[0]);
+		assertEquals("application/fhir+json; charset=utf-8", response[2]);
+		DocumentContext masked = JsonPath.parse(response[1]);
+		DocumentContext original = JsonPath.parse(new String(input, StandardCharsets.UTF_8));
+		assertEquals((String) original.read("$.resourceType"), masked.read("$.resourceType"));
+		assertNotEquals((String) original.read("$.id"), masked.read("$.id"));
+
+		// the dictionary is shared by the requests
+		String[] again = request("POST", "/mask/patient", input);
+		assertEquals((String) masked.read("$.id"), JsonPath.parse(again[1]).read("$.id"));
+	}
+
+	@Test
+	public void testErrors() throws IOException {
+		assertEquals("404", request("POST", "/mask/unknown", new byte[0])[0]);
+		assertEquals("405", request("GET", "/mask/patient", null)[0]);
+		// the parser message, which quotes the document, is not sent back
+		String[] malformed = request("POST", "/mask/patient", "{\"id\": \"SECRET".getBytes(StandardCharsets.UTF_8));
+		assertEquals("400", malformed[0]);
+		assertEquals("Not a well-formed json document", malformed[1].trim());
+		assertEquals("200", request("GET", "/health", null)[0]);
+	}
+
+	// the status, body and content type of a response
+	private String[] request(String method, String path, byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(
+				"http://localhost:" + server.getPort() + path).openConnection();
+		connection.setRequestMethod(method);
+		if (body != null) {
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/fhir+json; charset=iso-8859-1");
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(body);
+			}
+		}
+		int status = connection.getResponseCode();
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		try (InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+			byte[] buffer = new byte[8192];
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+				response.write(buffer, 0, n);
+			}
+		}
+		return new String[] { Integer.toString(status), response.toString("UTF-8"), connection.getContentType() };
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class MaskingSessionTest {
+
+	private static final MaskingProfile PROFILE = MaskingProfile.compile("json",
+			"src/test/resources/fhir/patient/config-json.xml", null);
+
+	@Test
+	public void testSessionDictionary() throws IOException {
+		byte[] input = Files.readAllBytes(Paths.get("src/test/resources/fhir/patient/patient-input.json"));
+		long global = size(SurrogateDictionary.getInstance());
+		try (MaskingSession first = MaskingSession.open(PROFILE); MaskingSession second = MaskingSession.open(PROFILE)) {
+			byte[] masked = first.mask(input);
+			assertNotEquals(new String(input, "UTF-8"), new String(masked, "UTF-8"));
+			long size = first.size();
+			assertTrue(size > 0);
+
+			// the same values are masked the same way by the same session, through either call
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			first.mask(new ByteArrayInputStream(input), out);
+			assertArrayEquals(masked, out.toByteArray());
+			assertEquals(size, first.size());
+
+			// other sessions and the command line dictionary are not affected
+			assertEquals(0, second.size());
+			second.mask(input);
+			assertEquals(size, second.size());
+			assertEquals(global, size(SurrogateDictionary.getInstance()));
+		}
+	}
+
+	@Test
+	public void testConcurrentMasking() throws Exception {
+		byte[] input = Files.readAllBytes(Paths.get("src/test/resources/fhir/patient/patient-input.json"));
+		ExecutorService threads = Executors.newFixedThreadPool(4);
+		try (MaskingSession session = MaskingSession.openOffHeap(PROFILE)) {
+			List<Future<byte[]>> results = new ArrayList<>();
+			for (int i = 0; i < 16; i++) {
+				results.add(threads.submit(() -> session.mask(input)));
+			}
+			byte[] expected = results.get(0).get();
+			for (Future<byte[]> result : results) {
+				assertArrayEquals(expected, result.get());
+			}
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testClosed() throws IOException {
+		MaskingSession session = MaskingSession.open(PROFILE);
+		session.close();
+		session.mask(new byte[0]);
+	}
+
+	@Test(expected = IOException.class)
+	public void testMalformedDocument() throws IOException {
+		try (MaskingSession session = MaskingSession.open(PROFILE)) {
+			session.mask("{\"id\": ".getBytes("UTF-8"));
+		}
+	}
+
+	private static long size(SurrogateDictionary dictionary) {
+		long size = 0;
+		for (String namespace : dictionary.getNamespaces()) {
+			size += dictionary.getStats(namespace).getSize();
+		}
+		return size;
+	}
+}
@@ -15,12 +15,18 @@
  */
 package io.igia.datamask;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
@@ -44,4 +50,20 @@ public class NameTransformerTest {
 		assertTrue(maskedValue.length() > 0);
 	}
 
+	@Test
+	public void testConcurrentMasking() throws Exception {
+		final Transformer transformer = new NameTransformer();
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<String>> results = new ArrayList<>();
+		for (int i = 0; i < 400; i++) {
+			final String value = "Concurrent Name " + (i % 20);
+			results.add(pool.submit(() -> transformer.getMaskedValue(value)));
+		}
+		pool.shutdown();
+		// every thread gets the same mask for a value
+		for (int i = 20; i < results.size(); i++) {
+			assertEquals(results.get(i % 20).get(), results.get(i).get());
+		}
+	}
+
 }
@@ -0,0 +1,87 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jayway.jsonpath.DocumentContext;
+import com.jayway.jsonpath.JsonPath;
+
+public class NdjsonSourceDocumentTest {
+
+	@Test
+	public void testDeindentify() throws IOException {
+		String output = "src/test/resources/fhir/ndjson/patient-output.ndjson";
+		mask("src/test/resources/fhir/patient/config-json.xml", "src/test/resources/fhir/ndjson/patient-input.ndjson",
+				output);
+		checkPatients(output);
+	}
+
+	@Test
+	public void testConfigDirectory() throws IOException {
+		String output = "src/test/resources/fhir/ndjson/patient-output-types.ndjson";
+		mask("src/test/resources/fhir/ndjson/config", "src/test/resources/fhir/ndjson/patient-input.ndjson", output);
+		checkPatients(output);
+	}
+
+	@Test
+	public void testMissingResourceTypeLeavesNoOutput() {
+		File output = new File("src/test/resources/fhir/ndjson/mixed-output.ndjson");
+		mask("src/test/resources/fhir/ndjson/config", "src/test/resources/fhir/ndjson/mixed-input.ndjson",
+				output.getPath());
+		assertFalse(output.exists());
+	}
+
+	@Test
+	public void testInvalidInputLeavesNoOutput() {
+		File output = new File("src/test/resources/fhir/ndjson/patient-output-invalid.ndjson");
+		mask("src/test/resources/fhir/patient/config-json.xml", "src/test/resources/fhir/patient/patient-response.xml",
+				output.getPath());
+		assertFalse(output.exists());
+	}
+
+	private void checkPatients(String outputFile) throws IOException {
+		List<String> lines = Files.readAllLines(Paths.get(outputFile), StandardCharsets.UTF_8);
+		// the blank line is dropped, and the others keep their order
+		assertEquals(3, lines.size());
+		DocumentContext first = JsonPath.parse(lines.get(0));
+		DocumentContext second = JsonPath.parse(lines.get(1));
+		DocumentContext third = JsonPath.parse(lines.get(2));
+		assertEquals("Patient", first.read("$.resourceType"));
+		assertEquals("2", second.read("$.meta.versionId"));
+		assertNotEquals("1479078", first.read("$.id"));
+		assertNotEquals("Gupta", first.read("$.name[0].family"));
+		assertTrue((Boolean) first.read("$.active"));
+		// a value is masked the same way on every line
+		assertEquals((String) first.read("$.id"), third.read("$.id"));
+		assertEquals((String) first.read("$.name[0].family"), third.read("$.name[0].family"));
+		assertNotEquals((String) first.read("$.id"), second.read("$.id"));
+	}
+
+	private void mask(String configFile, String inputFile, String outputFile) {
+		NdjsonSourceDocument doc = new NdjsonSourceDocument("ndjson", configFile, null, inputFile, outputFile);
+		doc.mask(true);
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PersistentSurrogateDictionaryTest {
+
+	private static final String FILE = "src/test/resources/example/surrogates-output.dict";
+
+	@Before
+	public void setUp() {
+		new File(FILE).delete();
+		new File(FILE + ".compact").delete();
+	}
+
+	@Test
+	public void testDateOffsetReopened() {
+		SurrogateDictionary dictionary = PersistentSurrogateDictionary.open(FILE);
+		SurrogateDictionary previous = SurrogateDictionary.bind(dictionary);
+		try {
+			DateOffsetTransformer first = new DateOffsetTransformer();
+			int offset = first.getSecondsOffset();
+			dictionary.close();
+
+			// a resumed run draws another offset, but shifts dates by the one in the file
+			dictionary = PersistentSurrogateDictionary.open(FILE);
+			SurrogateDictionary.bind(dictionary);
+			DateOffsetTransformer resumed = new DateOffsetTransformer();
+			resumed.secondsOffset = offset + 1;
+			assertEquals(offset, resumed.getSecondsOffset());
+			dictionary.close();
+		} finally {
+			SurrogateDictionary.bind(previous);
+		}
+	}
+
+	@Test
+	public void testReopen() {
+		SurrogateDictionary dictionary = PersistentSurrogateDictionary.open(FILE);
+		assertEquals("name-1", dictionary.getSurrogate("NAME", "Smith", true, v -> "name-1"));
+		assertEquals("MRN 9", dictionary.getSurrogate("TOKENIZE", "MRN 1", false, v -> "MRN 9"));
+		dictionary.close();
+
+		dictionary = PersistentSurrogateDictionary.open(FILE);
+		assertEquals("name-1", dictionary.getSurrogate("NAME", "Smith", true, v -> "name-2"));
+		assertEquals("MRN 9", dictionary.getSurrogate("TOKENIZE", "MRN 1", false, v -> "MRN 8"));
+		assertEquals("name-1", dictionary.lookup("Smith"));
+		assertNull(dictionary.lookup("MRN 1"));
+		dictionary.close();
+	}
+
+	@Test
+	public void testCompact() {
+		SurrogateDictionary dictionary = PersistentSurrogateDictionary.open(FILE);
+		for (int i = 0; i < 5000; i++) {
+			dictionary.getSurrogate("IDENTIFIER", "id" + i, true, v -> "first-" + v);
+		}
+		dictionary.close();
+		PersistentSurrogateDictionary.compact(FILE);
+
+		dictionary = PersistentSurrogateDictionary.open(FILE);
+		for (int i = 0; i < 10000; i++) {
+			dictionary.getSurrogate("IDENTIFIER", "id" + i, true, v -> "second-" + v);
+		}
+		dictionary.close();
+		PersistentSurrogateDictionary.compact(FILE);
+
+		dictionary = PersistentSurrogateDictionary.open(FILE);
+		for (int i = 0; i < 10000; i++) {
+			String expected = (i < 5000 ? "first-id" : "second-id") + i;
+			assertEquals(expected, dictionary.getSurrogate("IDENTIFIER", "id" + i, true, v -> ""));
+			assertEquals(expected, dictionary.lookup("id" + i));
+		}
+		assertEquals(0, dictionary.getStats("IDENTIFIER").getMisses());
+		dictionary.close();
+		assertTrue(!new File(FILE + ".compact").exists());
+	}
+
+	@Test
+	public void testIncompleteRecord() throws IOException {
+		SurrogateDictionary dictionary = PersistentSurrogateDictionary.open(FILE);
+		dictionary.getSurrogate("NAME", "Smith", true, v -> "name-1");
+		dictionary.getSurrogate("NAME", "Jones", true, v -> "name-2");
+		dictionary.close();
+		long length = new File(FILE).length();
+		try (RandomAccessFile file = new RandomAccessFile(FILE, "rw")) {
+			file.setLength(length - 3);
+		}
+
+		dictionary = PersistentSurrogateDictionary.open(FILE);
+		assertEquals("name-1", dictionary.getSurrogate("NAME", "Smith", true, v -> "name-3"));
+		assertEquals("name-4", dictionary.getSurrogate("NAME", "Jones", true, v -> "name-4"));
+		dictionary.close();
+
+		dictionary = PersistentSurrogateDictionary.open(FILE);
+		assertEquals("name-4", dictionary.getSurrogate("NAME", "Jones", true, v -> "name-5"));
+		dictionary.close();
+	}
+
+	@Test(expected = DatamaskException.class)
+	public void testInUse() {
+		SurrogateDictionary dictionary = PersistentSurrogateDictionary.open(FILE);
+		try {
+			PersistentSurrogateDictionary.open(FILE);
+		} finally {
+			dictionary.close();
+		}
+	}
+
+	@Test(expected = DatamaskException.class)
+	public void testNotDictionary() {
+		PersistentSurrogateDictionary.open("src/test/resources/example/config.xml");
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import javax.xml.validation.Schema;
+
+import org.jdom2.JDOMException;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+public class SchemaCacheTest {
+
+	@Test
+	public void testXmlSchemaCompiledOnce() throws SAXException {
+		Schema schema = SchemaCache.getXmlSchema("src/test/resources/example/employees.xsd");
+		assertSame(schema, SchemaCache.getXmlSchema("src/test/resources/example/../example/employees.xsd"));
+	}
+
+	@Test
+	public void testXmlSchemaReloadedWhenChanged() throws SAXException, IOException {
+		File xsd = new File("src/test/resources/example/employees-output-copy.xsd");
+		Files.copy(new File("src/test/resources/example/employees.xsd").toPath(), xsd.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		xsd.setLastModified(1000000000000L);
+		Schema schema = SchemaCache.getXmlSchema(xsd.getPath());
+		assertSame(schema, SchemaCache.getXmlSchema(xsd.getPath()));
+
+		xsd.setLastModified(1000000001000L);
+		assertNotSame(schema, SchemaCache.getXmlSchema(xsd.getPath()));
+	}
+
+	@Test
+	public void testBuildReusesParsers() throws JDOMException, IOException, SAXException {
+		for (int i = 0; i < 3; i++) {
+			assertEquals("employees", SchemaCache.build("src/test/resources/example/employees.xml",
+					"src/test/resources/example/employees.xsd").getRootElement().getName());
+			assertEquals("employees",
+					SchemaCache.build("src/test/resources/example/employees.xml", null).getRootElement().getName());
+		}
+	}
+
+	@Test(expected = JDOMException.class)
+	public void testBuildInvalidDocument() throws JDOMException, IOException, SAXException {
+		SchemaCache.build("src/test/resources/fhir/patient/patient-response.xml", "src/test/resources/example/employees.xsd");
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SurrogateDictionaryTest {
+
+	@Test
+	public void testNamespaces() {
+		SurrogateDictionary dictionary = new HeapSurrogateDictionary();
+		assertEquals("name-1", dictionary.getSurrogate("NAME", "Smith", true, v -> "name-1"));
+		assertEquals("id-1", dictionary.getSurrogate("IDENTIFIER", "Smith", true, v -> "id-1"));
+		assertEquals("name-1", dictionary.getSurrogate("NAME", "Smith", true, v -> "name-2"));
+		assertNotEquals(dictionary.getSurrogate("NAME", "Smith", true, v -> ""),
+				dictionary.getSurrogate("IDENTIFIER", "Smith", true, v -> ""));
+	}
+
+	@Test
+	public void testLookup() {
+		SurrogateDictionary dictionary = new HeapSurrogateDictionary();
+		dictionary.getSurrogate("NUMERIC", "1234", true, v -> "9999");
+		dictionary.getSurrogate("TOKENIZE", "MRN 1234", false, v -> "MRN 9999");
+		assertEquals("9999", dictionary.lookup("1234"));
+		assertNull(dictionary.lookup("MRN 1234"));
+		assertNull(dictionary.lookup("5678"));
+	}
+
+	@Test
+	public void testStats() {
+		SurrogateDictionary dictionary = new HeapSurrogateDictionary();
+		dictionary.getSurrogate("NAME", "Smith", true, v -> "a");
+		dictionary.getSurrogate("NAME", "Smith", true, v -> "b");
+		dictionary.getSurrogate("NAME", "Jones", true, v -> "c");
+		assertEquals(1, dictionary.getStats("NAME").getHits());
+		assertEquals(2, dictionary.getStats("NAME").getMisses());
+		assertEquals(2, dictionary.getStats("NAME").getSize());
+		assertEquals(0, dictionary.getStats("ZIP_CODE").getSize());
+	}
+
+	@Test
+	public void testComputeOnce() throws Exception {
+		final SurrogateDictionary dictionary = new HeapSurrogateDictionary();
+		final AtomicInteger masked = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<String>> results = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			final String value = "value" + (i % 50);
+			results.add(pool.submit(() -> dictionary.getSurrogate("TEXT", value, true,
+					v -> v + "-" + masked.incrementAndGet())));
+		}
+		pool.shutdown();
+		for (int i = 50; i < results.size(); i++) {
+			assertEquals(results.get(i % 50).get(), results.get(i).get());
+		}
+		assertEquals(50, masked.get());
+		assertEquals(2000, dictionary.getStats("TEXT").getHits() + dictionary.getStats("TEXT").getMisses());
+	}
+}
@@ -13,6 +13,8 @@
 package io.igia.datamask;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -23,6 +25,7 @@ import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
 import org.jdom2.Namespace;
+import org.jdom2.xpath.XPathExpression;
 import org.junit.Test;
 import org.xml.sax.SAXException;
 
@@ -84,4 +87,29 @@ public class XmlDatamaskUtilTest {
 		List<Attribute> attributes = util.getXpathAttributes(input, namespaceList, "//employees/employee/@id");
 		assertEquals(2, attributes.size());
 	}
+	
+	@Test
+	public void testXpathCache() {
+		List<Namespace> namespaceList = new ArrayList<>();
+		List<Namespace> otherNamespaceList = new ArrayList<>();
+		otherNamespaceList.add(Namespace.getNamespace("e", "http://example.com/employees"));
+		
+		assertSame(util.getElementXpath(namespaceList, "//employees/employee"),
+				new XmlDatamaskUtil().getElementXpath(new ArrayList<Namespace>(), "//employees/employee"));
+		assertNotSame(util.getElementXpath(namespaceList, "//employees/employee"),
+				util.getElementXpath(otherNamespaceList, "//employees/employee"));
+		assertNotSame(util.getElementXpath(namespaceList, "//employees/employee/@id"),
+				util.getAttributeXpath(namespaceList, "//employees/employee/@id"));
+	}
+
+	@Test
+	public void testXpathCachePerThread() throws InterruptedException {
+		List<Namespace> namespaceList = new ArrayList<>();
+		List<XPathExpression<Element>> other = new ArrayList<>();
+		Thread thread = new Thread(() -> other.add(util.getElementXpath(namespaceList, "//employees/employee")));
+		thread.start();
+		thread.join();
+
+		assertNotSame(util.getElementXpath(namespaceList, "//employees/employee"), other.get(0));
+	}
 }
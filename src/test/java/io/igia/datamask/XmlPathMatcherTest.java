@@ -0,0 +1,126 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import org.jdom2.Attribute;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.Namespace;
+import org.junit.Test;
+
+import io.igia.datamask.model.Config;
+import io.igia.datamask.model.Field;
+
+public class XmlPathMatcherTest {
+	private XmlDatamaskUtil util = new XmlDatamaskUtil();
+	private TransformerFactory factory = new TransformerFactory();
+
+	@Test
+	public void testMatchesSameNodesAsXpathExample() throws JDOMException, IOException {
+		assertSameAsXpath("src/test/resources/example/config.xml", "src/test/resources/example/employees.xml");
+	}
+
+	@Test
+	public void testMatchesSameNodesAsXpathFhirPatient() throws JDOMException, IOException {
+		assertSameAsXpath("src/test/resources/fhir/patient/config.xml",
+				"src/test/resources/fhir/patient/patient-response.xml");
+	}
+
+	@Test
+	public void testPredicates() throws JDOMException, IOException {
+		Document input = util.getSAXParsedDocument("src/test/resources/example/employees.xml");
+		List<Namespace> namespaceList = Collections.emptyList();
+
+		assertEquals(1, countMatches(input, namespaceList, "//employee[@id='102']/firstName", "TEXT"));
+		assertEquals(2, countMatches(input, namespaceList, "//employee/phone[@type]", "TEXT"));
+		assertEquals(1, countMatches(input, namespaceList, "/employees/employee[lastName=\"Gupta\"]/@id", "ATTRIBUTE"));
+		assertEquals(2, countMatches(input, namespaceList, "/employees//name", "TEXT"));
+		assertEquals(0, countMatches(input, namespaceList, "/employee/firstName", "TEXT"));
+	}
+
+	@Test
+	public void testFallbackForUnsupportedPaths() {
+		List<Transformer> rules = new ArrayList<>();
+		rules.add(factory.create("TEXT", "//employee[1]/firstName", "TEXT", null));
+		rules.add(factory.create("TEXT", "//employee/firstName | //employee/lastName", "TEXT", null));
+		rules.add(factory.create("TEXT", "//employee/../department", "TEXT", null));
+		rules.add(factory.create("TEXT", "//x:employee/firstName", "TEXT", null));
+		rules.add(factory.create("TEXT", "//employee/firstName/text()", "TEXT", null));
+		rules.add(factory.create("IDENTIFIER", "//employee/firstName", "ATTRIBUTE", null));
+		rules.add(factory.create("IDENTIFIER", "//employee/@id", "ATTRIBUTE", null));
+
+		XmlPathMatcher matcher = XmlPathMatcher.compile(rules, Collections.<Namespace>emptyList());
+		assertEquals(6, matcher.getFallback().size());
+		assertEquals(1, matcher.getRules().size());
+		assertEquals("//employee/@id", matcher.getRules().get(0).getPath());
+	}
+
+	private void assertSameAsXpath(String configFile, String xmlFile) throws JDOMException, IOException {
+		Config config = util.unmarshallConfig(configFile);
+		Document input = util.getSAXParsedDocument(xmlFile);
+		List<Namespace> namespaceList = new ArrayList<>();
+		for (io.igia.datamask.model.Namespace namespace : config.getNamespace()) {
+			namespaceList.add(Namespace.getNamespace(namespace.getPrefix(), namespace.getUrl()));
+		}
+
+		for (Field field : config.getField()) {
+			int expected;
+			if (field.getType().equalsIgnoreCase("ATTRIBUTE")) {
+				expected = util.getXpathAttributes(input, namespaceList, field.getPath()).size();
+			} else {
+				expected = util.getXpathElements(input, namespaceList, field.getPath()).size();
+			}
+			assertEquals(field.getPath(), expected,
+					countMatches(input, namespaceList, field.getPath(), field.getType()));
+		}
+	}
+
+	private int countMatches(Document input, List<Namespace> namespaceList, String path, String type) {
+		List<Transformer> rules = new ArrayList<>();
+		rules.add(factory.create("TEXT", path, type, null));
+		XmlPathMatcher matcher = XmlPathMatcher.compile(rules, namespaceList);
+		assertTrue(path, matcher.getFallback().isEmpty());
+		return countMatches(matcher, input.getRootElement(), matcher.getInitialStates());
+	}
+
+	private int countMatches(XmlPathMatcher matcher, Element elem, BitSet active) {
+		BitSet matched = new BitSet();
+		BitSet next = matcher.advance(active, new XmlPathMatcher.ElementNode().of(elem), matched);
+		int count = 0;
+		if (matched.get(0)) {
+			if (matcher.isAttributeRule(0)) {
+				for (Attribute att : elem.getAttributes()) {
+					if (matcher.matchesAttribute(0, att.getNamespaceURI(), att.getName())) {
+						count++;
+					}
+				}
+			} else {
+				count++;
+			}
+		}
+		for (Element child : elem.getChildren()) {
+			count += countMatches(matcher, child, next);
+		}
+		return count;
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class XmlRecordSplitterTest {
+
+	@Test
+	public void testConcatenatedDocuments() throws IOException {
+		XmlRecordSplitter records = splitter("Patient",
+				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Patient xmlns=\"http://hl7.org/fhir\"><id value=\"1\"/></Patient>\n"
+						+ "<?xml version=\"1.0\"?><!-- second --><!DOCTYPE Patient [<!ENTITY a \"b\">]>"
+						+ "<Patient><id value=\"2\"/></Patient>");
+		assertEquals("<Patient xmlns=\"http://hl7.org/fhir\"><id value=\"1\"/></Patient>", next(records));
+		assertEquals("<Patient><id value=\"2\"/></Patient>", next(records));
+		assertNull(records.next());
+	}
+
+	@Test
+	public void testMarkupInsideRecord() throws IOException {
+		String record = "<fhir:Patient a='>' b=\"</Patient>\"><!-- </Patient> --><![CDATA[</Patient>]]>"
+				+ "<Patient><name/></Patient><?pi </Patient>?>text &amp; more</fhir:Patient>";
+		XmlRecordSplitter records = splitter("Patient", record + "  " + "<Patient/>");
+		assertEquals(record, next(records));
+		assertEquals("<Patient/>", next(records));
+		assertNull(records.next());
+	}
+
+	@Test
+	public void testUtf8() throws IOException {
+		XmlRecordSplitter records = splitter("Patient", "<Patient><name>Jos\u00e9 \u00c5ngstr\u00f6m</name></Patient>");
+		assertEquals("<Patient><name>Jos\u00e9 \u00c5ngstr\u00f6m</name></Patient>", next(records));
+	}
+
+	@Test
+	public void testPrefixedElement() throws IOException {
+		XmlRecordSplitter records = splitter("fhir:Patient", "<fhir:Patient/>");
+		assertEquals("<fhir:Patient/>", next(records));
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnexpectedElement() throws IOException {
+		XmlRecordSplitter records = splitter("Patient", "<Patient/><Observation/>");
+		records.next();
+		records.next();
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedRecord() throws IOException {
+		XmlRecordSplitter records = splitter("Patient", "<Patient/><Patient><id value=\"1\"/>");
+		records.next();
+		records.next();
+	}
+
+	@Test
+	public void testFlushBeforeWaiting() throws IOException {
+		// a pipe with one record and the start of the next, and nothing waiting after them
+		InputStream pipe = new SequenceInputStream(
+				new ByteArrayInputStream("<Patient/><Pat".getBytes(StandardCharsets.UTF_8)),
+				new ByteArrayInputStream("ient/>".getBytes(StandardCharsets.UTF_8))) {
+			@Override
+			public int available() {
+				return 0;
+			}
+		};
+		List<Integer> flushes = new ArrayList<>();
+		int[] records = new int[1];
+		XmlRecordSplitter splitter = new XmlRecordSplitter(pipe, "Patient", () -> flushes.add(records[0]));
+		while (splitter.next() != null) {
+			records[0]++;
+		}
+		assertEquals(2, records[0]);
+		// the first record is flushed before the read of the rest of the second
+		assertTrue(flushes.contains(1));
+	}
+
+	private static XmlRecordSplitter splitter(String element, String input) {
+		return new XmlRecordSplitter(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), element);
+	}
+
+	private static String next(XmlRecordSplitter records) throws IOException {
+		return new String(records.next(), StandardCharsets.UTF_8);
+	}
+}
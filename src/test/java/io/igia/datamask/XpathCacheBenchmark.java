@@ -0,0 +1,72 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.datamask;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jdom2.Document;
+import org.jdom2.Namespace;
+import org.jdom2.filter.Filters;
+import org.jdom2.xpath.XPathFactory;
+
+/**
+ * Compares the per-document cost of evaluating the xpaths of a config with many
+ * fields when each xpath is compiled for every document, as before the cache,
+ * and when the compiled expressions are shared.
+ *
+ * Run with: java -cp target/classes:target/test-classes:... io.igia.datamask.XpathCacheBenchmark [fields] [documents]
+ */
+public class XpathCacheBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int fields = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int documents = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+		XmlDatamaskUtil util = new XmlDatamaskUtil();
+		Document document = util.getSAXParsedDocument("src/test/resources/example/employees.xml");
+		List<Namespace> namespaceList = new ArrayList<>();
+		List<String> paths = new ArrayList<>();
+		for (int i = 0; i < fields; i++) {
+			paths.add("//employees/employee[@id='" + i + "']/firstName | //employees/employee[position()=" + i
+					+ "]/lastName");
+		}
+
+		XPathFactory xpfac = XPathFactory.instance();
+		Namespace[] namespaces = namespaceList.toArray(new Namespace[namespaceList.size()]);
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up the jit and the cache
+			long start = System.nanoTime();
+			for (int d = 0; d < documents; d++) {
+				for (String path : paths) {
+					xpfac.compile(path, Filters.element(), null, namespaces).evaluate(document);
+				}
+			}
+			long compiled = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int d = 0; d < documents; d++) {
+				for (String path : paths) {
+					util.getXpathElements(document, namespaceList, path);
+				}
+			}
+			long cached = System.nanoTime() - start;
+
+			if (round > 0) {
+				System.out.println(fields + " fields, " + documents + " documents");
+				System.out.printf("compile per document: %.3f ms/document%n", compiled / 1e6 / documents);
+				System.out.printf("cached expressions:   %.3f ms/document%n", cached / 1e6 / documents);
+			}
+		}
+	}
+}